@@ -29,6 +29,7 @@ import stroom.query.audit.client.QueryResourceHttpClient;
 import stroom.query.audit.rest.DocRefResource;
 import stroom.query.audit.rest.QueryResource;
 import stroom.query.audit.security.ServiceUser;
+import stroom.query.elastic.client.ElasticClient;
 import stroom.query.elastic.transportClient.TransportClientBundle;
 
 import java.util.List;
@@ -87,8 +88,11 @@ public class IndexJobConsumerIT extends AbstractAutoIndexIntegrationTest {
                 bind(ServiceUser.class)
                         .annotatedWith(Names.named(AutoIndexConstants.STROOM_SERVICE_USER))
                         .toInstance(serviceUser);
-                bind(TransportClient.class)
-                        .toInstance(TransportClientBundle.createTransportClient(autoIndexAppRule.getConfiguration()));
+                final TransportClient transportClient =
+                        TransportClientBundle.createTransportClient(autoIndexAppRule.getConfiguration());
+                bind(TransportClient.class).toInstance(transportClient);
+                bind(ElasticClient.class)
+                        .toInstance(TransportClientBundle.createElasticClient(autoIndexAppRule.getConfiguration(), transportClient));
                 bind(new TypeLiteral<QueryClientCache<QueryResource>>(){})
                         .toInstance(new QueryClientCache<>(autoIndexAppRule.getConfiguration(), QueryResourceHttpClient::new));
                 bind(new TypeLiteral<QueryClientCache<DocRefResource>>(){})
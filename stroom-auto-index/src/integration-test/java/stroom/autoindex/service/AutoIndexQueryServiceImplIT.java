@@ -42,6 +42,7 @@ import stroom.query.audit.rest.DocRefResource;
 import stroom.query.audit.rest.QueryResource;
 import stroom.query.audit.security.ServiceUser;
 import stroom.query.audit.service.DocRefService;
+import stroom.query.elastic.client.ElasticClient;
 import stroom.query.elastic.transportClient.TransportClientBundle;
 
 import java.time.LocalDateTime;
@@ -108,8 +109,11 @@ public class AutoIndexQueryServiceImplIT extends AbstractAutoIndexIntegrationTes
                 bind(ServiceUser.class)
                         .annotatedWith(Names.named(AutoIndexConstants.STROOM_SERVICE_USER))
                         .toInstance(serviceUser);
-                bind(TransportClient.class)
-                        .toInstance(TransportClientBundle.createTransportClient(autoIndexAppRule.getConfiguration()));
+                final TransportClient transportClient =
+                        TransportClientBundle.createTransportClient(autoIndexAppRule.getConfiguration());
+                bind(TransportClient.class).toInstance(transportClient);
+                bind(ElasticClient.class)
+                        .toInstance(TransportClientBundle.createElasticClient(autoIndexAppRule.getConfiguration(), transportClient));
                 bind(new TypeLiteral<QueryClientCache<QueryResource>>(){})
                         .toInstance(new QueryClientCache<>(autoIndexAppRule.getConfiguration(), u -> QueryResourceClientSpy.wrapping(new QueryResourceHttpClient(u))));
                 bind(new TypeLiteral<QueryClientCache<DocRefResource>>(){})
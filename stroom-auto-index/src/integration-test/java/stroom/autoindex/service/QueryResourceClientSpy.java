@@ -9,8 +9,8 @@ import stroom.query.audit.security.ServiceUser;
 import javax.ws.rs.core.Response;
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Stream;
 
 /**
@@ -18,7 +18,7 @@ import java.util.stream.Stream;
  * it forwards the calls to the wrapped client.
  *
  * It keeps track of all the calls made to it, so that tests can assert
- * the correct calls are being made.
+ * the correct calls are being made. Searches are sent in parallel, so the calls are held in thread safe lists.
  */
 public class QueryResourceClientSpy<WRAPPED extends QueryResource & Closeable>
         implements QueryResource, Closeable {
@@ -68,7 +68,7 @@ public class QueryResourceClientSpy<WRAPPED extends QueryResource & Closeable>
         }
     }
 
-    private final List<GetDataSourceCall> getDataSourceCalls = new ArrayList<>();
+    private final List<GetDataSourceCall> getDataSourceCalls = new CopyOnWriteArrayList<>();
 
     @Override
     public Response getDataSource(final ServiceUser user,
@@ -121,7 +121,7 @@ public class QueryResourceClientSpy<WRAPPED extends QueryResource & Closeable>
         }
     }
 
-    private final List<SearchCall> searchCalls = new ArrayList<>();
+    private final List<SearchCall> searchCalls = new CopyOnWriteArrayList<>();
 
     @Override
     public Response search(final ServiceUser user,
@@ -164,7 +164,7 @@ public class QueryResourceClientSpy<WRAPPED extends QueryResource & Closeable>
         }
     }
 
-    private final List<DestroyCall> destroyCalls = new ArrayList<>();
+    private final List<DestroyCall> destroyCalls = new CopyOnWriteArrayList<>();
 
     @Override
     public Response destroy(final ServiceUser user,
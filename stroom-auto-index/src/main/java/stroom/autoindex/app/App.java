@@ -26,6 +26,7 @@ import stroom.autoindex.indexing.IndexingTimerTask;
 import stroom.autoindex.service.AutoIndexDocRefEntity;
 import stroom.autoindex.service.AutoIndexDocRefServiceImpl;
 import stroom.autoindex.service.AutoIndexQueryServiceImpl;
+import stroom.autoindex.service.SearchPartExecutor;
 import stroom.autoindex.tracker.TimelineTrackerDao;
 import stroom.autoindex.tracker.TimelineTrackerDaoJooqImpl;
 import stroom.autoindex.tracker.TimelineTrackerService;
@@ -35,6 +36,7 @@ import stroom.query.audit.client.QueryResourceHttpClient;
 import stroom.query.audit.rest.DocRefResource;
 import stroom.query.audit.rest.QueryResource;
 import stroom.query.audit.security.ServiceUser;
+import stroom.query.elastic.client.ElasticClient;
 import stroom.query.elastic.transportClient.TransportClientBundle;
 import stroom.query.jooq.AuditedJooqDocRefBundle;
 
@@ -64,6 +66,8 @@ public class App extends Application<Config> {
             }
         });
 
+        environment.lifecycle().manage(injector.getInstance(SearchPartExecutor.class));
+
         if (configuration.getIndexingConfig().getEnabled()) {
             final Timer timer = new Timer();
             final IndexingTimerTask indexingTimerTask = injector.getInstance(IndexingTimerTask.class);
@@ -96,6 +100,7 @@ public class App extends Application<Config> {
                                 .jwt(configuration.getServiceUser().getJwt())
                                 .build());
                 bind(TransportClient.class).toInstance(transportClientBundle.getTransportClient());
+                bind(ElasticClient.class).toInstance(transportClientBundle.getElasticClient());
             }
         }, auditedQueryBundle.getGuiceModule(configuration));
     }
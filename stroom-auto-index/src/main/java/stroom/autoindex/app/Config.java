@@ -54,6 +54,10 @@ public class Config
     @JsonProperty("indexing")
     private IndexingConfig indexingConfig;
 
+    @NotNull
+    @JsonProperty("search")
+    private SearchConfig searchConfig = new SearchConfig();
+
     @NotNull
     @JsonProperty("queryResourceUrlsByType")
     private Map<String, String> queryResourceUrlsByType;
@@ -91,6 +95,10 @@ public class Config
         return indexingConfig;
     }
 
+    public SearchConfig getSearchConfig() {
+        return searchConfig;
+    }
+
     public ServiceUserConfig getServiceUser() {
         return serviceUser;
     }
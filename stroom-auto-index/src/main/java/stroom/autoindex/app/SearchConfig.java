@@ -0,0 +1,66 @@
+package stroom.autoindex.app;
+
+/**
+ * Encapsulates the configuration of searches against auto indexes.
+ * How many part searches can be in flight across the service and for each query, how long to wait for them,
+ * how many tracker windows can be combined into a single part search,
+ * and how long the time taken by each data source is remembered when planning searches
+ */
+public class SearchConfig {
+
+    private int partThreads = 8;
+
+    private int partsPerQuery = 4;
+
+    private long defaultTimeoutMillis = 60000;
+
+    private int windowsPerRequest = 20;
+
+    private long latencyExpirySeconds = 300;
+
+    public int getPartThreads() {
+        return partThreads;
+    }
+
+    public int getPartsPerQuery() {
+        return partsPerQuery;
+    }
+
+    public long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+
+    public int getWindowsPerRequest() {
+        return windowsPerRequest;
+    }
+
+    public long getLatencyExpirySeconds() {
+        return latencyExpirySeconds;
+    }
+
+    // Builder like functions.
+    public SearchConfig withPartThreads(int v) {
+        this.partThreads = v;
+        return this;
+    }
+
+    public SearchConfig withPartsPerQuery(int v) {
+        this.partsPerQuery = v;
+        return this;
+    }
+
+    public SearchConfig withWindowsPerRequest(int v) {
+        this.windowsPerRequest = v;
+        return this;
+    }
+
+    public SearchConfig withLatencyExpirySeconds(long v) {
+        this.latencyExpirySeconds = v;
+        return this;
+    }
+
+    public SearchConfig andDefaultTimeoutMillis(long v) {
+        this.defaultTimeoutMillis = v;
+        return this;
+    }
+}
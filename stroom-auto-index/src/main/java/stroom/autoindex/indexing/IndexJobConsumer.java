@@ -146,7 +146,7 @@ public class IndexJobConsumer implements Consumer<IndexJob> {
                         .build())
                 .key(queryKey)
                 .dateTimeLocale("en-gb")
-                .incremental(true)
+                .incremental(false)
                 .addResultRequests()
                 .build();
     }
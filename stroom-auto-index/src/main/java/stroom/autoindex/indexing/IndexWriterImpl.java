@@ -1,9 +1,9 @@
 package stroom.autoindex.indexing;
 
 import org.apache.http.HttpStatus;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +16,7 @@ import stroom.query.api.v2.FlatResult;
 import stroom.query.api.v2.SearchResponse;
 import stroom.query.audit.rest.DocRefResource;
 import stroom.query.audit.security.ServiceUser;
+import stroom.query.elastic.client.ElasticClient;
 import stroom.query.elastic.model.ElasticIndexDocRefEntity;
 
 import javax.inject.Inject;
@@ -29,12 +30,12 @@ import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 public class IndexWriterImpl implements IndexWriter {
     private static final Logger LOGGER = LoggerFactory.getLogger(IndexWriterImpl.class);
 
-    private final TransportClient client;
+    private final ElasticClient client;
     private final QueryClientCache<DocRefResource> docRefClientCache;
     private final ServiceUser serviceUser;
 
     @Inject
-    public IndexWriterImpl(final TransportClient client,
+    public IndexWriterImpl(final ElasticClient client,
                            final QueryClientCache<DocRefResource> docRefClientCache,
                            @Named(AutoIndexConstants.STROOM_SERVICE_USER)
                            final ServiceUser serviceUser) {
@@ -63,7 +64,7 @@ public class IndexWriterImpl implements IndexWriter {
                         .map(r -> r.readEntity(ElasticIndexDocRefEntity.class))
                         .orElseThrow(() -> new RuntimeException("Could not get document entity for " + elasticDocRef));
 
-        final BulkRequestBuilder bulkRequest = client.prepareBulk();
+        final BulkRequest bulkRequest = new BulkRequest();
         final AtomicBoolean resultsFound = new AtomicBoolean(false);
 
         searchResponse.getResults().stream()
@@ -81,10 +82,10 @@ public class IndexWriterImpl implements IndexWriter {
                         resultsFound.set(true);
                         b.endObject();
                         bulkRequest.add(
-                                client.prepareIndex(elasticIndex.getIndexName(),
+                                new IndexRequest(elasticIndex.getIndexName(),
                                         elasticIndex.getIndexedType(),
                                         UUID.randomUUID().toString())
-                                .setSource(b));
+                                .source(b));
                     } catch (final IOException e) {
                         LOGGER.error("Could not add row to bulk request {}", e.getLocalizedMessage());
                     }
@@ -92,7 +93,7 @@ public class IndexWriterImpl implements IndexWriter {
 
         // Only try to write results if we have something to send
         if (resultsFound.get()) {
-            final BulkResponse bulkResponse = bulkRequest.get();
+            final BulkResponse bulkResponse = client.bulk(bulkRequest).join();
             if (bulkResponse.hasFailures()) {
                 // process failures by iterating through each bulk response item
                 LOGGER.warn("Bulk Response has Failures {}", bulkResponse.buildFailureMessage());
@@ -6,6 +6,7 @@ import org.slf4j.LoggerFactory;
 import stroom.autoindex.QueryClientCache;
 import stroom.autoindex.tracker.TimelineTracker;
 import stroom.autoindex.tracker.TimelineTrackerService;
+import stroom.autoindex.tracker.TrackerWindow;
 import stroom.datasource.api.v2.DataSource;
 import stroom.query.api.v2.DocRef;
 import stroom.query.api.v2.QueryKey;
@@ -19,9 +20,22 @@ import stroom.query.audit.service.QueryService;
 
 import javax.inject.Inject;
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 public class AutoIndexQueryServiceImpl implements QueryService {
     private static final Logger LOGGER = LoggerFactory.getLogger(AutoIndexQueryServiceImpl.class);
@@ -32,12 +46,25 @@ public class AutoIndexQueryServiceImpl implements QueryService {
 
     private final TimelineTrackerService trackerService;
 
+    private final SearchPartExecutor searchPartExecutor;
+
+    private final SearchPlanner searchPlanner;
+
+    /**
+     * The parts of each search still being gathered, so they can be destroyed along with the search
+     */
+    private final ConcurrentMap<QueryKey, ActiveSearch> activeSearches = new ConcurrentHashMap<>();
+
     @Inject
     @SuppressWarnings("unchecked")
     public AutoIndexQueryServiceImpl(final DocRefService docRefService,
                                      final TimelineTrackerService trackerService,
-                                     final QueryClientCache<QueryResource> queryClientCache) {
+                                     final QueryClientCache<QueryResource> queryClientCache,
+                                     final SearchPartExecutor searchPartExecutor,
+                                     final SearchPlanner searchPlanner) {
         this.docRefService = docRefService;
+        this.searchPartExecutor = searchPartExecutor;
+        this.searchPlanner = searchPlanner;
         this.queryClientCache = queryClientCache;
         this.trackerService = trackerService;
     }
@@ -80,38 +107,281 @@ public class AutoIndexQueryServiceImpl implements QueryService {
         // Retrieve the tracker for this doc ref
         final TimelineTracker tracker = trackerService.get(docRefUuid);
 
+        // When the rows are sorted by time, the parts are sent in that order so the first rows are found first,
+        // and the later parts can be cancelled once they cannot change the requested rows.
+        // That relies on each part covering a single range of time, so windows are only combined otherwise.
+        final PartCutOff cutOff = PartCutOff.forRequest(request, docRefEntity.getTimeFieldName());
+        final int windowsPerRequest = cutOff.getWindowOrder().isPresent()
+                ? 1
+                : searchPartExecutor.getSearchConfig().getWindowsPerRequest();
+
+        // Windows that the query cannot match are not searched
+        final QueryTimeBounds timeBounds = QueryTimeBounds.fromExpression(request.getQuery().getExpression(),
+                docRefEntity.getTimeFieldName());
+
         final SplitSearchRequest splitSearchRequest = SearchRequestSplitter.withSearchRequest(request)
                 .autoIndex(docRefEntity)
                 .tracker(tracker)
+                .timeBounds(timeBounds)
+                .windowsPerRequest(windowsPerRequest)
                 .split();
 
-        // Create the results merger
-        final SearchResponseMerger merger = SearchResponseMerger.start();
+        // The whole search is bounded by the timeout of the request, any parts still running are dropped
+        final long timeout = (null != request.getTimeout())
+                ? request.getTimeout()
+                : searchPartExecutor.getSearchConfig().getDefaultTimeoutMillis();
+
+        // The raw data source may be too slow to be worth searching, based on how it has been doing lately
+        final SearchPlanner.Plan plan = searchPlanner.plan(splitSearchRequest, docRefEntity.getRawDocRef(), timeout);
 
-        // Work through each split search request, sending it to the appropriate client and collate the results
-        for (final Map.Entry<DocRef, List<SearchRequest>> requestEntry : splitSearchRequest.getRequests().entrySet()) {
-            final QueryResource client = queryClientCache.apply(requestEntry.getKey().getType())
+        // Pair up each split search request with the client to send it to, the clients are all found up front
+        final List<SearchPart> orderedParts = new ArrayList<>();
+        for (final SplitSearchRequest.Part part : plan.getParts()) {
+            final QueryResource client = queryClientCache.apply(part.getDocRef().getType())
                     .orElseThrow(() -> new RuntimeException("Could not get HTTP Client for Query Resource"));
+            orderedParts.add(new SearchPart(client, part.getDocRef(), part.getWindow(), part.getRequest()));
+        }
 
-            // There may be several requests to send to each client, for fragmented windows.
-            for (final SearchRequest partRequest : requestEntry.getValue()) {
-                final Response partHttpResponse = client.search(user, partRequest);
-                if (partHttpResponse.getStatus() == HttpStatus.OK_200) {
-                    final SearchResponse partResponse = partHttpResponse.readEntity(SearchResponse.class);
-                    merger.response(partResponse);
-                } else {
-                    LOGGER.warn("Invalid status returned by client", partHttpResponse.getStatus());
-                    partHttpResponse.close();
+        // The query may not be able to match anything that has been tracked, there is nothing to find
+        if (orderedParts.isEmpty()) {
+            return Optional.of(new SearchResponse(null, Collections.emptyList(), null, true));
+        }
+
+        cutOff.getWindowOrder().ifPresent(order -> orderedParts.sort(Comparator.comparing((SearchPart p) -> p.window, order)));
+        cutOff.start(orderedParts.size());
+        final Queue<Integer> parts = new ConcurrentLinkedQueue<>();
+        IntStream.range(0, orderedParts.size()).forEach(parts::add);
+
+        // Create the results merger
+        final SearchResponseMerger merger = SearchResponseMerger.start(request);
+        if (plan.isRawDeferred()) {
+            merger.incomplete();
+        }
+
+        final ActiveSearch activeSearch = new ActiveSearch(orderedParts);
+        if (null != request.getKey()) {
+            activeSearches.put(request.getKey(), activeSearch);
+        }
+
+        final long deadline = System.currentTimeMillis() + timeout;
+        try {
+            // Each worker takes parts from the queue until it is empty, so no more than the limit for a query are in flight
+            // and each response is merged as soon as it arrives.
+            final int workerCount = Math.min(parts.size(), searchPartExecutor.getSearchConfig().getPartsPerQuery());
+            final CompletableFuture<?>[] workers = new CompletableFuture<?>[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = CompletableFuture.runAsync(() -> {
+                    Integer index;
+                    while (!activeSearch.stopped.get() && (null != (index = parts.poll()))) {
+                        if (cutOff.isNeeded(index)) {
+                            try {
+                                searchPart(user, index, orderedParts, cutOff, deadline, merger);
+                            } catch (final RuntimeException e) {
+                                // One part failing must not stop the worker sending the parts after it
+                                LOGGER.warn("Could not search part " + index + " of " + docRefUuid, e);
+                                merger.incomplete();
+                            }
+                        }
+                    }
+                }, searchPartExecutor);
+            }
+
+            try {
+                CompletableFuture.allOf(workers).get(timeout, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                LOGGER.warn("Search of {} timed out after {}ms, {} parts were not sent", docRefUuid, timeout, parts.size());
+                stopParts(user, orderedParts, merger);
+            } catch (final InterruptedException e) {
+                LOGGER.warn("Search of {} was interrupted", docRefUuid);
+                Thread.currentThread().interrupt();
+                stopParts(user, orderedParts, merger);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                activeSearch.stopped.set(true);
+            }
+
+            return merger.merge();
+        } finally {
+            if (null != request.getKey()) {
+                activeSearches.remove(request.getKey(), activeSearch);
+            }
+
+            // The parts are never polled again, so the results held for them are released straight away
+            orderedParts.forEach(part -> destroyPart(user, part, "the search has finished with it"));
+        }
+    }
+
+    /**
+     * Send a single part of a split search to its client, and merge the response.
+     * If the part fails or does not respond in time, the merged response is marked as incomplete.
+     * If the response means later parts are no longer needed, any of those already sent are destroyed.
+     * @param user The user running the search
+     * @param index The position of the part to send
+     * @param parts All the parts of the search, in the order they are sent
+     * @param cutOff Decides which parts are still needed
+     * @param deadline The time by which the whole search must finish
+     * @param merger The merger of the responses for the whole search
+     */
+    private void searchPart(final ServiceUser user,
+                            final int index,
+                            final List<SearchPart> parts,
+                            final PartCutOff cutOff,
+                            final long deadline,
+                            final SearchResponseMerger merger) {
+        final SearchPart part = parts.get(index);
+
+        // The search has run out of time before the part could be sent
+        final long startTime = System.currentTimeMillis();
+        if (startTime >= deadline) {
+            merger.incomplete();
+            return;
+        }
+
+        part.state.set(SearchPart.SENT);
+        Optional<SearchResponse> partResponse = Optional.empty();
+        try {
+            partResponse = sendPart(user, part, deadline);
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Search part " + part.request.getKey() + " failed", e);
+        } finally {
+            part.state.compareAndSet(SearchPart.SENT, SearchPart.DONE);
+        }
+        final long elapsed = System.currentTimeMillis() - startTime;
+
+        // A part that was cut off while it ran has been destroyed, so its response may be incomplete
+        if (!cutOff.isNeeded(index)) {
+            return;
+        }
+
+        // Parts that failed or ran out of time are timed too, or a data source that never answers would look fast
+        searchPlanner.record(part.docRef, elapsed);
+        if (partResponse.isPresent()) {
+            merger.response(partResponse.get());
+        } else {
+            merger.incomplete();
+        }
+
+        final int cut = cutOff.partComplete(index, partResponse.orElse(null));
+        for (int i = cut; i < parts.size(); i++) {
+            destroyPart(user, parts.get(i), "it cannot change the requested rows");
+        }
+    }
+
+    /**
+     * Make the call for a part of the search, waiting no longer than the time the search has left.
+     * The part is only given the time that is left, so the query resource can stop work on it in time too.
+     * @param user The user running the search
+     * @param part The part to send
+     * @param deadline The time by which the whole search must finish
+     * @return The response to the part, empty if it did not respond in time or responded with an error
+     */
+    private Optional<SearchResponse> sendPart(final ServiceUser user,
+                                              final SearchPart part,
+                                              final long deadline) {
+        final long remaining = Math.max(1, deadline - System.currentTimeMillis());
+        final SearchRequest request = withTimeout(part.request, remaining);
+        final CompletableFuture<Response> call = searchPartExecutor.call(() -> part.client.search(user, request));
+
+        final Response partHttpResponse;
+        try {
+            partHttpResponse = call.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            LOGGER.warn("Search part {} did not respond within {}ms", part.request.getKey(), remaining);
+            call.thenAccept(Response::close);
+            return Optional.empty();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            call.thenAccept(Response::close);
+            return Optional.empty();
+        } catch (final ExecutionException e) {
+            LOGGER.warn("Search part " + part.request.getKey() + " failed", e.getCause());
+            return Optional.empty();
+        }
+
+        if (partHttpResponse.getStatus() == HttpStatus.OK_200) {
+            try {
+                return Optional.of(partHttpResponse.readEntity(SearchResponse.class));
+            } catch (final RuntimeException e) {
+                partHttpResponse.close();
+                throw e;
             }
         }
 
-        return merger.merge();
+        LOGGER.warn("Invalid status returned by client {}", partHttpResponse.getStatus());
+        partHttpResponse.close();
+        return Optional.empty();
+    }
+
+    /**
+     * @return A copy of the request for a part that times out by the time given, if it does not already time out sooner
+     */
+    private static SearchRequest withTimeout(final SearchRequest request,
+                                             final long timeoutMillis) {
+        final SearchRequest.Builder builder = new SearchRequest.Builder()
+                .dateTimeLocale(request.getDateTimeLocale())
+                .incremental(request.incremental())
+                .timeout((null != request.getTimeout()) ? Math.min(request.getTimeout(), timeoutMillis) : timeoutMillis)
+                .query(request.getQuery());
+        if (null != request.getKey()) {
+            builder.key(request.getKey().getUuid());
+        }
+        request.getResultRequests().forEach(builder::addResultRequests);
+
+        return builder.build();
+    }
+
+    /**
+     * Called when the search has run out of time, the parts that have not returned will be missing from the
+     * response, so it is marked as incomplete and the parts still running are destroyed.
+     * @param user The user running the search
+     * @param parts All the parts of the search
+     * @param merger The merger of the responses for the whole search
+     */
+    private void stopParts(final ServiceUser user,
+                           final List<SearchPart> parts,
+                           final SearchResponseMerger merger) {
+        merger.incomplete();
+        parts.forEach(part -> destroyPart(user, part, "the search has stopped waiting for it"));
+    }
+
+    /**
+     * Destroy a part of the search once it has been sent, whether it is still running or has returned
+     * its response, as the query service holds on to its results either way. It is only destroyed once.
+     * @param user The user running the search
+     * @param part The part to destroy
+     * @param reason Why the part is no longer wanted, for the logs
+     */
+    private void destroyPart(final ServiceUser user,
+                             final SearchPart part,
+                             final String reason) {
+        final int state = part.state.get();
+        if ((null != part.request.getKey())
+                && ((state == SearchPart.SENT) || (state == SearchPart.DONE))
+                && part.state.compareAndSet(state, SearchPart.DESTROYED)) {
+            LOGGER.debug("Destroying search part {}, {}", part.request.getKey(), reason);
+            try {
+                final Response destroyResponse = part.client.destroy(user, part.request.getKey());
+                destroyResponse.close();
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Could not destroy search part " + part.request.getKey(), e);
+            }
+        }
     }
 
     @Override
     public Boolean destroy(final ServiceUser user,
                            final QueryKey queryKey) throws QueryApiException {
+        // No more parts are sent, and those already sent are destroyed in the services they were sent to
+        final ActiveSearch activeSearch = activeSearches.remove(queryKey);
+        if (null != activeSearch) {
+            activeSearch.stopped.set(true);
+            activeSearch.parts.forEach(part -> destroyPart(user, part, "the search has been destroyed"));
+        }
+
         return Boolean.TRUE;
     }
 
@@ -120,4 +390,39 @@ public class AutoIndexQueryServiceImpl implements QueryService {
                                                  final QueryKey queryKey) throws QueryApiException {
         return Optional.empty();
     }
+
+    /**
+     * The parts of a search that is still running, the workers stop taking parts once it is stopped.
+     */
+    private static class ActiveSearch {
+        private final List<SearchPart> parts;
+        private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        private ActiveSearch(final List<SearchPart> parts) {
+            this.parts = parts;
+        }
+    }
+
+    private static class SearchPart {
+        private static final int WAITING = 0;
+        private static final int SENT = 1;
+        private static final int DONE = 2;
+        private static final int DESTROYED = 3;
+
+        private final QueryResource client;
+        private final DocRef docRef;
+        private final TrackerWindow window;
+        private final SearchRequest request;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private SearchPart(final QueryResource client,
+                           final DocRef docRef,
+                           final TrackerWindow window,
+                           final SearchRequest request) {
+            this.client = client;
+            this.docRef = docRef;
+            this.window = window;
+            this.request = request;
+        }
+    }
 }
@@ -0,0 +1,185 @@
+package stroom.autoindex.service;
+
+import stroom.autoindex.tracker.TrackerWindow;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.FlatResult;
+import stroom.query.api.v2.OffsetRange;
+import stroom.query.api.v2.Result;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.SearchResponse;
+import stroom.query.api.v2.Sort;
+import stroom.query.api.v2.TableResult;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Works out when the parts of a split search that are still outstanding can no longer change the requested rows.
+ *
+ * The windows of a split search never overlap, so when every table is sorted on the time field first, and nothing
+ * is grouped, all the rows from one window come before all the rows from the next in the order of the sort.
+ * If the parts are sent in that order, then as soon as the earliest parts have returned all the rows needed for
+ * the requested range, the rest can be cancelled. A query for the latest rows is then answered by the most recent
+ * windows alone.
+ */
+class PartCutOff {
+    private final long rowsNeeded;
+    private final Comparator<TrackerWindow> windowOrder;
+    private final Set<String> componentIds;
+
+    private long[] rowCounts = new long[0];
+    private int cut = Integer.MAX_VALUE;
+
+    private PartCutOff(final long rowsNeeded,
+                       final Comparator<TrackerWindow> windowOrder,
+                       final Set<String> componentIds) {
+        this.rowsNeeded = rowsNeeded;
+        this.windowOrder = windowOrder;
+        this.componentIds = componentIds;
+    }
+
+    /**
+     * Plan the cut off for a search.
+     * @param request The original search request
+     * @param timeFieldName The name of the field the search is split on
+     * @return The cut off, which never cuts anything off if the requested rows could come from any window
+     */
+    static PartCutOff forRequest(final SearchRequest request,
+                                 final String timeFieldName) {
+        final String timeFieldExpression = String.format("${%s}", timeFieldName);
+        final List<ResultRequest> resultRequests = request.getResultRequests();
+        if ((null == resultRequests) || resultRequests.isEmpty()) {
+            return never();
+        }
+
+        Sort.SortDirection direction = null;
+        long rowsNeeded = 0;
+        for (final ResultRequest resultRequest : resultRequests) {
+            final OffsetRange range = resultRequest.getRequestedRange();
+            if ((null == range) || (null == range.getOffset()) || (null == range.getLength())
+                    || (null == resultRequest.getMappings()) || resultRequest.getMappings().isEmpty()) {
+                return never();
+            }
+
+            final List<Field> fields = resultRequest.getMappings().get(0).getFields();
+            if ((null == fields) || fields.stream().anyMatch(f -> null != f.getGroup())) {
+                return never();
+            }
+
+            final Optional<Field> primarySort = fields.stream()
+                    .filter(f -> null != f.getSort())
+                    .min(Comparator.comparing(f -> null != f.getSort().getOrder() ? f.getSort().getOrder() : Integer.MAX_VALUE));
+            if (!primarySort.isPresent()
+                    || (null == primarySort.get().getExpression())
+                    || !timeFieldExpression.equals(primarySort.get().getExpression().trim())) {
+                return never();
+            }
+
+            final Sort.SortDirection fieldDirection = Optional.ofNullable(primarySort.get().getSort().getDirection())
+                    .orElse(Sort.SortDirection.ASCENDING);
+            if ((null != direction) && !direction.equals(fieldDirection)) {
+                return never();
+            }
+            direction = fieldDirection;
+            rowsNeeded = Math.max(rowsNeeded, range.getOffset() + range.getLength());
+        }
+
+        final Comparator<TrackerWindow> windowOrder = Sort.SortDirection.DESCENDING.equals(direction)
+                ? Comparator.comparing(TrackerWindow::getTo).reversed()
+                : Comparator.comparing(TrackerWindow::getFrom);
+
+        return new PartCutOff(rowsNeeded,
+                windowOrder,
+                resultRequests.stream().map(ResultRequest::getComponentId).collect(Collectors.toSet()));
+    }
+
+    private static PartCutOff never() {
+        return new PartCutOff(Long.MAX_VALUE, null, null);
+    }
+
+    /**
+     * @return The order to send the parts in, by the window each one covers. Empty if the order does not matter.
+     */
+    Optional<Comparator<TrackerWindow>> getWindowOrder() {
+        return Optional.ofNullable(windowOrder);
+    }
+
+    /**
+     * Called once the parts have been put in the order they will be sent.
+     * @param partCount The number of parts
+     */
+    synchronized void start(final int partCount) {
+        this.rowCounts = new long[partCount];
+        Arrays.fill(rowCounts, -1);
+        this.cut = partCount;
+    }
+
+    /**
+     * @param index The position of a part in the order they are sent
+     * @return If the part may still have rows that fall within the requested range
+     */
+    synchronized boolean isNeeded(final int index) {
+        return index < cut;
+    }
+
+    /**
+     * Record the response to a part, and cut off any later parts that are no longer needed.
+     * @param index The position of the part in the order they are sent
+     * @param response The response, or null if the part failed
+     * @return The number of parts still needed, any parts at or beyond this position can be cancelled
+     */
+    synchronized int partComplete(final int index,
+                                  final SearchResponse response) {
+        // The rows of a failed part are missing, so nothing after it can be cut off on the strength of the rest
+        if ((null == windowOrder) || (index >= rowCounts.length) || (null == response)) {
+            return cut;
+        }
+
+        rowCounts[index] = countRows(response);
+
+        // Once every part up to some point has returned, the rows they hold come before those of any later part
+        long rowsFound = 0;
+        for (int i = 0; (i < cut) && (rowCounts[i] >= 0); i++) {
+            rowsFound += rowCounts[i];
+            if (rowsFound >= rowsNeeded) {
+                cut = i + 1;
+                break;
+            }
+        }
+
+        return cut;
+    }
+
+    /**
+     * @return The fewest rows returned for any of the requested components
+     */
+    private long countRows(final SearchResponse response) {
+        if (null == response.getResults()) {
+            return 0;
+        }
+
+        return componentIds.stream()
+                .mapToLong(componentId -> response.getResults().stream()
+                        .filter(r -> Objects.equals(componentId, r.getComponentId()))
+                        .findFirst()
+                        .map(PartCutOff::countResultRows)
+                        .orElse(0L))
+                .min()
+                .orElse(0L);
+    }
+
+    private static long countResultRows(final Result result) {
+        if ((result instanceof TableResult) && (null != ((TableResult) result).getRows())) {
+            return ((TableResult) result).getRows().size();
+        } else if ((result instanceof FlatResult) && (null != ((FlatResult) result).getValues())) {
+            return ((FlatResult) result).getValues().size();
+        }
+        return 0;
+    }
+}
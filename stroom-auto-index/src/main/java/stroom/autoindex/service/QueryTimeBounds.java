@@ -0,0 +1,176 @@
+package stroom.autoindex.service;
+
+import stroom.autoindex.TimeUtils;
+import stroom.autoindex.tracker.TrackerWindow;
+import stroom.query.api.v2.ExpressionItem;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm;
+
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * The range of time that a query can match, worked out from the terms it places on the time field.
+ *
+ * Only the terms that every result must satisfy are used, those joined by AND from the top of the expression.
+ * Anything beneath an OR or NOT could match any time, so it leaves the range open. The range is in epoch seconds,
+ * like the tracker windows, and errs on the side of being too wide, so it can be used to skip windows that cannot
+ * hold any results without ever skipping one that might.
+ */
+class QueryTimeBounds {
+    private static final QueryTimeBounds UNBOUNDED = new QueryTimeBounds(null, null);
+
+    private final Long from;
+    private final Long to;
+
+    private QueryTimeBounds(final Long from,
+                            final Long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return A range that does not restrict the time at all
+     */
+    static QueryTimeBounds unbounded() {
+        return UNBOUNDED;
+    }
+
+    /**
+     * Find the range of time a query can match.
+     * @param expression The expression of the query
+     * @param timeFieldName The name of the time field of the auto index
+     * @return The range, which is open at either end if there is no bound at that end
+     */
+    static QueryTimeBounds fromExpression(final ExpressionItem expression,
+                                          final String timeFieldName) {
+        if ((null == expression) || !expression.enabled() || (null == timeFieldName)) {
+            return UNBOUNDED;
+        }
+
+        if (expression instanceof ExpressionTerm) {
+            return fromTerm((ExpressionTerm) expression, timeFieldName);
+        } else if ((expression instanceof ExpressionOperator)
+                && ExpressionOperator.Op.AND.equals(((ExpressionOperator) expression).getOp())
+                && (null != ((ExpressionOperator) expression).getChildren())) {
+            // Each restriction of an AND must hold, so the range is narrowed by each of them
+            return ((ExpressionOperator) expression).getChildren().stream()
+                    .map(child -> fromExpression(child, timeFieldName))
+                    .reduce(UNBOUNDED, QueryTimeBounds::narrow);
+        }
+
+        return UNBOUNDED;
+    }
+
+    private static QueryTimeBounds fromTerm(final ExpressionTerm term,
+                                            final String timeFieldName) {
+        if (!timeFieldName.equals(term.getField()) || (null == term.getValue()) || (null == term.getCondition())) {
+            return UNBOUNDED;
+        }
+
+        // Upper bounds are moved on a second, so times with a fraction of a second are never cut off
+        switch (term.getCondition()) {
+            case EQUALS: {
+                final Optional<Long> value = toEpochSeconds(term.getValue());
+                return new QueryTimeBounds(value.orElse(null), value.map(v -> v + 1).orElse(null));
+            }
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUAL_TO:
+                return new QueryTimeBounds(toEpochSeconds(term.getValue()).orElse(null), null);
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUAL_TO:
+                return new QueryTimeBounds(null, toEpochSeconds(term.getValue()).map(v -> v + 1).orElse(null));
+            case BETWEEN: {
+                final String[] parts = term.getValue().split(",");
+                if (parts.length != 2) {
+                    return UNBOUNDED;
+                }
+                return new QueryTimeBounds(toEpochSeconds(parts[0]).orElse(null),
+                        toEpochSeconds(parts[1]).map(v -> v + 1).orElse(null));
+            }
+            default:
+                return UNBOUNDED;
+        }
+    }
+
+    /**
+     * Time values are either epoch seconds, as used in the tracker windows, or ISO date times.
+     */
+    private static Optional<Long> toEpochSeconds(final String value) {
+        final String trimmed = value.trim();
+        try {
+            return Optional.of(Long.valueOf(trimmed));
+        } catch (final NumberFormatException e) {
+            // try the date formats
+        }
+        try {
+            return Optional.of(OffsetDateTime.parse(trimmed, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toEpochSecond());
+        } catch (final DateTimeParseException e) {
+            // try without an offset
+        }
+        try {
+            return Optional.of(TimeUtils.getEpochSeconds(LocalDateTime.parse(trimmed, DateTimeFormatter.ISO_LOCAL_DATE_TIME)));
+        } catch (final DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    private QueryTimeBounds narrow(final QueryTimeBounds other) {
+        final Long narrowFrom = (null == from) ? other.from : ((null == other.from) ? from : Math.max(from, other.from));
+        final Long narrowTo = (null == to) ? other.to : ((null == other.to) ? to : Math.min(to, other.to));
+        return new QueryTimeBounds(narrowFrom, narrowTo);
+    }
+
+    /**
+     * @return If the query restricts the time at either end
+     */
+    boolean isBounded() {
+        return (null != from) || (null != to);
+    }
+
+    /**
+     * Trim a window to the range of the query.
+     * @param window The window of a tracker
+     * @return The part of the window the query can match, empty if there is none
+     */
+    Optional<TrackerWindow> intersect(final TrackerWindow window) {
+        if (!window.isBound()) {
+            return Optional.empty();
+        }
+
+        final long intersectFrom = (null != from) ? Math.max(from, window.getFrom()) : window.getFrom();
+        final long intersectTo = (null != to) ? Math.min(to, window.getTo()) : window.getTo();
+        if (intersectFrom >= intersectTo) {
+            return Optional.empty();
+        }
+
+        return Optional.of(TrackerWindow.from(intersectFrom).to(intersectTo));
+    }
+
+    /**
+     * Trim all the windows of a tracker to the range of the query, dropping those the query cannot match.
+     * @param windows The windows of a tracker
+     * @return The parts of the windows the query can match
+     */
+    List<TrackerWindow> intersect(final List<TrackerWindow> windows) {
+        return windows.stream()
+                .map(this::intersect)
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("QueryTimeBounds{");
+        sb.append("from=").append(from);
+        sb.append(", to=").append(to);
+        sb.append('}');
+        return sb.toString();
+    }
+}
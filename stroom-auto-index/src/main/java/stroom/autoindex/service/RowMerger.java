@@ -0,0 +1,634 @@
+package stroom.autoindex.service;
+
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Sort;
+import stroom.query.api.v2.TableSettings;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Merges the rows of a single table, as returned by each part of a split search.
+ *
+ * Each part has already sorted its rows with the sort of the table, so rows that are not grouped are
+ * combined with a k-way merge that stops once enough rows have been found for the requested range.
+ * Groups that appear in several parts are combined into one row by re-applying the aggregate function of each
+ * field, which can move the group, so grouped rows are sorted again once they have all been combined.
+ *
+ * An average cannot be worked out from the averages of each part, so the parts of a grouped table are asked for
+ * the sum in its place along with a count of the rows in each group (see {@link #forParts(TableSettings)}).
+ * The average is only worked out once the groups have been combined. Values that cannot be combined are
+ * kept from the first part, and their fields reported by {@link #getApproximateFields()}.
+ */
+class RowMerger {
+    private static final Pattern FUNCTION = Pattern.compile("^\\s*(\\w+)\\s*\\(");
+    private static final Pattern AVERAGE = Pattern.compile("^\\s*(?:average|mean)\\s*\\((.*)\\)\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern GROUPED_NUMBER = Pattern.compile("^-?\\d{1,3}(,\\d{3})+(\\.\\d+)?$");
+
+    private static final String SUM = "sum";
+    private static final String COUNT_GROUPS = "countgroups";
+
+    /**
+     * The column added to the parts of a grouped table with averages, it holds the number of rows in each group.
+     */
+    static final String PART_COUNT_NAME = "__partCount";
+    private static final Field PART_COUNT = new Field.Builder()
+            .name(PART_COUNT_NAME)
+            .expression("count()")
+            .build();
+
+    private final List<Field> fields;
+    private final List<String> functions;
+    private final Comparator<Row> comparator;
+    private final boolean grouped;
+    private final int countIndex;
+    private final Set<String> approximateFields = new LinkedHashSet<>();
+    private long combinedCount = 0;
+
+    /**
+     * @param fields The fields of the table as sent to the parts (see {@link #partFields(List)}),
+     *               in the order of the values in each row. A null entry is used for a column that does not
+     *               come from a field.
+     */
+    RowMerger(final List<Field> fields) {
+        this.fields = fields;
+        this.grouped = isGrouped(fields);
+        this.comparator = createComparator(fields).orElse(null);
+        this.countIndex = IntStream.range(0, fields.size())
+                .filter(i -> (null != fields.get(i)) && PART_COUNT_NAME.equals(fields.get(i).getName()))
+                .findFirst()
+                .orElse(-1);
+
+        // The parts send the sum of each average, which is combined like any other sum
+        this.functions = new ArrayList<>();
+        fields.forEach(field -> functions.add(((countIndex >= 0) && isPartAverage(field)) ? SUM : getFunction(field)));
+    }
+
+    /**
+     * Rewrite the settings of a table for the parts of a split search.
+     * The averages of a grouped table are sent as sums, with a count of the rows in each group added as the last
+     * column, so the averages can be worked out once the groups from every part are combined.
+     * @param tableSettings The settings of the table in the original request
+     * @return The settings to send to each part
+     */
+    static TableSettings forParts(final TableSettings tableSettings) {
+        final List<Field> fields = tableSettings.getFields();
+        if ((null == fields) || !needsPartCount(fields)) {
+            return tableSettings;
+        }
+
+        final TableSettings.Builder builder = new TableSettings.Builder()
+                .queryId(tableSettings.getQueryId())
+                .extractValues(tableSettings.getExtractValues())
+                .extractionPipeline(tableSettings.getExtractionPipeline())
+                .showDetail(tableSettings.getShowDetail());
+        fields.forEach(field -> builder.addFields(isPartAverage(field) ? sumOf(field) : field));
+        builder.addFields(PART_COUNT);
+        if (null != tableSettings.getMaxResults()) {
+            tableSettings.getMaxResults().forEach(builder::addMaxResults);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @param fields The fields of the table in the original request
+     * @return The fields of the columns returned by each part, as rewritten by {@link #forParts(TableSettings)}
+     */
+    static List<Field> partFields(final List<Field> fields) {
+        if (!needsPartCount(fields)) {
+            return fields;
+        }
+
+        final List<Field> partFields = new ArrayList<>(fields);
+        partFields.add(PART_COUNT);
+        return partFields;
+    }
+
+    /**
+     * Merge the rows from each part of the search.
+     * @param partRows The top level rows from each part, in the order they were returned
+     * @param limit The number of top level rows needed, rows that are not grouped are not merged beyond this
+     * @return The merged top level rows, in the order of the table sort
+     */
+    List<Row> merge(final List<List<Row>> partRows,
+                    final long limit) {
+        if (grouped) {
+            final List<Row> rows = combine(partRows.stream()
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList()));
+            if (countIndex >= 0) {
+                finishAverages(rows);
+            }
+            sort(rows);
+            return rows;
+        }
+
+        return kWayMerge(partRows, limit);
+    }
+
+    /**
+     * @return The number of rows that were combined into groups already returned by another part.
+     * Each part counts these rows in its total, so this is taken off the sum of the part totals.
+     */
+    long getCombinedCount() {
+        return combinedCount;
+    }
+
+    /**
+     * @return The names of the fields with values that could not be combined from the parts, so are not exact
+     */
+    Set<String> getApproximateFields() {
+        return Collections.unmodifiableSet(approximateFields);
+    }
+
+    private List<Row> kWayMerge(final List<List<Row>> partRows,
+                                final long limit) {
+        final List<Row> merged = new ArrayList<>();
+
+        if (null == comparator) {
+            // There is no order to keep, so the parts are taken in the order they were sent
+            partRows.stream()
+                    .flatMap(List::stream)
+                    .limit(limit)
+                    .forEach(merged::add);
+            return merged;
+        }
+
+        // Ties are taken from the earliest part, so the merge is stable
+        final PriorityQueue<Cursor> heads = new PriorityQueue<>(Math.max(1, partRows.size()),
+                Comparator.comparing((Cursor c) -> c.head(), comparator)
+                        .thenComparingInt(c -> c.part));
+        IntStream.range(0, partRows.size())
+                .mapToObj(i -> new Cursor(i, partRows.get(i)))
+                .filter(Cursor::hasHead)
+                .forEach(heads::add);
+
+        while (!heads.isEmpty() && (merged.size() < limit)) {
+            final Cursor cursor = heads.poll();
+            merged.add(cursor.head());
+            cursor.position++;
+            if (cursor.hasHead()) {
+                heads.add(cursor);
+            }
+        }
+
+        return merged;
+    }
+
+    private List<Row> combine(final List<Row> rows) {
+        final Map<String, Row> byKey = new LinkedHashMap<>();
+        final List<Row> combined = new ArrayList<>();
+
+        rows.forEach(row -> {
+            if (null == row.key) {
+                combined.add(row);
+                return;
+            }
+
+            final Row existing = byKey.get(row.key);
+            if (null == existing) {
+                final Row copy = new Row(row.key, row.depth, new ArrayList<>(row.values));
+                copy.children.addAll(row.children);
+                byKey.put(row.key, copy);
+                combined.add(copy);
+            } else {
+                combinedCount++;
+                existing.combined = true;
+                for (int i = 0; (i < existing.values.size()) && (i < row.values.size()); i++) {
+                    final String function = (i < functions.size()) ? functions.get(i) : null;
+                    final Optional<Object> value = aggregate(function, existing.values.get(i), row.values.get(i));
+                    if (value.isPresent()) {
+                        existing.values.set(i, value.get());
+                    } else if (!COUNT_GROUPS.equals(function)) {
+                        markApproximate(i);
+                    }
+                }
+                existing.children.addAll(row.children);
+            }
+        });
+
+        // The children of each group may have come from several parts too
+        combined.forEach(row -> {
+            if (!row.children.isEmpty()) {
+                final List<Row> children = combine(row.children);
+                row.children.clear();
+                row.children.addAll(children);
+            }
+
+            if (row.combined) {
+                countGroups(row);
+            }
+        });
+
+        return combined;
+    }
+
+    /**
+     * The number of groups beneath a combined group can only be counted again if its children were returned.
+     */
+    private void countGroups(final Row row) {
+        for (int i = 0; (i < functions.size()) && (i < row.values.size()); i++) {
+            if (COUNT_GROUPS.equals(functions.get(i))) {
+                if (row.children.isEmpty()) {
+                    if (null != row.values.get(i)) {
+                        markApproximate(i);
+                    }
+                } else {
+                    row.values.set(i, (row.values.get(i) instanceof String)
+                            ? Integer.toString(row.children.size())
+                            : (Object) (long) row.children.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Divide the sum sent in place of each average by the count of rows in the group, then drop the count.
+     */
+    private void finishAverages(final List<Row> rows) {
+        rows.forEach(row -> {
+            final Object count = row.getValue(countIndex);
+            for (int i = 0; (i < functions.size()) && (i < row.values.size()); i++) {
+                if (isPartAverage(fields.get(i))) {
+                    final Object sum = row.values.get(i);
+                    final Optional<Object> average = average(sum, count);
+                    if (average.isPresent()) {
+                        row.values.set(i, average.get());
+                    } else if (null != sum) {
+                        row.values.set(i, null);
+                        markApproximate(i);
+                    }
+                }
+            }
+            if (countIndex < row.values.size()) {
+                row.values.remove(countIndex);
+            }
+
+            finishAverages(row.children);
+        });
+    }
+
+    private void markApproximate(final int index) {
+        final Field field = fields.get(index);
+        approximateFields.add((null != field) ? field.getName() : Integer.toString(index));
+    }
+
+    private void sort(final List<Row> rows) {
+        if (null != comparator) {
+            rows.sort(comparator);
+        }
+        rows.forEach(row -> sort(row.children));
+    }
+
+    private static Optional<Comparator<Row>> createComparator(final List<Field> fields) {
+        return IntStream.range(0, fields.size())
+                .filter(i -> (null != fields.get(i)) && (null != fields.get(i).getSort()))
+                .boxed()
+                .sorted(Comparator.comparing(i -> {
+                    final Integer order = fields.get(i).getSort().getOrder();
+                    return null != order ? order : Integer.MAX_VALUE;
+                }))
+                .map(i -> {
+                    final Comparator<Row> byValue = (a, b) -> compareValues(a.getValue(i), b.getValue(i));
+                    return Sort.SortDirection.DESCENDING.equals(fields.get(i).getSort().getDirection())
+                            ? byValue.reversed()
+                            : byValue;
+                })
+                .reduce(Comparator::thenComparing);
+    }
+
+    /**
+     * Compare two values from the same column, numbers are compared as numbers and anything else as text.
+     * Missing values are sorted last.
+     */
+    static int compareValues(final Object a, final Object b) {
+        if (null == a) {
+            return (null == b) ? 0 : 1;
+        } else if (null == b) {
+            return -1;
+        }
+
+        final Optional<BigDecimal> aNumber = toNumber(a);
+        final Optional<BigDecimal> bNumber = toNumber(b);
+        if (aNumber.isPresent() && bNumber.isPresent()) {
+            return aNumber.get().compareTo(bNumber.get());
+        }
+
+        return a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * Combine the values of a field for a group that was found by more than one part.
+     * Counts and sums are added and minimums and maximums are compared. Anything else can only be kept if
+     * every part found the same value. Numbers are read with or without grouping separators.
+     * @param function The name of the aggregate function of the field, in lower case, null if there is none
+     * @param a The value found first
+     * @param b The value found in a later part
+     * @return The combined value, empty if it cannot be worked out from the values of each part
+     */
+    static Optional<Object> aggregate(final String function,
+                                      final Object a,
+                                      final Object b) {
+        if (null == a) {
+            return Optional.ofNullable(b);
+        } else if (null == b) {
+            return Optional.of(a);
+        }
+
+        switch (null != function ? function : "") {
+            case "count":
+            case SUM:
+                return add(a, b);
+            case "min":
+                return Optional.of((compareValues(a, b) <= 0) ? a : b);
+            case "max":
+                return Optional.of((compareValues(a, b) >= 0) ? a : b);
+            default:
+                return Objects.equals(a.toString(), b.toString()) ? Optional.of(a) : Optional.empty();
+        }
+    }
+
+    private static Optional<Object> add(final Object a,
+                                        final Object b) {
+        final Optional<BigDecimal> aNumber = toNumber(a);
+        final Optional<BigDecimal> bNumber = toNumber(b);
+        if (!aNumber.isPresent() || !bNumber.isPresent()) {
+            return Optional.empty();
+        }
+
+        final BigDecimal sum = aNumber.get().add(bNumber.get());
+        if (a instanceof String) {
+            return Optional.of(formatLike(sum, a, b));
+        } else if ((a instanceof Double) || (a instanceof Float) || (b instanceof Double) || (b instanceof Float)) {
+            return Optional.of(sum.doubleValue());
+        } else {
+            return Optional.of(sum.longValue());
+        }
+    }
+
+    /**
+     * @param sum The sum of the values of a field over a group
+     * @param count The number of rows in the group
+     * @return The average, empty if either value is not a number or there were no rows
+     */
+    static Optional<Object> average(final Object sum,
+                                    final Object count) {
+        if ((null == sum) || (null == count)) {
+            return Optional.empty();
+        }
+
+        final Optional<BigDecimal> sumNumber = toNumber(sum);
+        final Optional<BigDecimal> countNumber = toNumber(count);
+        if (!sumNumber.isPresent() || !countNumber.isPresent() || (countNumber.get().signum() == 0)) {
+            return Optional.empty();
+        }
+
+        BigDecimal average = sumNumber.get().divide(countNumber.get(), MathContext.DECIMAL64);
+        if (!(sum instanceof String)) {
+            return Optional.of(average.doubleValue());
+        }
+
+        // A sum formatted to some decimal places gives an average to the same places
+        average = (sumNumber.get().scale() > 0)
+                ? average.setScale(sumNumber.get().scale(), RoundingMode.HALF_UP)
+                : average.stripTrailingZeros();
+        return Optional.of(formatLike(average, sum, sum));
+    }
+
+    /**
+     * Write a number the way the values it came from were written, with grouping separators if either had them.
+     */
+    private static String formatLike(final BigDecimal number,
+                                     final Object a,
+                                     final Object b) {
+        if (!hasGrouping(a) && !hasGrouping(b)) {
+            return number.toPlainString();
+        }
+
+        final DecimalFormat format = new DecimalFormat("#,##0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+        format.setMinimumFractionDigits(Math.max(0, number.scale()));
+        format.setMaximumFractionDigits(Math.max(0, number.scale()));
+        return format.format(number);
+    }
+
+    private static boolean hasGrouping(final Object value) {
+        return (value instanceof String) && GROUPED_NUMBER.matcher(((String) value).trim()).matches();
+    }
+
+    private static Optional<BigDecimal> toNumber(final Object value) {
+        if (value instanceof Number) {
+            return Optional.of(new BigDecimal(value.toString()));
+        }
+
+        final String text = hasGrouping(value)
+                ? value.toString().trim().replace(",", "")
+                : value.toString().trim();
+        try {
+            return Optional.of(new BigDecimal(text));
+        } catch (final NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static String getFunction(final Field field) {
+        if ((null == field) || (null == field.getExpression())) {
+            return null;
+        }
+
+        final Matcher matcher = FUNCTION.matcher(field.getExpression());
+        return matcher.find() ? matcher.group(1).toLowerCase(Locale.ENGLISH) : null;
+    }
+
+    private static boolean isGrouped(final List<Field> fields) {
+        return fields.stream().filter(Objects::nonNull).anyMatch(f -> null != f.getGroup());
+    }
+
+    private static boolean needsPartCount(final List<Field> fields) {
+        return isGrouped(fields) && fields.stream().anyMatch(RowMerger::isPartAverage);
+    }
+
+    /**
+     * @return True if the field is an average that the parts are asked to send as a sum. An average that is
+     * filtered on is left alone, as the parts would filter on the sum.
+     */
+    private static boolean isPartAverage(final Field field) {
+        if ((null == field) || (null == field.getExpression()) || (null != field.getFilter())) {
+            return false;
+        }
+
+        final Matcher matcher = AVERAGE.matcher(field.getExpression());
+        return matcher.matches() && isBalanced(matcher.group(1));
+    }
+
+    private static Field sumOf(final Field field) {
+        final Matcher matcher = AVERAGE.matcher(field.getExpression());
+        if (!matcher.matches()) {
+            return field;
+        }
+
+        return new Field.Builder()
+                .id(field.getId())
+                .name(field.getName())
+                .expression(String.format("sum(%s)", matcher.group(1)))
+                .sort(field.getSort())
+                .format(field.getFormat())
+                .group(field.getGroup())
+                .build();
+    }
+
+    /**
+     * @return True if the brackets of an argument list are balanced, so the average wraps the whole expression
+     */
+    private static boolean isBalanced(final String arguments) {
+        int depth = 0;
+        for (final char c : arguments.toCharArray()) {
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && (--depth < 0)) {
+                return false;
+            }
+        }
+        return depth == 0;
+    }
+
+    /**
+     * Build the tree of rows from the flat list returned in a result, where each child follows its parent
+     * and is one level deeper.
+     * @param rows The rows in the order returned
+     * @return The top level rows
+     */
+    static List<Row> toTree(final List<Row> rows) {
+        final List<Row> topLevel = new ArrayList<>();
+        final List<Row> parents = new ArrayList<>();
+
+        rows.forEach(row -> {
+            while (parents.size() > row.depth) {
+                parents.remove(parents.size() - 1);
+            }
+
+            if (parents.isEmpty()) {
+                topLevel.add(row);
+            } else {
+                parents.get(parents.size() - 1).children.add(row);
+            }
+            parents.add(row);
+        });
+
+        return topLevel;
+    }
+
+    /**
+     * Flatten the tree of rows back into the order they are shown, skipping rows before the offset.
+     * @param rows The top level rows
+     * @param offset The number of rows to skip
+     * @param length The number of rows to keep
+     * @param consumer Given each row kept, along with the row of its parent
+     */
+    static void page(final List<Row> rows,
+                     final long offset,
+                     final long length,
+                     final RowConsumer consumer) {
+        final long end = (length > Long.MAX_VALUE - offset) ? Long.MAX_VALUE : offset + length;
+        page(null, rows, offset, end, new long[]{0}, consumer);
+    }
+
+    private static void page(final Row parent,
+                             final List<Row> rows,
+                             final long offset,
+                             final long end,
+                             final long[] position,
+                             final RowConsumer consumer) {
+        for (final Row row : rows) {
+            if (position[0] >= end) {
+                return;
+            }
+            if (position[0] >= offset) {
+                consumer.accept(parent, row);
+            }
+            position[0]++;
+
+            page(row, row.children, offset, end, position, consumer);
+        }
+    }
+
+    @FunctionalInterface
+    interface RowConsumer {
+        void accept(Row parent, Row row);
+    }
+
+    /**
+     * A row of a table along with the rows grouped beneath it.
+     */
+    static class Row {
+        private final String key;
+        private final int depth;
+        private final List<Object> values;
+        private final List<Row> children = new ArrayList<>();
+        private boolean combined = false;
+
+        Row(final String key,
+            final int depth,
+            final List<Object> values) {
+            this.key = key;
+            this.depth = depth;
+            this.values = values;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        int getDepth() {
+            return depth;
+        }
+
+        List<Object> getValues() {
+            return values;
+        }
+
+        private Object getValue(final int index) {
+            return (index < values.size()) ? values.get(index) : null;
+        }
+    }
+
+    private static class Cursor {
+        private final int part;
+        private final List<Row> rows;
+        private int position = 0;
+
+        private Cursor(final int part,
+                       final List<Row> rows) {
+            this.part = part;
+            this.rows = rows;
+        }
+
+        private boolean hasHead() {
+            return position < rows.size();
+        }
+
+        private Row head() {
+            return rows.get(position);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package stroom.autoindex.service;
+
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.autoindex.app.Config;
+import stroom.autoindex.app.SearchConfig;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The thread pool that the parts of split searches are sent from.
+ *
+ * It is shared by every query, so the number of part searches in flight against the underlying
+ * query resources is bounded however many auto index queries arrive at once.
+ *
+ * The blocking calls to the query resources are made on threads of their own, so the thread sending a part
+ * can stop waiting once the search runs out of time, rather than being held until the call returns.
+ */
+@Singleton
+public class SearchPartExecutor implements Executor, Managed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchPartExecutor.class);
+
+    private final SearchConfig searchConfig;
+
+    private final ExecutorService executorService;
+
+    private final ExecutorService callExecutorService;
+
+    @Inject
+    public SearchPartExecutor(final Config config) {
+        this.searchConfig = config.getSearchConfig();
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ThreadFactory threadFactory = r -> {
+            final Thread thread = new Thread(r, String.format("search-part-%d", threadNumber.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executorService = Executors.newFixedThreadPool(searchConfig.getPartThreads(), threadFactory);
+
+        final AtomicInteger callThreadNumber = new AtomicInteger();
+        this.callExecutorService = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, String.format("search-part-call-%d", callThreadNumber.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return The configuration for searches
+     */
+    public SearchConfig getSearchConfig() {
+        return searchConfig;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        executorService.execute(command);
+    }
+
+    /**
+     * Make a blocking call to a query resource on a thread of its own.
+     * A call that is no longer waited for holds its thread until the query resource responds,
+     * destroying the part asks the query resource to finish early.
+     * @param call The call to make
+     * @param <T> The type returned by the call
+     * @return A future for the result of the call
+     */
+    public <T> CompletableFuture<T> call(final Supplier<T> call) {
+        return CompletableFuture.supplyAsync(call, callExecutorService);
+    }
+
+    @Override
+    public void start() throws Exception {
+
+    }
+
+    @Override
+    public void stop() throws Exception {
+        LOGGER.info("Stopping Search Part Executor");
+        executorService.shutdownNow();
+        callExecutorService.shutdownNow();
+        executorService.awaitTermination(5, TimeUnit.SECONDS);
+        callExecutorService.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
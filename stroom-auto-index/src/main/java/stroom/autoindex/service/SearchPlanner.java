@@ -0,0 +1,138 @@
+package stroom.autoindex.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.autoindex.app.Config;
+import stroom.autoindex.app.SearchConfig;
+import stroom.query.api.v2.DocRef;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which parts of a split search are worth sending, based on how long each data source has been taking.
+ *
+ * The time taken by every part is recorded against its data source, including parts that fail or run out of time,
+ * which are recorded as the time spent waiting for them. If the parts for the raw data source would
+ * not be expected to finish before the search times out, they are not sent. The search returns what the indexed
+ * data source holds and is marked as incomplete, so it is asked for again later, when indexing may have caught up.
+ * Latencies that have not been refreshed for a while are forgotten, so a slow data source is tried again in time.
+ */
+@Singleton
+public class SearchPlanner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchPlanner.class);
+
+    /**
+     * The weight given to each new latency, against the average of those before it
+     */
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private final SearchConfig searchConfig;
+
+    private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<>();
+
+    @Inject
+    public SearchPlanner(final Config config) {
+        this.searchConfig = config.getSearchConfig();
+    }
+
+    /**
+     * Record the time taken for a part of a search.
+     * @param docRef The data source the part was sent to
+     * @param millis The time taken to respond, or the time waited before giving up on the part
+     */
+    void record(final DocRef docRef,
+                final long millis) {
+        latencies.compute(docRef.getUuid(), (uuid, existing) -> (null == existing)
+                ? new Latency(millis)
+                : existing.update(millis));
+    }
+
+    /**
+     * @param docRef A data source
+     * @return The expected time for a part of a search against the data source, if it has been searched lately
+     */
+    Optional<Long> estimate(final DocRef docRef) {
+        final long expiry = TimeUnit.SECONDS.toMillis(searchConfig.getLatencyExpirySeconds());
+        return Optional.ofNullable(latencies.get(docRef.getUuid()))
+                .filter(l -> (System.currentTimeMillis() - l.updated) < expiry)
+                .map(l -> Math.round(l.average));
+    }
+
+    /**
+     * Choose the parts of a split search to send.
+     * @param splitSearchRequest The split search
+     * @param rawDocRef The raw data source of the auto index
+     * @param timeoutMillis The time allowed for the whole search
+     * @return The plan for the search
+     */
+    Plan plan(final SplitSearchRequest splitSearchRequest,
+              final DocRef rawDocRef,
+              final long timeoutMillis) {
+        final List<SplitSearchRequest.Part> rawParts = splitSearchRequest.getParts().stream()
+                .filter(p -> rawDocRef.equals(p.getDocRef()))
+                .collect(Collectors.toList());
+        // There is no point leaving out the raw parts if there is nothing else to search
+        if (rawParts.isEmpty() || (rawParts.size() == splitSearchRequest.getParts().size())) {
+            return new Plan(splitSearchRequest.getParts(), false);
+        }
+
+        // The parts run a limited number at a time, so the raw search takes as long as each round of them
+        final Optional<Long> rawEstimate = estimate(rawDocRef)
+                .map(perPart -> perPart * (long) Math.ceil((double) rawParts.size() / Math.max(1, searchConfig.getPartsPerQuery())));
+        if (rawEstimate.isPresent() && (rawEstimate.get() > timeoutMillis)) {
+            LOGGER.debug("Not searching {} raw windows of {}, expected to take {}ms with {}ms allowed",
+                    rawParts.size(), rawDocRef.getUuid(), rawEstimate.get(), timeoutMillis);
+            return new Plan(splitSearchRequest.getParts().stream()
+                    .filter(p -> !rawDocRef.equals(p.getDocRef()))
+                    .collect(Collectors.toList()), true);
+        }
+
+        return new Plan(splitSearchRequest.getParts(), false);
+    }
+
+    /**
+     * The parts of a split search that are to be sent.
+     */
+    static class Plan {
+        private final List<SplitSearchRequest.Part> parts;
+        private final boolean rawDeferred;
+
+        private Plan(final List<SplitSearchRequest.Part> parts,
+                     final boolean rawDeferred) {
+            this.parts = parts;
+            this.rawDeferred = rawDeferred;
+        }
+
+        List<SplitSearchRequest.Part> getParts() {
+            return parts;
+        }
+
+        /**
+         * @return If the raw data source was not searched, so the results are incomplete
+         */
+        boolean isRawDeferred() {
+            return rawDeferred;
+        }
+    }
+
+    private static class Latency {
+        private final double average;
+        private final long updated;
+
+        private Latency(final double average) {
+            this.average = average;
+            this.updated = System.currentTimeMillis();
+        }
+
+        private Latency update(final long millis) {
+            return new Latency((LATENCY_WEIGHT * millis) + ((1 - LATENCY_WEIGHT) * average));
+        }
+    }
+}
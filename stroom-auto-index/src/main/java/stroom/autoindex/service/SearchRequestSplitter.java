@@ -2,22 +2,34 @@ package stroom.autoindex.service;
 
 import stroom.autoindex.tracker.TimelineTracker;
 import stroom.autoindex.tracker.TrackerInverter;
+import stroom.autoindex.tracker.TrackerWindow;
 import stroom.query.api.v2.DocRef;
 import stroom.query.api.v2.ExpressionOperator;
 import stroom.query.api.v2.ExpressionTerm;
+import stroom.query.api.v2.OffsetRange;
 import stroom.query.api.v2.Query;
+import stroom.query.api.v2.ResultRequest;
 import stroom.query.api.v2.SearchRequest;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
 /**
  * Given a search request and a tracker, generates two split search requests to give
  * to the raw and indexed data sources. The generated requests will contain
  * the same expression terms as the input, wrapped with an AND that adds the constraints
  * defined in the tracker windows.
+ * Contiguous windows are joined into one range, and several ranges may be sent in one request,
+ * so the number of requests does not grow with every window the tracker holds.
  */
 public class SearchRequestSplitter {
     private final SearchRequest searchRequest;
     private AutoIndexDocRefEntity autoIndexDocRefEntity;
     private TimelineTracker tracker;
+    private int windowsPerRequest = 1;
+    private QueryTimeBounds timeBounds = QueryTimeBounds.unbounded();
 
     public static SearchRequestSplitter withSearchRequest(final SearchRequest searchRequest) {
         return new SearchRequestSplitter(searchRequest);
@@ -37,6 +49,27 @@ public class SearchRequestSplitter {
         return this;
     }
 
+    /**
+     * Only the parts of each window that the query can match are searched,
+     * a data source is not searched at all if none of its windows can match.
+     * @param value The range of time the query can match
+     * @return This splitter
+     */
+    SearchRequestSplitter timeBounds(final QueryTimeBounds value) {
+        this.timeBounds = value;
+        return this;
+    }
+
+    /**
+     * Windows that are not contiguous can be sent in one request, as an OR of their ranges.
+     * @param value The most windows to put in any one request, 1 sends a request for each window
+     * @return This splitter
+     */
+    public SearchRequestSplitter windowsPerRequest(final int value) {
+        this.windowsPerRequest = value;
+        return this;
+    }
+
     public SplitSearchRequest split() {
         final SplitSearchRequest.Builder splitSearchRequestBuilder = SplitSearchRequest.start();
 
@@ -63,16 +96,20 @@ public class SearchRequestSplitter {
         // Get access to the input query
         final Query inputQuery = searchRequest.getQuery();
 
-        tracker.getWindows().forEach(trackerWindow -> {
-            final String windowValue = String.format("%d,%d",
-                    trackerWindow.getFrom(),
-                    trackerWindow.getTo());
+        coalesce(timeBounds.intersect(tracker.getWindows()), windowsPerRequest).forEach(windows -> {
+            // Each window of the request is a range of the time field, several windows are an OR of their ranges
+            final ExpressionOperator.Builder timelineBoundBuilder = new ExpressionOperator.Builder()
+                    .addOperator(inputQuery.getExpression());
+            if (windows.size() == 1) {
+                addWindowTerm(timelineBoundBuilder, windows.get(0));
+            } else {
+                final ExpressionOperator.Builder windowsBuilder = new ExpressionOperator.Builder(ExpressionOperator.Op.OR);
+                windows.forEach(trackerWindow -> addWindowTerm(windowsBuilder, trackerWindow));
+                timelineBoundBuilder.addOperator(windowsBuilder.build());
+            }
 
             // Create a query for the raw data source
-            final ExpressionOperator timelineBoundOperator = new ExpressionOperator.Builder()
-                    .addOperator(inputQuery.getExpression())
-                    .addTerm(autoIndexDocRefEntity.getTimeFieldName(), ExpressionTerm.Condition.BETWEEN, windowValue)
-                    .build();
+            final ExpressionOperator timelineBoundOperator = timelineBoundBuilder.build();
 
             // Build the new query
             final Query.Builder rawQueryBuilder = new Query.Builder()
@@ -80,19 +117,128 @@ public class SearchRequestSplitter {
             inputQuery.getParams().forEach(rawQueryBuilder::addParams);
             rawQueryBuilder.dataSource(docRef);
 
-            // Build the new search request
+            // Build the new search request.
+            // Each part is given its own key, the query services hold results against the key between requests.
+            // The key is new for every split, so a part is never answered from the results of an earlier search.
+            // The parts are merged as soon as they return, so they must not be incremental.
             final SearchRequest.Builder partSearchRequestBuilder = new SearchRequest.Builder()
                     .dateTimeLocale(searchRequest.getDateTimeLocale())
-                    .incremental(searchRequest.incremental())
-                    .key(searchRequest.getKey())
+                    .incremental(false)
                     .timeout(searchRequest.getTimeout())
                     .query(rawQueryBuilder.build());
+            if (null != searchRequest.getKey()) {
+                partSearchRequestBuilder.key(String.format("%s-%s", searchRequest.getKey().getUuid(), UUID.randomUUID()));
+            }
 
-            // The same results will be requested from all searches
-            searchRequest.getResultRequests().forEach(partSearchRequestBuilder::addResultRequests);
+            // The same results will be requested from all searches, the rows before the requested range are needed
+            // to work out which rows fall within it once the parts are merged.
+            searchRequest.getResultRequests().stream()
+                    .map(SearchRequestSplitter::forParts)
+                    .forEach(partSearchRequestBuilder::addResultRequests);
 
             // The search request is ready to add to the split request
-            splitSearchRequestBuilder.withRequest(docRef, partSearchRequestBuilder.build());
+            splitSearchRequestBuilder.withRequest(docRef,
+                    TrackerWindow.from(windows.get(0).getFrom()).to(windows.get(windows.size() - 1).getTo()),
+                    partSearchRequestBuilder.build());
         });
     }
+
+    private void addWindowTerm(final ExpressionOperator.Builder builder,
+                               final TrackerWindow trackerWindow) {
+        final String windowValue = String.format("%d,%d",
+                trackerWindow.getFrom(),
+                trackerWindow.getTo());
+        builder.addTerm(autoIndexDocRefEntity.getTimeFieldName(), ExpressionTerm.Condition.BETWEEN, windowValue);
+    }
+
+    /**
+     * Plan the windows to send in each request. Windows that touch or overlap are joined into one, as there is
+     * nothing between them, then the windows are shared out between requests in order.
+     * Windows with gaps between them are never joined, the data in the gaps belongs to the other data source.
+     * @param windows The windows of a tracker
+     * @param windowsPerRequest The most windows to put in any one request
+     * @return The windows for each request, in time order
+     */
+    static List<List<TrackerWindow>> coalesce(final List<TrackerWindow> windows,
+                                              final int windowsPerRequest) {
+        final List<TrackerWindow> joined = new ArrayList<>();
+        windows.stream()
+                .filter(TrackerWindow::isBound)
+                .sorted(Comparator.comparing(TrackerWindow::getFrom))
+                .forEach(window -> {
+                    final int last = joined.size() - 1;
+                    if ((last >= 0) && (window.getFrom() <= joined.get(last).getTo())) {
+                        joined.set(last, TrackerWindow.from(joined.get(last).getFrom())
+                                .to(Math.max(joined.get(last).getTo(), window.getTo())));
+                    } else {
+                        joined.add(window);
+                    }
+                });
+
+        final int perRequest = Math.max(1, windowsPerRequest);
+        final List<List<TrackerWindow>> requests = new ArrayList<>();
+        for (int i = 0; i < joined.size(); i += perRequest) {
+            requests.add(new ArrayList<>(joined.subList(i, Math.min(i + perRequest, joined.size()))));
+        }
+
+        return requests;
+    }
+
+    /**
+     * Copy a result request so that it asks for every row up to the end of the requested range.
+     * Grouped tables ask for every row, a group outside the range of one part may still be added to
+     * by the other parts, which changes its values and so where it falls in the merged rows.
+     * Grouped tables are also rewritten so their averages can be combined (see {@link RowMerger#forParts}).
+     * @param resultRequest The result request from the original search
+     * @return The result request to send with each part
+     */
+    static ResultRequest forParts(final ResultRequest resultRequest) {
+        final OffsetRange range = resultRequest.getRequestedRange();
+        final boolean grouped = isGrouped(resultRequest);
+
+        final OffsetRange partRange;
+        if (null == range) {
+            partRange = null;
+        } else if (grouped) {
+            partRange = fromStart(Integer.MAX_VALUE);
+        } else if ((null == range.getOffset()) || (range.getOffset() == 0) || (null == range.getLength())) {
+            partRange = range;
+        } else {
+            partRange = fromStart(range.getOffset() + range.getLength());
+        }
+
+        if (!grouped && (partRange == range)) {
+            return resultRequest;
+        }
+
+        final ResultRequest.Builder builder = new ResultRequest.Builder()
+                .componentId(resultRequest.getComponentId())
+                .resultStyle(resultRequest.getResultStyle())
+                .fetch(resultRequest.getFetch())
+                .requestedRange(partRange);
+        if (null != resultRequest.getMappings()) {
+            resultRequest.getMappings().stream()
+                    .map(tableSettings -> grouped ? RowMerger.forParts(tableSettings) : tableSettings)
+                    .forEach(builder::addMappings);
+        }
+        if (null != resultRequest.getOpenGroups()) {
+            resultRequest.getOpenGroups().forEach(builder::addOpenGroups);
+        }
+
+        return builder.build();
+    }
+
+    private static OffsetRange fromStart(final long length) {
+        return new OffsetRange.Builder()
+                .offset(0L)
+                .length(length)
+                .build();
+    }
+
+    private static boolean isGrouped(final ResultRequest resultRequest) {
+        return (null != resultRequest.getMappings()) && resultRequest.getMappings().stream()
+                .filter(tableSettings -> null != tableSettings.getFields())
+                .flatMap(tableSettings -> tableSettings.getFields().stream())
+                .anyMatch(field -> null != field.getGroup());
+    }
 }
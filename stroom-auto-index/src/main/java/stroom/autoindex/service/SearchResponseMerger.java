@@ -1,19 +1,50 @@
 package stroom.autoindex.service;
 
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.FlatResult;
+import stroom.query.api.v2.OffsetRange;
+import stroom.query.api.v2.Result;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.Row;
+import stroom.query.api.v2.SearchRequest;
 import stroom.query.api.v2.SearchResponse;
+import stroom.query.api.v2.TableResult;
+import stroom.query.api.v2.TableSettings;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
 
+/**
+ * Collects the responses to the parts of a split search, responses may be added from several threads at once.
+ *
+ * Once they are all in, the results for each component are merged into one, re-applying the sort, grouping and
+ * requested range of the original request. Each part is asked for every row up to the end of the requested range,
+ * or every row of a grouped table (see {@link SearchRequestSplitter}), so the merged rows can be paged as though
+ * they came from a single search.
+ */
 public class SearchResponseMerger {
-    private final List<SearchResponse> responses = new ArrayList<>();
+    /**
+     * Flat results start with the parent key, key and depth of each row, before the values of the fields.
+     */
+    private static final int FLAT_KEY_INDEX = 1;
+    private static final int FLAT_DEPTH_INDEX = 2;
+    private static final int FLAT_FIELDS_START = 3;
 
-    public static SearchResponseMerger start() {
-        return new SearchResponseMerger();
+    private final SearchRequest request;
+    private final List<SearchResponse> responses = new CopyOnWriteArrayList<>();
+    private volatile boolean incomplete = false;
+
+    public static SearchResponseMerger start(final SearchRequest request) {
+        return new SearchResponseMerger(request);
     }
 
-    private SearchResponseMerger() {
+    private SearchResponseMerger(final SearchRequest request) {
+        this.request = request;
     }
 
     public SearchResponseMerger response(final SearchResponse response) {
@@ -21,11 +52,215 @@ public class SearchResponseMerger {
         return this;
     }
 
+    /**
+     * Called when some parts of the search were never sent, so the merged response is not complete
+     * whatever the responses that were received say.
+     * @return This merger
+     */
+    public SearchResponseMerger incomplete() {
+        this.incomplete = true;
+        return this;
+    }
+
     final Optional<SearchResponse> merge() {
-        if (responses.size() > 0) {
-            return Optional.of(responses.get(0)); // To be implemented
-        } else {
+        final List<SearchResponse> received = new ArrayList<>(responses);
+        if (received.isEmpty()) {
             return Optional.empty();
         }
+
+        final List<String> highlights = received.stream()
+                .map(SearchResponse::getHighlights)
+                .filter(Objects::nonNull)
+                .flatMap(List::stream)
+                .distinct()
+                .collect(Collectors.toList());
+        final List<String> errors = received.stream()
+                .map(SearchResponse::getErrors)
+                .filter(Objects::nonNull)
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+        final boolean complete = !incomplete && received.stream()
+                .allMatch(r -> Boolean.TRUE.equals(r.complete()));
+
+        final List<Result> results = new ArrayList<>();
+        request.getResultRequests().forEach(resultRequest -> {
+            final List<Result> partResults = received.stream()
+                    .map(SearchResponse::getResults)
+                    .filter(Objects::nonNull)
+                    .flatMap(List::stream)
+                    .filter(r -> Objects.equals(resultRequest.getComponentId(), r.getComponentId()))
+                    .collect(Collectors.toList());
+            if (!partResults.isEmpty()) {
+                results.add(mergeResults(resultRequest, partResults));
+            }
+        });
+
+        return Optional.of(new SearchResponse(
+                highlights.isEmpty() ? null : highlights,
+                results,
+                errors.isEmpty() ? null : errors,
+                complete));
+    }
+
+    private static Result mergeResults(final ResultRequest resultRequest,
+                                       final List<Result> partResults) {
+        final Result first = partResults.get(0);
+        final List<TableSettings> mappings = resultRequest.getMappings();
+        if ((null == mappings) || mappings.isEmpty() || (null == mappings.get(0).getFields())) {
+            return first;
+        }
+
+        // The parts may have been sent extra columns, so the averages of grouped tables can be combined
+        final List<Field> fields = RowMerger.partFields(mappings.get(0).getFields());
+        final String error = joinErrors(partResults);
+        final long offset = Optional.ofNullable(resultRequest.getRequestedRange())
+                .map(OffsetRange::getOffset)
+                .orElse(0L);
+        final long length = Optional.ofNullable(resultRequest.getRequestedRange())
+                .map(OffsetRange::getLength)
+                .orElse(Long.MAX_VALUE);
+
+        if (first instanceof TableResult) {
+            return mergeTableResults(resultRequest.getComponentId(), fields, partResults, offset, length, error);
+        } else if (first instanceof FlatResult) {
+            return mergeFlatResults(resultRequest.getComponentId(), fields, partResults, offset, length, error);
+        }
+
+        return first;
+    }
+
+    private static TableResult mergeTableResults(final String componentId,
+                                                 final List<Field> fields,
+                                                 final List<Result> partResults,
+                                                 final long offset,
+                                                 final long length,
+                                                 final String error) {
+        final List<TableResult> tableResults = partResults.stream()
+                .filter(r -> r instanceof TableResult)
+                .map(r -> (TableResult) r)
+                .collect(Collectors.toList());
+
+        final List<List<RowMerger.Row>> partRows = tableResults.stream()
+                .map(r -> Optional.ofNullable(r.getRows()).orElse(Collections.emptyList()).stream()
+                        .map(row -> new RowMerger.Row(row.getGroupKey(),
+                                Optional.ofNullable(row.getDepth()).orElse(0),
+                                new ArrayList<Object>(Optional.ofNullable(row.getValues()).orElse(Collections.emptyList()))))
+                        .collect(Collectors.toList()))
+                .map(RowMerger::toTree)
+                .collect(Collectors.toList());
+
+        final RowMerger rowMerger = new RowMerger(fields);
+        final List<RowMerger.Row> merged = rowMerger.merge(partRows, saturatedAdd(offset, length));
+
+        final List<Row> rows = new ArrayList<>();
+        RowMerger.page(merged, offset, length, (parent, row) -> rows.add(new Row(row.getKey(),
+                row.getValues().stream()
+                        .map(v -> (null != v) ? v.toString() : null)
+                        .collect(Collectors.toList()),
+                row.getDepth())));
+
+        final long totalResults = tableResults.stream()
+                .map(TableResult::getTotalResults)
+                .filter(Objects::nonNull)
+                .mapToLong(Integer::longValue)
+                .sum() - rowMerger.getCombinedCount();
+
+        return new TableResult(componentId,
+                rows,
+                new OffsetRange(offset, (long) rows.size()),
+                (int) Math.min(Integer.MAX_VALUE, totalResults),
+                withApproximateFields(error, rowMerger));
+    }
+
+    private static FlatResult mergeFlatResults(final String componentId,
+                                               final List<Field> fields,
+                                               final List<Result> partResults,
+                                               final long offset,
+                                               final long length,
+                                               final String error) {
+        final List<FlatResult> flatResults = partResults.stream()
+                .filter(r -> r instanceof FlatResult)
+                .map(r -> (FlatResult) r)
+                .collect(Collectors.toList());
+        final List<Field> partStructure = flatResults.get(0).getStructure();
+        if (null == partStructure) {
+            return flatResults.get(0);
+        }
+
+        // The columns of a flat result are matched to the fields of the table by name
+        final List<Field> columnFields = partStructure.stream()
+                .skip(FLAT_FIELDS_START)
+                .map(column -> fields.stream()
+                        .filter(f -> Objects.equals(f.getName(), column.getName()))
+                        .findFirst()
+                        .orElse(null))
+                .collect(Collectors.toList());
+
+        final List<List<RowMerger.Row>> partRows = flatResults.stream()
+                .map(r -> Optional.ofNullable(r.getValues()).orElse(Collections.emptyList()).stream()
+                        .map(values -> new RowMerger.Row(
+                                Optional.ofNullable(values.get(FLAT_KEY_INDEX)).map(Object::toString).orElse(null),
+                                Optional.ofNullable(values.get(FLAT_DEPTH_INDEX))
+                                        .map(d -> Integer.valueOf(d.toString()))
+                                        .orElse(0),
+                                new ArrayList<>(values.subList(FLAT_FIELDS_START, values.size()))))
+                        .collect(Collectors.toList()))
+                .map(RowMerger::toTree)
+                .collect(Collectors.toList());
+
+        final RowMerger rowMerger = new RowMerger(columnFields);
+        final List<RowMerger.Row> merged = rowMerger.merge(partRows, saturatedAdd(offset, length));
+
+        final List<List<Object>> values = new ArrayList<>();
+        RowMerger.page(merged, offset, length, (parent, row) -> {
+            final List<Object> rowValues = new ArrayList<>();
+            rowValues.add((null != parent) ? parent.getKey() : null);
+            rowValues.add(row.getKey());
+            rowValues.add(row.getDepth());
+            rowValues.addAll(row.getValues());
+            values.add(rowValues);
+        });
+
+        final long size = flatResults.stream()
+                .map(FlatResult::getSize)
+                .filter(Objects::nonNull)
+                .mapToLong(Long::longValue)
+                .sum() - rowMerger.getCombinedCount();
+
+        // The merged rows no longer hold the columns that were only added for the parts
+        final List<Field> structure = partStructure.stream()
+                .filter(column -> !RowMerger.PART_COUNT_NAME.equals(column.getName()))
+                .collect(Collectors.toList());
+
+        return new FlatResult(componentId, structure, values, size, withApproximateFields(error, rowMerger));
+    }
+
+    private static String joinErrors(final List<Result> partResults) {
+        final String error = partResults.stream()
+                .map(Result::getError)
+                .filter(Objects::nonNull)
+                .distinct()
+                .collect(Collectors.joining("\n"));
+        return error.isEmpty() ? null : error;
+    }
+
+    /**
+     * Add a note of any fields with values that could not be combined to the error of a result.
+     */
+    private static String withApproximateFields(final String error,
+                                                final RowMerger rowMerger) {
+        if (rowMerger.getApproximateFields().isEmpty()) {
+            return error;
+        }
+
+        final String approximate = String.format("The values of %s could not be combined from the parts of the search, "
+                        + "they may not be exact",
+                String.join(", ", rowMerger.getApproximateFields()));
+        return (null != error) ? error + "\n" + approximate : approximate;
+    }
+
+    private static long saturatedAdd(final long a,
+                                     final long b) {
+        return (b > Long.MAX_VALUE - a) ? Long.MAX_VALUE : a + b;
     }
 }
@@ -1,5 +1,6 @@
 package stroom.autoindex.service;
 
+import stroom.autoindex.tracker.TrackerWindow;
 import stroom.query.api.v2.DocRef;
 import stroom.query.api.v2.SearchRequest;
 
@@ -7,6 +8,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This is the output from the Search Request Splitter.
@@ -14,31 +16,44 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class SplitSearchRequest {
     private final Map<DocRef, List<SearchRequest>> requests;
+    private final List<Part> parts;
 
     private SplitSearchRequest(final Builder builder) {
         this.requests = builder.requests;
+        this.parts = builder.parts;
     }
 
     public Map<DocRef, List<SearchRequest>> getRequests() {
         return requests;
     }
 
+    /**
+     * @return Each search request along with the data source and window of time it covers
+     */
+    public List<Part> getParts() {
+        return parts;
+    }
+
     public static Builder start() {
         return new Builder();
     }
 
     public static class Builder {
         private final ConcurrentHashMap<DocRef, List<SearchRequest>> requests;
+        private final List<Part> parts;
 
         private Builder() {
             this.requests = new ConcurrentHashMap<>();
+            this.parts = new CopyOnWriteArrayList<>();
         }
 
         public Builder withRequest(final DocRef docRef,
+                                   final TrackerWindow window,
                                    final SearchRequest request) {
             this.requests
                     .computeIfAbsent(docRef, (d) -> new ArrayList<>())
                     .add(request);
+            this.parts.add(new Part(docRef, window, request));
             return this;
         }
 
@@ -46,4 +61,33 @@ public class SplitSearchRequest {
             return new SplitSearchRequest(this);
         }
     }
+
+    /**
+     * A single search request, to be sent to one data source for one window of time.
+     */
+    public static class Part {
+        private final DocRef docRef;
+        private final TrackerWindow window;
+        private final SearchRequest request;
+
+        private Part(final DocRef docRef,
+                     final TrackerWindow window,
+                     final SearchRequest request) {
+            this.docRef = docRef;
+            this.window = window;
+            this.request = request;
+        }
+
+        public DocRef getDocRef() {
+            return docRef;
+        }
+
+        public TrackerWindow getWindow() {
+            return window;
+        }
+
+        public SearchRequest getRequest() {
+            return request;
+        }
+    }
 }
@@ -0,0 +1,164 @@
+package stroom.autoindex.service;
+
+import org.junit.Test;
+import stroom.autoindex.tracker.TrackerWindow;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.OffsetRange;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.Row;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.SearchResponse;
+import stroom.query.api.v2.Sort;
+import stroom.query.api.v2.TableResult;
+import stroom.query.api.v2.TableSettings;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartCutOffTest {
+    private static final String TIME_FIELD = "time";
+    private static final String COMPONENT_ID = "table";
+
+    @Test
+    public void testLatestRowsCutOffOlderWindows() {
+        // Given
+        final PartCutOff cutOff = PartCutOff.forRequest(request(field("${time}", Sort.SortDirection.DESCENDING), 10L),
+                TIME_FIELD);
+        final List<TrackerWindow> windows = Arrays.asList(
+                TrackerWindow.from(10L).to(20L),
+                TrackerWindow.from(30L).to(40L),
+                TrackerWindow.from(20L).to(30L));
+
+        // When
+        windows.sort(cutOff.getWindowOrder().get());
+        cutOff.start(3);
+
+        // The second part returning first cannot cut anything off, the first could still have fewer rows
+        final int neededAfterSecond = cutOff.partComplete(1, response(10));
+        final boolean thirdNeededAfterSecond = cutOff.isNeeded(2);
+
+        // The first two parts together hold the rows needed
+        final int neededAfterFirst = cutOff.partComplete(0, response(4));
+
+        // Then
+        assertEquals(Arrays.asList(
+                TrackerWindow.from(30L).to(40L),
+                TrackerWindow.from(20L).to(30L),
+                TrackerWindow.from(10L).to(20L)), windows);
+        assertEquals(3, neededAfterSecond);
+        assertTrue(thirdNeededAfterSecond);
+        assertEquals(2, neededAfterFirst);
+        assertFalse(cutOff.isNeeded(2));
+        assertTrue(cutOff.isNeeded(1));
+    }
+
+    @Test
+    public void testOldestRowsAreSentFirst() {
+        // Given
+        final PartCutOff cutOff = PartCutOff.forRequest(request(field("${time}", Sort.SortDirection.ASCENDING), 10L),
+                TIME_FIELD);
+
+        // When
+        final int order = cutOff.getWindowOrder().get()
+                .compare(TrackerWindow.from(10L).to(20L), TrackerWindow.from(20L).to(30L));
+
+        // Then
+        assertTrue(order < 0);
+    }
+
+    @Test
+    public void testFailedPartsDoNotCount() {
+        // Given
+        final PartCutOff cutOff = PartCutOff.forRequest(request(field("${time}", Sort.SortDirection.DESCENDING), 10L),
+                TIME_FIELD);
+        cutOff.start(3);
+
+        // When
+
+        // The first part failed, so its rows are missing and the later parts must all be kept
+        final int neededAfterFailure = cutOff.partComplete(0, null);
+        final int neededAfterSecond = cutOff.partComplete(1, response(20));
+
+        // Then
+        assertEquals(3, neededAfterFailure);
+        assertEquals(3, neededAfterSecond);
+        assertTrue(cutOff.isNeeded(2));
+    }
+
+    @Test
+    public void testOtherSortNeverCutsOff() {
+        // Given
+        final PartCutOff cutOff = PartCutOff.forRequest(request(field("${species}", Sort.SortDirection.DESCENDING), 10L),
+                TIME_FIELD);
+
+        // When
+        cutOff.start(2);
+        final int needed = cutOff.partComplete(0, response(100));
+
+        // Then
+        assertFalse(cutOff.getWindowOrder().isPresent());
+        assertEquals(2, needed);
+        assertTrue(cutOff.isNeeded(1));
+    }
+
+    @Test
+    public void testGroupedNeverCutsOff() {
+        // Given
+        final Field grouped = new Field.Builder()
+                .name(TIME_FIELD)
+                .expression("${time}")
+                .sort(new Sort(0, Sort.SortDirection.DESCENDING))
+                .group(0)
+                .build();
+
+        // When
+        final PartCutOff cutOff = PartCutOff.forRequest(request(grouped, 10L), TIME_FIELD);
+
+        // Then
+        assertFalse(cutOff.getWindowOrder().isPresent());
+    }
+
+    private static Field field(final String expression,
+                               final Sort.SortDirection direction) {
+        return new Field.Builder()
+                .name(TIME_FIELD)
+                .expression(expression)
+                .sort(new Sort(0, direction))
+                .build();
+    }
+
+    private static SearchRequest request(final Field field,
+                                         final Long length) {
+        return new SearchRequest.Builder()
+                .key("key")
+                .addResultRequests(new ResultRequest.Builder()
+                        .componentId(COMPONENT_ID)
+                        .resultStyle(ResultRequest.ResultStyle.TABLE)
+                        .requestedRange(new OffsetRange.Builder()
+                                .offset(0L)
+                                .length(length)
+                                .build())
+                        .addMappings(new TableSettings.Builder()
+                                .addFields(field)
+                                .build())
+                        .build())
+                .build();
+    }
+
+    private static SearchResponse response(final int rowCount) {
+        final List<Row> rows = IntStream.range(0, rowCount)
+                .mapToObj(i -> new Row(null, Collections.singletonList(Integer.toString(i)), 0))
+                .collect(Collectors.toList());
+        return new SearchResponse(null,
+                Collections.singletonList(new TableResult(COMPONENT_ID, rows, null, rowCount, null)),
+                null,
+                true);
+    }
+}
@@ -0,0 +1,107 @@
+package stroom.autoindex.service;
+
+import org.junit.Test;
+import stroom.autoindex.tracker.TrackerWindow;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryTimeBoundsTest {
+    private static final String TIME_FIELD = "time";
+
+    @Test
+    public void testBetweenTrimsWindows() {
+        // Given
+        final QueryTimeBounds bounds = QueryTimeBounds.fromExpression(new ExpressionOperator.Builder()
+                .addTerm("species", ExpressionTerm.Condition.EQUALS, "fox")
+                .addTerm(TIME_FIELD, ExpressionTerm.Condition.BETWEEN, "15,34")
+                .build(), TIME_FIELD);
+
+        // When
+        final List<TrackerWindow> windows = bounds.intersect(Arrays.asList(
+                TrackerWindow.from(0L).to(10L),
+                TrackerWindow.from(10L).to(20L),
+                TrackerWindow.from(30L).to(40L),
+                TrackerWindow.from(40L).to(50L)));
+
+        // Then
+        assertTrue(bounds.isBounded());
+        assertEquals(Arrays.asList(
+                TrackerWindow.from(15L).to(20L),
+                TrackerWindow.from(30L).to(35L)), windows);
+    }
+
+    @Test
+    public void testEachTermOfAndNarrows() {
+        // Given
+        final QueryTimeBounds bounds = QueryTimeBounds.fromExpression(new ExpressionOperator.Builder()
+                .addTerm(TIME_FIELD, ExpressionTerm.Condition.GREATER_THAN, "10")
+                .addOperator(new ExpressionOperator.Builder()
+                        .addTerm(TIME_FIELD, ExpressionTerm.Condition.LESS_THAN, "30")
+                        .build())
+                .addTerm(TIME_FIELD, ExpressionTerm.Condition.GREATER_THAN_OR_EQUAL_TO, "20")
+                .build(), TIME_FIELD);
+
+        // When
+        final Optional<TrackerWindow> overlapping = bounds.intersect(TrackerWindow.from(0L).to(100L));
+        final Optional<TrackerWindow> outside = bounds.intersect(TrackerWindow.from(0L).to(20L));
+
+        // Then
+        assertEquals(Optional.of(TrackerWindow.from(20L).to(31L)), overlapping);
+        assertEquals(Optional.empty(), outside);
+    }
+
+    @Test
+    public void testDateTimes() {
+        // Given
+        final QueryTimeBounds bounds = QueryTimeBounds.fromExpression(new ExpressionOperator.Builder()
+                .addTerm(TIME_FIELD, ExpressionTerm.Condition.GREATER_THAN, "2017-01-01T00:00:00")
+                .addTerm(TIME_FIELD, ExpressionTerm.Condition.LESS_THAN, "2017-01-02T00:00:00Z")
+                .build(), TIME_FIELD);
+
+        // When
+        final Optional<TrackerWindow> window = bounds.intersect(TrackerWindow.from(0L).to(2000000000L));
+
+        // Then
+        assertEquals(Optional.of(TrackerWindow.from(1483228800L).to(1483315201L)), window);
+    }
+
+    @Test
+    public void testOrLeavesRangeOpen() {
+        // Given
+        final QueryTimeBounds bounds = QueryTimeBounds.fromExpression(new ExpressionOperator.Builder(ExpressionOperator.Op.OR)
+                .addTerm(TIME_FIELD, ExpressionTerm.Condition.LESS_THAN, "10")
+                .addTerm("species", ExpressionTerm.Condition.EQUALS, "fox")
+                .build(), TIME_FIELD);
+
+        // When
+        final Optional<TrackerWindow> window = bounds.intersect(TrackerWindow.from(20L).to(30L));
+
+        // Then
+        assertFalse(bounds.isBounded());
+        assertEquals(Optional.of(TrackerWindow.from(20L).to(30L)), window);
+    }
+
+    @Test
+    public void testUnreadableValuesLeaveRangeOpen() {
+        // Given
+        final QueryTimeBounds bounds = QueryTimeBounds.fromExpression(new ExpressionOperator.Builder()
+                .addTerm(TIME_FIELD, ExpressionTerm.Condition.GREATER_THAN, "last week")
+                .build(), TIME_FIELD);
+
+        // When
+        final List<TrackerWindow> windows = bounds.intersect(Collections.singletonList(TrackerWindow.from(20L).to(30L)));
+
+        // Then
+        assertFalse(bounds.isBounded());
+        assertEquals(Collections.singletonList(TrackerWindow.from(20L).to(30L)), windows);
+    }
+}
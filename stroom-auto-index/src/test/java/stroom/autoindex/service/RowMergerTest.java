@@ -0,0 +1,275 @@
+package stroom.autoindex.service;
+
+import org.junit.Test;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Sort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RowMergerTest {
+
+    private static final Field TIME_DESCENDING = new Field.Builder()
+            .name("time")
+            .expression("${time}")
+            .sort(new Sort(0, Sort.SortDirection.DESCENDING))
+            .build();
+
+    private static final Field SPECIES_GROUP = new Field.Builder()
+            .name("species")
+            .expression("${species}")
+            .group(0)
+            .build();
+
+    private static final Field COUNT_DESCENDING = new Field.Builder()
+            .name("count")
+            .expression("count()")
+            .sort(new Sort(0, Sort.SortDirection.DESCENDING))
+            .build();
+
+    private static final Field MAX_TIME = new Field.Builder()
+            .name("latest")
+            .expression("max(${time})")
+            .build();
+
+    private static final Field AVERAGE_WEIGHT = new Field.Builder()
+            .name("weight")
+            .expression("average(${weight})")
+            .build();
+
+    private static final Field COUNT_GROUPS = new Field.Builder()
+            .name("groups")
+            .expression("countGroups()")
+            .build();
+
+    @Test
+    public void testKWayMergeKeepsSortOrder() {
+        // Given
+        final RowMerger rowMerger = new RowMerger(Arrays.asList(TIME_DESCENDING, null));
+
+        // When
+        final List<RowMerger.Row> merged = rowMerger.merge(Arrays.asList(
+                rows(row(null, "9", "a"), row(null, "5", "b"), row(null, "1", "c")),
+                rows(row(null, "8", "d"), row(null, "7", "e")),
+                rows()), Long.MAX_VALUE);
+
+        // Then
+        assertEquals(Arrays.asList("a", "d", "e", "b", "c"), secondValues(merged));
+    }
+
+    @Test
+    public void testKWayMergeStopsAtLimit() {
+        // Given
+        final RowMerger rowMerger = new RowMerger(Arrays.asList(TIME_DESCENDING, null));
+
+        // When
+        final List<RowMerger.Row> merged = rowMerger.merge(Arrays.asList(
+                rows(row(null, "9", "a"), row(null, "5", "b"), row(null, "1", "c")),
+                rows(row(null, "8", "d"), row(null, "7", "e"))), 3);
+
+        // Then
+        assertEquals(Arrays.asList("a", "d", "e"), secondValues(merged));
+    }
+
+    @Test
+    public void testKWayMergeComparesNumbers() {
+        // Given
+        final RowMerger rowMerger = new RowMerger(Arrays.asList(TIME_DESCENDING, null));
+
+        // When
+        final List<RowMerger.Row> merged = rowMerger.merge(Arrays.asList(
+                rows(row(null, "10", "a")),
+                rows(row(null, "9", "b"))), Long.MAX_VALUE);
+
+        // Then
+        assertEquals(Arrays.asList("a", "b"), secondValues(merged));
+    }
+
+    @Test
+    public void testGroupsAreCombinedAndSortedAgain() {
+        // Given
+        final RowMerger rowMerger = new RowMerger(Arrays.asList(SPECIES_GROUP, COUNT_DESCENDING, MAX_TIME));
+
+        // When
+        final List<RowMerger.Row> merged = rowMerger.merge(Arrays.asList(
+                rows(row("fox", "fox", "5", "2017"), row("owl", "owl", "4", "2016")),
+                rows(row("cat", "cat", "6", "2015"), row("owl", "owl", "3", "2018"))), 1);
+
+        // Then, grouped rows ignore the limit, a later part may add to any group
+        assertEquals(3, merged.size());
+        assertEquals(1, rowMerger.getCombinedCount());
+
+        assertEquals(Arrays.asList("owl", "7", "2018"), merged.get(0).getValues());
+        assertEquals(Arrays.asList("cat", "6", "2015"), merged.get(1).getValues());
+        assertEquals(Arrays.asList("fox", "5", "2017"), merged.get(2).getValues());
+    }
+
+    @Test
+    public void testGroupOutsideOnePartsPageIsCombined() {
+        // Given
+        final RowMerger rowMerger = new RowMerger(Arrays.asList(SPECIES_GROUP, COUNT_DESCENDING, MAX_TIME));
+        final List<String> paged = new ArrayList<>();
+
+        // When
+
+        // On a page of one row, the first part would only have returned fox and the second only cat,
+        // but owl has the most rows once both parts are added together
+        final List<RowMerger.Row> merged = rowMerger.merge(Arrays.asList(
+                rows(row("fox", "fox", "5", "2017"), row("owl", "owl", "4", "2016"), row("cat", "cat", "1", "2014")),
+                rows(row("cat", "cat", "6", "2015"), row("owl", "owl", "5", "2018"))), 1);
+        RowMerger.page(merged, 0, 1, (parent, row) -> paged.add(row.getKey()));
+
+        // Then
+        assertEquals(2, rowMerger.getCombinedCount());
+        assertEquals(Collections.singletonList("owl"), paged);
+        assertEquals(Arrays.asList("owl", "9", "2018"), merged.get(0).getValues());
+        assertEquals(Arrays.asList("cat", "7", "2015"), merged.get(1).getValues());
+    }
+
+    @Test
+    public void testTreeAndPage() {
+        // Given
+        final RowMerger.Row parentA = row("a", "a");
+        final RowMerger.Row parentB = row("b", "b");
+        final List<String> paged = new ArrayList<>();
+        final List<String> parents = new ArrayList<>();
+
+        // When
+        final List<RowMerger.Row> tree = RowMerger.toTree(Arrays.asList(
+                parentA,
+                new RowMerger.Row("a1", 1, values("a1")),
+                new RowMerger.Row("a2", 1, values("a2")),
+                parentB,
+                new RowMerger.Row("b1", 1, values("b1"))));
+        RowMerger.page(tree, 2, 3, (parent, row) -> {
+            paged.add(row.getKey());
+            parents.add((null != parent) ? parent.getKey() : null);
+        });
+
+        // Then
+        assertEquals(2, tree.size());
+        assertEquals(Arrays.asList("a2", "b", "b1"), paged);
+        assertEquals(Arrays.asList("a", null, "b"), parents);
+    }
+
+    @Test
+    public void testAggregate() {
+        // Given
+        final String count = "count";
+        final String sum = "sum";
+
+        // When
+        final Optional<Object> counted = RowMerger.aggregate(count, "3", "4");
+        final Optional<Object> summed = RowMerger.aggregate(sum, 3L, 4L);
+        final Optional<Object> decimal = RowMerger.aggregate(sum, "1", "0.5");
+        final Optional<Object> grouping = RowMerger.aggregate(sum, "1,234", "1,000");
+        final Optional<Object> min = RowMerger.aggregate("min", "3", "4");
+        final Optional<Object> max = RowMerger.aggregate("max", "3", "4");
+        final Optional<Object> missing = RowMerger.aggregate(count, null, "4");
+
+        // Then
+        assertEquals(Optional.of("7"), counted);
+        assertEquals(Optional.of(7L), summed);
+        assertEquals(Optional.of("1.5"), decimal);
+        assertEquals(Optional.of("2,234"), grouping);
+        assertEquals(Optional.of("3"), min);
+        assertEquals(Optional.of("4"), max);
+        assertEquals(Optional.of("4"), missing);
+    }
+
+    @Test
+    public void testValuesThatCannotBeAggregated() {
+        // Given
+        final String notANumber = "lots";
+
+        // When
+        final Optional<Object> sum = RowMerger.aggregate("sum", "3", notANumber);
+        final Optional<Object> same = RowMerger.aggregate(null, "x", "x");
+        final Optional<Object> different = RowMerger.aggregate(null, "x", "y");
+        final Optional<Object> unknown = RowMerger.aggregate("stdev", "1.5", "2.5");
+
+        // Then
+        assertEquals(Optional.empty(), sum);
+        assertEquals(Optional.of("x"), same);
+        assertEquals(Optional.empty(), different);
+        assertEquals(Optional.empty(), unknown);
+    }
+
+    @Test
+    public void testAveragesAreCombinedFromSumsAndCounts() {
+        // Given
+        final List<Field> fields = RowMerger.partFields(Arrays.asList(SPECIES_GROUP, AVERAGE_WEIGHT));
+        final RowMerger rowMerger = new RowMerger(fields);
+
+        // When
+        final List<RowMerger.Row> merged = rowMerger.merge(Arrays.asList(
+                rows(row("owl", "owl", "10", "1"), row("fox", "fox", "1,200", "2")),
+                rows(row("owl", "owl", "2", "3"))), Long.MAX_VALUE);
+
+        // Then, the average of the owls is weighted by the number of rows from each part
+        assertEquals(Arrays.asList("owl", "3"), merged.get(0).getValues());
+        assertEquals(Arrays.asList("fox", "600"), merged.get(1).getValues());
+        assertTrue(rowMerger.getApproximateFields().isEmpty());
+    }
+
+    @Test
+    public void testCountGroupsIsCountedFromTheMergedGroups() {
+        // Given
+        final RowMerger rowMerger = new RowMerger(Arrays.asList(SPECIES_GROUP, COUNT_GROUPS));
+        final List<RowMerger.Row> firstPart = RowMerger.toTree(Arrays.asList(
+                row("owl", "owl", "2"),
+                new RowMerger.Row("barn", 1, values("barn", null)),
+                new RowMerger.Row("snowy", 1, values("snowy", null))));
+        final List<RowMerger.Row> secondPart = RowMerger.toTree(Arrays.asList(
+                row("owl", "owl", "2"),
+                new RowMerger.Row("barn", 1, values("barn", null)),
+                new RowMerger.Row("tawny", 1, values("tawny", null))));
+
+        // When
+        final List<RowMerger.Row> merged = rowMerger.merge(Arrays.asList(firstPart, secondPart), Long.MAX_VALUE);
+
+        // Then
+        assertEquals(Arrays.asList("owl", "3"), merged.get(0).getValues());
+        assertTrue(rowMerger.getApproximateFields().isEmpty());
+    }
+
+    @Test
+    public void testFieldsThatCannotBeCombinedAreReported() {
+        // Given
+        final RowMerger rowMerger = new RowMerger(Arrays.asList(SPECIES_GROUP, COUNT_GROUPS, MAX_TIME));
+
+        // When, the groups beneath each owl were not returned so cannot be counted
+        final List<RowMerger.Row> merged = rowMerger.merge(Arrays.asList(
+                rows(row("owl", "owl", "2", "2016")),
+                rows(row("owl", "owl", "2", "2018"))), Long.MAX_VALUE);
+
+        // Then
+        assertEquals(Arrays.asList("owl", "2", "2018"), merged.get(0).getValues());
+        assertEquals(Collections.singleton("groups"), rowMerger.getApproximateFields());
+    }
+
+    private static RowMerger.Row row(final String key, final Object... values) {
+        return new RowMerger.Row(key, 0, values(values));
+    }
+
+    private static List<Object> values(final Object... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+
+    private static List<RowMerger.Row> rows(final RowMerger.Row... rows) {
+        return Arrays.asList(rows);
+    }
+
+    private static List<Object> secondValues(final List<RowMerger.Row> rows) {
+        return rows.stream()
+                .map(r -> r.getValues().get(1))
+                .collect(Collectors.toList());
+    }
+}
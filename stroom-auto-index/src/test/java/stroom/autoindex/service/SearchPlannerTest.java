@@ -0,0 +1,84 @@
+package stroom.autoindex.service;
+
+import org.junit.Test;
+import stroom.autoindex.app.Config;
+import stroom.autoindex.tracker.TrackerWindow;
+import stroom.query.api.v2.DocRef;
+import stroom.query.api.v2.SearchRequest;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchPlannerTest {
+    private static final DocRef RAW = new DocRef.Builder().type("raw").uuid(UUID.randomUUID().toString()).build();
+    private static final DocRef INDEX = new DocRef.Builder().type("index").uuid(UUID.randomUUID().toString()).build();
+
+    private final SplitSearchRequest splitSearchRequest = SplitSearchRequest.start()
+            .withRequest(INDEX, TrackerWindow.from(20L).to(30L), new SearchRequest.Builder().key("a").build())
+            .withRequest(RAW, TrackerWindow.from(10L).to(20L), new SearchRequest.Builder().key("b").build())
+            .build();
+
+    @Test
+    public void testUnknownLatencySearchesRaw() {
+        // Given
+        final SearchPlanner planner = new SearchPlanner(new Config());
+
+        // When
+        final SearchPlanner.Plan plan = planner.plan(splitSearchRequest, RAW, 1000);
+
+        // Then
+        assertFalse(plan.isRawDeferred());
+        assertEquals(2, plan.getParts().size());
+    }
+
+    @Test
+    public void testSlowRawIsDeferred() {
+        // Given
+        final SearchPlanner planner = new SearchPlanner(new Config());
+        planner.record(RAW, 5000);
+
+        // When
+        final SearchPlanner.Plan plan = planner.plan(splitSearchRequest, RAW, 1000);
+
+        // Then
+        assertTrue(plan.isRawDeferred());
+        assertEquals(1, plan.getParts().size());
+        assertEquals(INDEX, plan.getParts().get(0).getDocRef());
+    }
+
+    @Test
+    public void testFastRawIsSearched() {
+        // Given
+        final SearchPlanner planner = new SearchPlanner(new Config());
+        planner.record(RAW, 5000);
+        planner.record(RAW, 100);
+
+        // When
+        final SearchPlanner.Plan shortPlan = planner.plan(splitSearchRequest, RAW, 1000);
+        final SearchPlanner.Plan longPlan = planner.plan(splitSearchRequest, RAW, 4000);
+
+        // Then, the average is still over the shorter time allowed
+        assertTrue(shortPlan.isRawDeferred());
+        assertFalse(longPlan.isRawDeferred());
+    }
+
+    @Test
+    public void testRawAloneIsAlwaysSearched() {
+        // Given
+        final SearchPlanner planner = new SearchPlanner(new Config());
+        planner.record(RAW, 5000);
+        final SplitSearchRequest rawOnly = SplitSearchRequest.start()
+                .withRequest(RAW, TrackerWindow.from(10L).to(20L), new SearchRequest.Builder().key("b").build())
+                .build();
+
+        // When
+        final SearchPlanner.Plan plan = planner.plan(rawOnly, RAW, 1000);
+
+        // Then
+        assertFalse(plan.isRawDeferred());
+        assertEquals(1, plan.getParts().size());
+    }
+}
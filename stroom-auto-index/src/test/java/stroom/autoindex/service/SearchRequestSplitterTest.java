@@ -0,0 +1,148 @@
+package stroom.autoindex.service;
+
+import org.junit.Test;
+import stroom.autoindex.tracker.TrackerWindow;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.OffsetRange;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.TableSettings;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SearchRequestSplitterTest {
+
+    @Test
+    public void testCoalesceJoinsContiguousWindows() {
+        // Given
+        final List<TrackerWindow> windows = Arrays.asList(
+                TrackerWindow.from(20L).to(30L),
+                TrackerWindow.from(10L).to(20L),
+                TrackerWindow.from(25L).to(40L));
+
+        // When
+        final List<List<TrackerWindow>> requests = SearchRequestSplitter.coalesce(windows, 1);
+
+        // Then
+        assertEquals(Collections.singletonList(
+                Collections.singletonList(TrackerWindow.from(10L).to(40L))), requests);
+    }
+
+    @Test
+    public void testCoalesceKeepsGaps() {
+        // Given
+        final List<TrackerWindow> windows = Arrays.asList(
+                TrackerWindow.from(10L).to(20L),
+                TrackerWindow.from(21L).to(30L));
+
+        // When
+        final List<List<TrackerWindow>> requests = SearchRequestSplitter.coalesce(windows, 1);
+
+        // Then
+        assertEquals(Arrays.asList(
+                Collections.singletonList(TrackerWindow.from(10L).to(20L)),
+                Collections.singletonList(TrackerWindow.from(21L).to(30L))), requests);
+    }
+
+    @Test
+    public void testCoalesceSharesWindowsBetweenRequests() {
+        // Given
+        final List<TrackerWindow> windows = Arrays.asList(
+                TrackerWindow.from(50L).to(60L),
+                TrackerWindow.from(10L).to(20L),
+                TrackerWindow.from(30L).to(40L),
+                TrackerWindow.from(70L).to(80L),
+                TrackerWindow.from(90L).to(100L));
+
+        // When
+        final List<List<TrackerWindow>> requests = SearchRequestSplitter.coalesce(windows, 2);
+
+        // Then
+        assertEquals(Arrays.asList(
+                Arrays.asList(TrackerWindow.from(10L).to(20L), TrackerWindow.from(30L).to(40L)),
+                Arrays.asList(TrackerWindow.from(50L).to(60L), TrackerWindow.from(70L).to(80L)),
+                Collections.singletonList(TrackerWindow.from(90L).to(100L))), requests);
+    }
+
+    @Test
+    public void testCoalesceNoWindows() {
+        // When
+        final List<List<TrackerWindow>> requests = SearchRequestSplitter.coalesce(Collections.emptyList(), 10);
+
+        // Then
+        assertEquals(Collections.emptyList(), requests);
+    }
+
+    @Test
+    public void testUngroupedPartsAskForRowsUpToEndOfRange() {
+        // Given
+        final ResultRequest request = resultRequest(new Field.Builder()
+                .name("time")
+                .expression("${time}")
+                .build());
+
+        // When
+        final OffsetRange range = SearchRequestSplitter.forParts(request).getRequestedRange();
+
+        // Then
+        assertEquals(Long.valueOf(0L), range.getOffset());
+        assertEquals(Long.valueOf(30L), range.getLength());
+    }
+
+    @Test
+    public void testGroupedPartsAskForEveryRow() {
+        // Given
+        final ResultRequest request = resultRequest(new Field.Builder()
+                .name("species")
+                .expression("${species}")
+                .group(0)
+                .build());
+
+        // When
+        final OffsetRange range = SearchRequestSplitter.forParts(request).getRequestedRange();
+
+        // Then
+        assertEquals(Long.valueOf(0L), range.getOffset());
+        assertEquals(Long.valueOf(Integer.MAX_VALUE), range.getLength());
+    }
+
+    @Test
+    public void testGroupedPartsSendAveragesAsSums() {
+        // Given
+        final ResultRequest request = resultRequest(new Field.Builder()
+                        .name("species")
+                        .expression("${species}")
+                        .group(0)
+                        .build(),
+                new Field.Builder()
+                        .name("weight")
+                        .expression("average(${weight})")
+                        .build());
+
+        // When
+        final List<Field> partFields = SearchRequestSplitter.forParts(request).getMappings().get(0).getFields();
+
+        // Then
+        assertEquals(3, partFields.size());
+        assertEquals("sum(${weight})", partFields.get(1).getExpression());
+        assertEquals(RowMerger.PART_COUNT_NAME, partFields.get(2).getName());
+        assertEquals("count()", partFields.get(2).getExpression());
+    }
+
+    private static ResultRequest resultRequest(final Field... fields) {
+        return new ResultRequest.Builder()
+                .componentId("table")
+                .resultStyle(ResultRequest.ResultStyle.TABLE)
+                .requestedRange(new OffsetRange.Builder()
+                        .offset(20L)
+                        .length(10L)
+                        .build())
+                .addMappings(new TableSettings.Builder()
+                        .addFields(fields)
+                        .build())
+                .build();
+    }
+}
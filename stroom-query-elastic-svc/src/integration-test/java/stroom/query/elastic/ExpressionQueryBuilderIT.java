@@ -0,0 +1,101 @@
+package stroom.query.elastic;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.transport.client.PreBuiltTransportClient;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.elastic.test.ElasticTestIndexRule;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm;
+import stroom.query.elastic.service.ExpressionQueryBuilder;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static stroom.query.elastic.auth.ElasticDocRefResourceIT.LOCAL_ELASTIC_HTTP_HOST;
+
+/**
+ * Checks that the scoring and filter context translations of the same expression find the same documents
+ * in a local Elastic. The time taken by each is measured by ExpressionQueryBuilderBenchmark.
+ */
+public class ExpressionQueryBuilderIT {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExpressionQueryBuilderIT.class);
+
+    private static final String DATA_INDEX_NAME = "shakespeare";
+    private static final String ELASTIC_DATA_FILE = "elastic/shakespeare.json";
+    private static final String ELASTIC_DATA_MAPPINGS_FULL_FILE = "elastic/shakespeare.mappings.json";
+
+    private static final String LOCAL_ELASTIC_CLUSTER_NAME = "docker-cluster";
+    private static final String LOCAL_ELASTIC_TRANSPORT_HOST = "localhost";
+    private static final int LOCAL_ELASTIC_TRANSPORT_PORT = 19300;
+
+    @ClassRule
+    public static ElasticTestIndexRule dataIndexRule = ElasticTestIndexRule
+            .forIndex(ExpressionQueryBuilderIT.class, DATA_INDEX_NAME)
+            .httpUrl(LOCAL_ELASTIC_HTTP_HOST)
+            .mappingsResource(ELASTIC_DATA_MAPPINGS_FULL_FILE)
+            .dataResource(ELASTIC_DATA_FILE)
+            .build();
+
+    private static TransportClient client;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        client = new PreBuiltTransportClient(Settings.builder()
+                .put("cluster.name", LOCAL_ELASTIC_CLUSTER_NAME)
+                .build());
+        client.addTransportAddress(new InetSocketTransportAddress(
+                InetAddress.getByName(LOCAL_ELASTIC_TRANSPORT_HOST),
+                LOCAL_ELASTIC_TRANSPORT_PORT));
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        client.close();
+    }
+
+    @Test
+    public void testFilterContextMatchesScoring() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                        .addTerm(ShakespeareLine.PLAY_NAME, ExpressionTerm.Condition.IN, "Henry IV,Hamlet,Macbeth")
+                        .build())
+                .addTerm(ShakespeareLine.LINE_ID, ExpressionTerm.Condition.BETWEEN, "100,4000")
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.NOT)
+                        .addTerm(ShakespeareLine.SPEAKER, ExpressionTerm.Condition.EQUALS, "FALSTAFF")
+                        .build())
+                .build();
+
+        // When
+        final QueryBuilder scoringQuery = ExpressionQueryBuilder.withFilterContext(false).build(expression);
+        final QueryBuilder filterQuery = ExpressionQueryBuilder.withFilterContext(true).build(expression);
+
+        LOGGER.info("Scoring Query {}", scoringQuery);
+        LOGGER.info("Filter Query {}", filterQuery);
+
+        final long scoringHits = search(scoringQuery).getHits().getTotalHits();
+        final long filterHits = search(filterQuery).getHits().getTotalHits();
+
+        // Then
+        assertEquals(scoringHits, filterHits);
+    }
+
+    private static SearchResponse search(final QueryBuilder query) {
+        return client.prepareSearch(DATA_INDEX_NAME)
+                .setSearchType(SearchType.QUERY_THEN_FETCH)
+                .setRequestCache(false)
+                .setQuery(query)
+                .setSize(100)
+                .get();
+    }
+}
@@ -0,0 +1,80 @@
+package stroom.query.elastic.client;
+
+import io.dropwizard.jackson.Jackson;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import stroom.query.elastic.config.ElasticConfig;
+import stroom.query.elastic.transportClient.TransportClientBundle;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the transport and REST clients making the same search against a local node, as started
+ * for the integration tests. Throughput is searches per second across the threads, and the sample
+ * mode reports the percentiles of the search latency.
+ *
+ * The hosts and index can be changed with the elastic.transportHosts, elastic.httpHost,
+ * elastic.clusterName and elastic.index system properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(8)
+@Fork(1)
+public class ElasticClientBenchmark {
+
+    @Param({"TRANSPORT", "REST"})
+    private String clientType;
+
+    private TransportClient transportClient;
+    private ElasticClient elasticClient;
+    private SearchRequest searchRequest;
+
+    @Setup
+    public void setup() {
+        final Map<String, Object> config = new HashMap<>();
+        config.put("transportHosts", System.getProperty("elastic.transportHosts", "localhost:19300"));
+        config.put("httpHost", System.getProperty("elastic.httpHost", "localhost:19200"));
+        config.put("clusterName", System.getProperty("elastic.clusterName", "docker-cluster"));
+        config.put("clientType", clientType);
+        final ElasticConfig elasticConfig = Jackson.newObjectMapper().convertValue(config, ElasticConfig.class);
+
+        transportClient = TransportClientBundle.createTransportClient(() -> elasticConfig);
+        elasticClient = TransportClientBundle.createElasticClient(() -> elasticConfig, transportClient);
+
+        searchRequest = new SearchRequest(System.getProperty("elastic.index", "stroom"))
+                .source(new SearchSourceBuilder()
+                        .query(QueryBuilders.matchAllQuery())
+                        .size(10));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        elasticClient.close();
+        transportClient.close();
+    }
+
+    @Benchmark
+    public long search() {
+        return elasticClient.search(searchRequest).join().getHits().getTotalHits();
+    }
+}
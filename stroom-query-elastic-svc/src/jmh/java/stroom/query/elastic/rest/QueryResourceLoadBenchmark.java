@@ -0,0 +1,154 @@
+package stroom.query.elastic.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import stroom.query.api.v2.DocRef;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Query;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.elastic.model.ElasticIndexDocRefEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of the blocking audited query resource against the asynchronous one, with many more concurrent
+ * searches than the server has request threads. Throughput is searches per second across the threads, and the
+ * sample mode reports the percentiles of the search latency.
+ *
+ * After each iteration the number of threads in the server and the jobs queued for its request threads are read
+ * from the admin metrics and printed. The blocking resource holds a request thread for every search in flight,
+ * so its pool fills and the searches queue, the asynchronous resource only holds one while a search starts.
+ *
+ * The service should be running against a node holding the shakespeare test data loaded by the integration tests,
+ * with server.maxThreads set below the number of benchmark threads so that the blocking resource saturates.
+ * The hosts, doc ref and auth token can be changed with the query.host, query.adminHost, query.docRefUuid and
+ * query.authToken system properties, no auth header is sent without a token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(256)
+@Fork(1)
+public class QueryResourceLoadBenchmark {
+
+    @Param({"queryApi/v1/search", "asyncQueryApi/v1/search"})
+    private String searchPath;
+
+    private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+
+    private URL searchUrl;
+    private URL metricsUrl;
+    private String authToken;
+    private DocRef docRef;
+
+    @Setup
+    public void setup() throws IOException {
+        searchUrl = new URL(String.format("http://%s/%s", System.getProperty("query.host", "localhost:8299"), searchPath));
+        metricsUrl = new URL(String.format("http://%s/metrics", System.getProperty("query.adminHost", "localhost:8300")));
+        authToken = System.getProperty("query.authToken");
+        docRef = new DocRef.Builder()
+                .type(ElasticIndexDocRefEntity.TYPE)
+                .uuid(System.getProperty("query.docRefUuid"))
+                .build();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printServerThreads() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) metricsUrl.openConnection();
+        try (final InputStream inputStream = connection.getInputStream()) {
+            final JsonNode gauges = objectMapper.readTree(inputStream).path("gauges");
+            System.out.println(String.format("%s server threads %s, queued request jobs %s",
+                    searchPath,
+                    gauges.path("jvm.threads.count").path("value"),
+                    gauges.path("org.eclipse.jetty.util.thread.QueuedThreadPool.dw.jobs").path("value")));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Benchmark
+    public int search() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) searchUrl.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            if (null != authToken) {
+                connection.setRequestProperty("Authorization", "Bearer " + authToken);
+            }
+
+            try (final OutputStream outputStream = connection.getOutputStream()) {
+                objectMapper.writeValue(outputStream, searchRequest());
+            }
+
+            final int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException(String.format("Search of %s returned %d", searchUrl, status));
+            }
+            try (final InputStream inputStream = connection.getInputStream()) {
+                return objectMapper.readTree(inputStream).path("results").size();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Each search has its own key, so none are answered from the results of another.
+     */
+    private SearchRequest searchRequest() {
+        return new SearchRequest.Builder()
+                .query(new Query.Builder()
+                        .dataSource(docRef)
+                        .expression(new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                                .addTerm("speaker", ExpressionTerm.Condition.EQUALS, "WARWICK")
+                                .build())
+                        .build())
+                .key(UUID.randomUUID().toString())
+                .dateTimeLocale("en-gb")
+                .incremental(false)
+                .addResultRequests(new ResultRequest.Builder()
+                        .fetch(ResultRequest.Fetch.ALL)
+                        .resultStyle(ResultRequest.ResultStyle.TABLE)
+                        .componentId("table")
+                        .addMappings(new TableSettings.Builder()
+                                .queryId("queryId")
+                                .extractValues(false)
+                                .showDetail(false)
+                                .addFields(new Field.Builder()
+                                        .name("speaker")
+                                        .expression("${speaker}")
+                                        .build())
+                                .addMaxResults(100)
+                                .build())
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,96 @@
+package stroom.query.elastic.service;
+
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.transport.client.PreBuiltTransportClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scoring and filter context translations of the same expression, searched against a local node
+ * as started for the integration tests. Throughput is searches per second across the threads, and the sample
+ * mode reports the percentiles of the search latency.
+ *
+ * The request cache is turned off so each search is run against the shards, the filter context searches
+ * can still make use of the node query cache, which is the difference being measured.
+ *
+ * The host, cluster and index can be changed with the elastic.transportHost, elastic.transportPort,
+ * elastic.clusterName and elastic.index system properties. The index is expected to hold the shakespeare
+ * test data loaded by the integration tests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(8)
+@Fork(1)
+public class ExpressionQueryBuilderBenchmark {
+
+    @Param({"false", "true"})
+    private boolean filterContext;
+
+    private TransportClient client;
+    private String index;
+    private QueryBuilder query;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        client = new PreBuiltTransportClient(Settings.builder()
+                .put("cluster.name", System.getProperty("elastic.clusterName", "docker-cluster"))
+                .build());
+        client.addTransportAddress(new InetSocketTransportAddress(
+                InetAddress.getByName(System.getProperty("elastic.transportHost", "localhost")),
+                Integer.getInteger("elastic.transportPort", 19300)));
+
+        index = System.getProperty("elastic.index", "shakespeare");
+
+        query = ExpressionQueryBuilder.withFilterContext(filterContext)
+                .build(new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                        .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                                .addTerm("play_name", ExpressionTerm.Condition.IN, "Henry IV,Hamlet,Macbeth")
+                                .build())
+                        .addTerm("line_id", ExpressionTerm.Condition.BETWEEN, "100,4000")
+                        .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.NOT)
+                                .addTerm("speaker", ExpressionTerm.Condition.EQUALS, "FALSTAFF")
+                                .build())
+                        .build());
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public long search() {
+        return client.prepareSearch(index)
+                .setSearchType(SearchType.QUERY_THEN_FETCH)
+                .setRequestCache(false)
+                .setQuery(query)
+                .setSize(100)
+                .get()
+                .getHits()
+                .getTotalHits();
+    }
+}
@@ -0,0 +1,99 @@
+package stroom.query.elastic.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares projecting wide hits by checking every source field against the field index map,
+ * with projecting them through a compiled hit projection.
+ *
+ * Each operation is a single hit, so the scores are rows per second and the gc profiler
+ * reports the bytes allocated per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HitProjectionBenchmark {
+    private static final int PAGE_SIZE = 1000;
+
+    @Param({"150"})
+    private int sourceFieldCount;
+
+    @Param({"5"})
+    private int referencedFieldCount;
+
+    private List<Map<String, Object>> page;
+    private FieldIndexMap fieldIndexMap;
+    private HitProjection hitProjection;
+
+    @Setup
+    public void setup() {
+        page = new ArrayList<>(PAGE_SIZE);
+        for (int hit = 0; hit < PAGE_SIZE; hit++) {
+            final Map<String, Object> source = new HashMap<>();
+            for (int field = 0; field < sourceFieldCount; field++) {
+                source.put("field" + field, (field % 2 == 0) ? "value" + hit : (Object) hit);
+            }
+            page.add(source);
+        }
+
+        fieldIndexMap = new FieldIndexMap(true);
+        final List<String> referencedFields = new ArrayList<>();
+        for (int field = 0; field < referencedFieldCount; field++) {
+            final String fieldName = "field" + (field * (sourceFieldCount / referencedFieldCount));
+            fieldIndexMap.create(fieldName);
+            referencedFields.add(fieldName);
+        }
+
+        hitProjection = HitProjection.compile(referencedFields, fieldIndexMap);
+    }
+
+    /**
+     * The projection as it was, every source field is looked up in the field index map.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public void sourceFieldLookup(final Blackhole blackhole) {
+        for (final Map<String, Object> source : page) {
+            final String[] dataArray = new String[fieldIndexMap.size()];
+
+            source.forEach((fieldName, value) -> {
+                int posInDataArray = fieldIndexMap.get(fieldName);
+                if (posInDataArray != -1 && value != null) {
+                    dataArray[posInDataArray] = value.toString();
+                }
+            });
+
+            blackhole.consume(dataArray);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public void compiledProjection(final Blackhole blackhole) {
+        for (final Map<String, Object> source : page) {
+            blackhole.consume(hitProjection.project(source));
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package stroom.query.elastic;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -14,11 +15,15 @@ import org.eclipse.jetty.servlets.CrossOriginFilter;
 import org.elasticsearch.client.transport.TransportClient;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import stroom.query.audit.AuditedQueryBundle;
+import stroom.query.elastic.client.ElasticClient;
 import stroom.query.elastic.config.Config;
+import stroom.query.elastic.config.ElasticConfig;
 import stroom.query.elastic.health.ElasticHealthCheck;
 import stroom.query.elastic.model.ElasticIndexDocRefEntity;
+import stroom.query.elastic.rest.AsyncQueryResource;
 import stroom.query.elastic.service.ElasticIndexDocRefServiceImpl;
 import stroom.query.elastic.service.ElasticQueryServiceImpl;
+import stroom.query.elastic.service.RunningSearches;
 import stroom.query.elastic.transportClient.TransportClientBundle;
 
 import javax.servlet.DispatcherType;
@@ -29,6 +34,8 @@ public class App extends Application<Config> {
 
     private Injector injector;
 
+    private MetricRegistry metricRegistry;
+
     private TransportClientBundle<Config> transportClientBundle = new TransportClientBundle<>();
 
     private AuditedQueryBundle<Config,
@@ -44,9 +51,14 @@ public class App extends Application<Config> {
     public void run(final Config configuration, final Environment environment) {
         environment.healthChecks().register(
                 "Elastic",
-                new ElasticHealthCheck(transportClientBundle.getTransportClient())
+                new ElasticHealthCheck(transportClientBundle.getTransportClient(), transportClientBundle.getElasticClient())
         );
 
+        environment.lifecycle().manage(injector.getInstance(RunningSearches.class));
+
+        // Searches that suspend the request rather than holding a request thread while they run
+        environment.jersey().register(injector.getInstance(AsyncQueryResource.class));
+
         configureCors(environment);
     }
 
@@ -55,7 +67,9 @@ public class App extends Application<Config> {
             @Override
             protected void configure() {
                 bind(TransportClient.class).toInstance(transportClientBundle.getTransportClient());
-
+                bind(ElasticClient.class).toInstance(transportClientBundle.getElasticClient());
+                bind(ElasticConfig.class).toInstance(config.getElasticConfig());
+                bind(MetricRegistry.class).toInstance(metricRegistry);
             }
         }, auditedQueryBundle.getGuiceModule(config));
     }
@@ -64,6 +78,9 @@ public class App extends Application<Config> {
     public void initialize(final Bootstrap<Config> bootstrap) {
         super.initialize(bootstrap);
 
+        // The environment is created with this same registry, so metrics registered through Guice are reported
+        metricRegistry = bootstrap.getMetricRegistry();
+
         auditedQueryBundle =
                 new AuditedQueryBundle<>(
                         (c) -> {
@@ -0,0 +1,45 @@
+package stroom.query.elastic.client;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The requests sent to Elastic on the busy paths of the service, searches, scrolls, gets and bulk writes.
+ *
+ * The request and response classes are shared by the transport and REST clients, so callers build the same
+ * requests whichever protocol is configured. Every request is asynchronous, the futures complete on the threads
+ * of the underlying client so any real work on the response should be moved onto the executor.
+ */
+public interface ElasticClient extends Closeable {
+
+    CompletableFuture<SearchResponse> search(SearchRequest request);
+
+    CompletableFuture<SearchResponse> searchScroll(SearchScrollRequest request);
+
+    CompletableFuture<ClearScrollResponse> clearScroll(ClearScrollRequest request);
+
+    CompletableFuture<GetResponse> get(GetRequest request);
+
+    CompletableFuture<BulkResponse> bulk(BulkRequest request);
+
+    /**
+     * @return A future for whether the cluster can be reached through this client
+     */
+    CompletableFuture<Boolean> ping();
+
+    /**
+     * @return The executor to do the work of handling responses on, away from the network threads
+     */
+    Executor getExecutor();
+}
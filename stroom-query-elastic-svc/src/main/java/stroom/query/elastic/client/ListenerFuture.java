@@ -0,0 +1,21 @@
+package stroom.query.elastic.client;
+
+import org.elasticsearch.action.ActionListener;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A future that can be handed to either Elastic client as the listener for an asynchronous request.
+ * @param <R> The type of the response
+ */
+class ListenerFuture<R> extends CompletableFuture<R> implements ActionListener<R> {
+    @Override
+    public void onResponse(final R response) {
+        complete(response);
+    }
+
+    @Override
+    public void onFailure(final Exception e) {
+        completeExceptionally(e);
+    }
+}
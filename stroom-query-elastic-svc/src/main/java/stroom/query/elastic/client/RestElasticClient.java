@@ -0,0 +1,136 @@
+package stroom.query.elastic.client;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.query.elastic.config.ElasticConfig;
+import stroom.query.elastic.config.RestClientConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests to the REST API over HTTP, using the asynchronous HTTP client so no thread is held
+ * while a request is in flight. Connections are pooled and kept alive between requests.
+ */
+public class RestElasticClient implements ElasticClient {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RestElasticClient.class);
+
+    private final RestClient restClient;
+    private final RestHighLevelClient client;
+    private final ExecutorService executor;
+
+    public RestElasticClient(final ElasticConfig elasticConfig) {
+        final RestClientConfig restConfig = elasticConfig.getRestClient();
+
+        final HttpHost[] hosts = Arrays.stream(elasticConfig.getHttpHost().split(ElasticConfig.ENTRY_DELIMITER))
+                .map(String::trim)
+                .filter(h -> !h.isEmpty())
+                .map(HttpHost::create)
+                .toArray(HttpHost[]::new);
+        if (hosts.length == 0) {
+            throw new IllegalArgumentException(String.format("No HTTP hosts in '%s'", elasticConfig.getHttpHost()));
+        }
+
+        LOGGER.info(String.format("Elastic Connecting to %s over HTTP", Arrays.toString(hosts)));
+        this.restClient = RestClient.builder(hosts)
+                .setRequestConfigCallback(requestConfig -> requestConfig
+                        .setConnectTimeout((int) restConfig.getConnectTimeout().toMilliseconds())
+                        .setSocketTimeout((int) restConfig.getSocketTimeout().toMilliseconds()))
+                .setHttpClientConfigCallback(httpClient -> httpClient
+                        .setMaxConnTotal(restConfig.getMaxConnections())
+                        .setMaxConnPerRoute(restConfig.getMaxConnectionsPerNode())
+                        .setKeepAliveStrategy((response, context) -> restConfig.getKeepAlive().toMilliseconds()))
+                .setMaxRetryTimeoutMillis((int) restConfig.getSocketTimeout().toMilliseconds())
+                .build();
+        this.client = new RestHighLevelClient(restClient);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable -> {
+            final Thread thread = new Thread(runnable, "elastic-rest-response-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = Executors.newFixedThreadPool(restConfig.getResponseThreads(), threadFactory);
+    }
+
+    @Override
+    public CompletableFuture<SearchResponse> search(final SearchRequest request) {
+        final ListenerFuture<SearchResponse> future = new ListenerFuture<>();
+        client.searchAsync(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<SearchResponse> searchScroll(final SearchScrollRequest request) {
+        final ListenerFuture<SearchResponse> future = new ListenerFuture<>();
+        client.searchScrollAsync(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<ClearScrollResponse> clearScroll(final ClearScrollRequest request) {
+        final ListenerFuture<ClearScrollResponse> future = new ListenerFuture<>();
+        client.clearScrollAsync(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<GetResponse> get(final GetRequest request) {
+        final ListenerFuture<GetResponse> future = new ListenerFuture<>();
+        client.getAsync(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<BulkResponse> bulk(final BulkRequest request) {
+        final ListenerFuture<BulkResponse> future = new ListenerFuture<>();
+        client.bulkAsync(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> ping() {
+        // There is no asynchronous ping, it is a single HEAD request so is cheap to make on the executor
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return client.ping();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * The HTTP client completes its callbacks on its I/O threads, responses are handed to a pool of our own.
+     */
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOGGER.info("Closing Elastic REST Client");
+        executor.shutdown();
+        restClient.close();
+    }
+}
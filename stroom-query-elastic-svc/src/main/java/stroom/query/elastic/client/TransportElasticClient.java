@@ -0,0 +1,82 @@
+package stroom.query.elastic.client;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.transport.TransportClient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Sends requests over the native transport protocol.
+ * The transport client is shared with the rest of the service, so it is not closed here.
+ */
+public class TransportElasticClient implements ElasticClient {
+
+    private final TransportClient client;
+
+    public TransportElasticClient(final TransportClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public CompletableFuture<SearchResponse> search(final SearchRequest request) {
+        final ListenerFuture<SearchResponse> future = new ListenerFuture<>();
+        client.search(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<SearchResponse> searchScroll(final SearchScrollRequest request) {
+        final ListenerFuture<SearchResponse> future = new ListenerFuture<>();
+        client.searchScroll(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<ClearScrollResponse> clearScroll(final ClearScrollRequest request) {
+        final ListenerFuture<ClearScrollResponse> future = new ListenerFuture<>();
+        client.clearScroll(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<GetResponse> get(final GetRequest request) {
+        final ListenerFuture<GetResponse> future = new ListenerFuture<>();
+        client.get(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<BulkResponse> bulk(final BulkRequest request) {
+        final ListenerFuture<BulkResponse> future = new ListenerFuture<>();
+        client.bulk(request, future);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> ping() {
+        return CompletableFuture.completedFuture(!client.connectedNodes().isEmpty());
+    }
+
+    /**
+     * The transport client completes its listeners on the network threads, the generic pool of
+     * the client is there for handing work off to.
+     */
+    @Override
+    public Executor getExecutor() {
+        return client.threadPool().generic();
+    }
+
+    @Override
+    public void close() {
+        // The transport client is closed by the bundle that created it
+    }
+}
@@ -0,0 +1,35 @@
+package stroom.query.elastic.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Settings for one of the in memory caches held by the service.
+ */
+public class CacheConfig {
+
+    /**
+     * The maximum number of entries to hold, the least recently used are evicted beyond this.
+     */
+    @Min(0)
+    @JsonProperty("maximumSize")
+    private long maximumSize = 1000;
+
+    /**
+     * How long an entry can be used for after it was loaded.
+     */
+    @NotNull
+    @JsonProperty("expireAfterWrite")
+    private Duration expireAfterWrite = Duration.minutes(5);
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public Duration getExpireAfterWrite() {
+        return expireAfterWrite;
+    }
+}
@@ -0,0 +1,16 @@
+package stroom.query.elastic.config;
+
+/**
+ * Selects the protocol used to send searches and document requests to Elastic.
+ */
+public enum ElasticClientType {
+    /**
+     * Use the native transport protocol, against the transport hosts
+     */
+    TRANSPORT,
+
+    /**
+     * Use the REST API over HTTP, against the HTTP host
+     */
+    REST
+}
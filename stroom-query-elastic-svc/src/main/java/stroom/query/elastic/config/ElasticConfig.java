@@ -1,9 +1,13 @@
 package stroom.query.elastic.config;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.MinDuration;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
 
 public class ElasticConfig {
     public static final String ENTRY_DELIMITER = ",";
@@ -24,10 +28,140 @@ public class ElasticConfig {
     @JsonProperty("clusterName")
     private String clusterName;
 
+    /**
+     * The protocol used to send searches and document requests to Elastic.
+     */
+    @NotNull
+    @JsonProperty("clientType")
+    private ElasticClientType clientType = ElasticClientType.TRANSPORT;
+
+    /**
+     * Tuning for the REST client connections to the HTTP host.
+     */
+    @Valid
+    @NotNull
+    @JsonProperty("restClient")
+    private RestClientConfig restClient = new RestClientConfig();
+
+    /**
+     * Tuning for the transport client connections to the cluster.
+     */
+    @Valid
+    @NotNull
+    @JsonProperty("transportClient")
+    private TransportClientConfig transportClient = new TransportClientConfig();
+
+    /**
+     * The number of hits to pull back from Elastic in each page of a search scroll.
+     * This governs how much memory a single running search will hold onto.
+     */
+    @Min(1)
+    @JsonProperty("scrollPageSize")
+    private int scrollPageSize = 1000;
+
+    /**
+     * How long Elastic should keep the search context alive between page requests.
+     */
+    @NotNull
+    @JsonProperty("scrollKeepAlive")
+    private Duration scrollKeepAlive = Duration.minutes(1);
+
+    /**
+     * If set, tables that only group on fields and aggregate with count/sum/min/max/average
+     * will be calculated by Elastic aggregations rather than by streaming every hit back.
+     */
+    @JsonProperty("aggregationPushDown")
+    private boolean aggregationPushDown = true;
+
+    /**
+     * If set, a single ungrouped table sorted on a numeric field has its hits sorted by Elastic,
+     * so the scroll can stop once the table is full. Turn this off for indexes with multi valued fields.
+     */
+    @JsonProperty("sortPushDown")
+    private boolean sortPushDown = true;
+
+    /**
+     * The maximum number of buckets to request at each level of a pushed down aggregation.
+     * If a level has more terms than this, the search falls back to streaming the hits.
+     */
+    @Min(1)
+    @JsonProperty("maxAggregationBuckets")
+    private int maxAggregationBuckets = 10000;
+
+    /**
+     * How to choose the search type for each search, the extra round trip made by DFS
+     * is only worth paying when a clause is actually scored.
+     */
+    @NotNull
+    @JsonProperty("searchTypePolicy")
+    private SearchTypePolicy searchTypePolicy = SearchTypePolicy.AUTO;
+
+    /**
+     * If set, expressions are compiled into non scoring filter context so the node filter caches can be used.
+     */
+    @JsonProperty("filterContext")
+    private boolean filterContext = true;
+
+    /**
+     * If set, a search feeding several tables will feed each table on its own thread.
+     */
+    @JsonProperty("parallelCoprocessors")
+    private boolean parallelCoprocessors = true;
+
+    /**
+     * The default time limit for a search that does not give its own timeout, whichever client is used.
+     * If not set searches may run until they complete. A search that runs out of time returns what it has found so far.
+     */
+    @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+    @JsonProperty("searchTimeout")
+    private Duration searchTimeout;
+
+    /**
+     * How long an incremental search waits for the search to finish before returning the results found so far.
+     */
+    @NotNull
+    @JsonProperty("incrementalWait")
+    private Duration incrementalWait = Duration.seconds(1);
+
+    /**
+     * How long the results of a search are held for after they were last read, if the search is not destroyed.
+     */
+    @NotNull
+    @JsonProperty("searchResultsTimeToIdle")
+    private Duration searchResultsTimeToIdle = Duration.minutes(10);
+
+    /**
+     * The cache of data sources built from the index field mappings.
+     */
+    @Valid
+    @NotNull
+    @JsonProperty("dataSourceCache")
+    private CacheConfig dataSourceCache = new CacheConfig();
+
+    /**
+     * The cache of doc ref entities read from the stroom index.
+     */
+    @Valid
+    @NotNull
+    @JsonProperty("docRefCache")
+    private CacheConfig docRefCache = new CacheConfig();
+
     public String getClusterName() {
         return clusterName;
     }
 
+    public ElasticClientType getClientType() {
+        return clientType;
+    }
+
+    public RestClientConfig getRestClient() {
+        return restClient;
+    }
+
+    public TransportClientConfig getTransportClient() {
+        return transportClient;
+    }
+
     public String getTransportHosts() {
         return transportHosts;
     }
@@ -35,4 +169,56 @@ public class ElasticConfig {
     public String getHttpHost() {
         return httpHost;
     }
+
+    public int getScrollPageSize() {
+        return scrollPageSize;
+    }
+
+    public Duration getScrollKeepAlive() {
+        return scrollKeepAlive;
+    }
+
+    public boolean isAggregationPushDown() {
+        return aggregationPushDown;
+    }
+
+    public boolean isSortPushDown() {
+        return sortPushDown;
+    }
+
+    public int getMaxAggregationBuckets() {
+        return maxAggregationBuckets;
+    }
+
+    public SearchTypePolicy getSearchTypePolicy() {
+        return searchTypePolicy;
+    }
+
+    public boolean isFilterContext() {
+        return filterContext;
+    }
+
+    public boolean isParallelCoprocessors() {
+        return parallelCoprocessors;
+    }
+
+    public Duration getSearchTimeout() {
+        return searchTimeout;
+    }
+
+    public Duration getIncrementalWait() {
+        return incrementalWait;
+    }
+
+    public Duration getSearchResultsTimeToIdle() {
+        return searchResultsTimeToIdle;
+    }
+
+    public CacheConfig getDataSourceCache() {
+        return dataSourceCache;
+    }
+
+    public CacheConfig getDocRefCache() {
+        return docRefCache;
+    }
 }
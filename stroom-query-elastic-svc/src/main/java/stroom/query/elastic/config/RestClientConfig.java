@@ -0,0 +1,84 @@
+package stroom.query.elastic.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.MinDuration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuning for the Elastic REST client, only used when the client type is REST.
+ */
+public class RestClientConfig {
+
+    /**
+     * The maximum number of HTTP connections held open across every node.
+     */
+    @Min(1)
+    @JsonProperty("maxConnections")
+    private int maxConnections = 30;
+
+    /**
+     * The maximum number of HTTP connections held open to each node.
+     */
+    @Min(1)
+    @JsonProperty("maxConnectionsPerNode")
+    private int maxConnectionsPerNode = 10;
+
+    /**
+     * How long an idle connection is kept alive for reuse.
+     */
+    @NotNull
+    @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+    @JsonProperty("keepAlive")
+    private Duration keepAlive = Duration.minutes(1);
+
+    /**
+     * How long to wait for a connection to a node to be established.
+     */
+    @NotNull
+    @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+    @JsonProperty("connectTimeout")
+    private Duration connectTimeout = Duration.seconds(1);
+
+    /**
+     * How long to wait for data on a connection before the request fails.
+     */
+    @NotNull
+    @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+    @JsonProperty("socketTimeout")
+    private Duration socketTimeout = Duration.seconds(30);
+
+    /**
+     * The number of threads that responses are handed to, so the HTTP I/O threads are not held up.
+     */
+    @Min(1)
+    @JsonProperty("responseThreads")
+    private int responseThreads = 8;
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerNode() {
+        return maxConnectionsPerNode;
+    }
+
+    public Duration getKeepAlive() {
+        return keepAlive;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public Duration getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public int getResponseThreads() {
+        return responseThreads;
+    }
+}
@@ -0,0 +1,22 @@
+package stroom.query.elastic.config;
+
+/**
+ * Governs the Elastic search type used for each search.
+ */
+public enum SearchTypePolicy {
+    /**
+     * Use DFS_QUERY_THEN_FETCH only when the expression contains a clause that is scored,
+     * filter only expressions have no use for global term statistics.
+     */
+    AUTO,
+
+    /**
+     * Always use QUERY_THEN_FETCH
+     */
+    QUERY_THEN_FETCH,
+
+    /**
+     * Always use DFS_QUERY_THEN_FETCH
+     */
+    DFS_QUERY_THEN_FETCH
+}
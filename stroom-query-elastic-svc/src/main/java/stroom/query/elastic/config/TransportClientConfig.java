@@ -0,0 +1,73 @@
+package stroom.query.elastic.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.MinDuration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuning for the Elastic transport client, the defaults match those of the client itself.
+ */
+public class TransportClientConfig {
+
+    /**
+     * If set, the client discovers the rest of the cluster from the listed transport hosts and
+     * spreads requests across every data node, rather than only the hosts listed.
+     */
+    @JsonProperty("sniff")
+    private boolean sniff = false;
+
+    /**
+     * How long to wait for a ping response from a node before it is considered unavailable.
+     */
+    @NotNull
+    @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+    @JsonProperty("pingTimeout")
+    private Duration pingTimeout = Duration.seconds(5);
+
+    /**
+     * How often to sample the listed nodes, and to discover new ones when sniffing.
+     */
+    @NotNull
+    @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+    @JsonProperty("nodesSamplerInterval")
+    private Duration nodesSamplerInterval = Duration.seconds(5);
+
+    /**
+     * How long to wait for a connection to a node to be established.
+     */
+    @NotNull
+    @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+    @JsonProperty("connectTimeout")
+    private Duration connectTimeout = Duration.seconds(30);
+
+    /**
+     * The number of connections held open to each node for ordinary requests such as searches and gets.
+     */
+    @Min(1)
+    @JsonProperty("connectionsPerNode")
+    private int connectionsPerNode = 6;
+
+    public boolean isSniff() {
+        return sniff;
+    }
+
+    public Duration getPingTimeout() {
+        return pingTimeout;
+    }
+
+    public Duration getNodesSamplerInterval() {
+        return nodesSamplerInterval;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getConnectionsPerNode() {
+        return connectionsPerNode;
+    }
+}
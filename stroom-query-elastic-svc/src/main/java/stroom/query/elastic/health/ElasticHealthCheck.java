@@ -5,17 +5,41 @@ import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.cluster.health.ClusterIndexHealth;
+import stroom.query.elastic.client.ElasticClient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ElasticHealthCheck extends HealthCheck {
+    /**
+     * How long to wait for the configured client to answer a ping, health checks must not hang if Elastic does
+     */
+    private static final long PING_TIMEOUT_SECONDS = 10;
 
     private final TransportClient client;
+    private final ElasticClient elasticClient;
 
-    public ElasticHealthCheck(TransportClient client) {
+    public ElasticHealthCheck(TransportClient client,
+                              ElasticClient elasticClient) {
         this.client = client;
+        this.elasticClient = elasticClient;
     }
 
     @Override
     protected Result check() throws Exception {
+        // Searches go through the configured client, which may not be the transport client
+        final CompletableFuture<Boolean> ping = elasticClient.ping();
+        try {
+            if (!ping.get(PING_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return Result.unhealthy("Elastic cannot be reached through the " + elasticClient.getClass().getSimpleName());
+            }
+        } catch (final TimeoutException e) {
+            ping.cancel(true);
+            return Result.unhealthy(String.format("Elastic did not answer a ping through the %s within %d seconds",
+                    elasticClient.getClass().getSimpleName(), PING_TIMEOUT_SECONDS));
+        }
+
         final ClusterHealthResponse healths = client.admin().cluster().prepareHealth().get();
         final String clusterName = healths.getClusterName();
         final int numberOfDataNodes = healths.getNumberOfDataNodes();
@@ -9,11 +9,30 @@ public class ElasticIndexDocRefEntity extends DocRefEntity {
     public static final String TYPE = "ElasticIndex";
     public static final String INDEX_NAME = "INDEX_NAME";
     public static final String INDEXED_TYPE = "INDEXED_TYPE";
+    public static final String ROUTING_FIELD = "ROUTING_FIELD";
+    public static final String PREFERENCE = "PREFERENCE";
+    public static final String REQUEST_CACHE = "REQUEST_CACHE";
 
     private String indexName;
 
     private String indexedType;
 
+    /**
+     * The field the documents are routed to shards on, when a query requires particular values
+     * of this field only the shards holding those values are searched.
+     */
+    private String routingField;
+
+    /**
+     * The Elastic search preference, controlling which copies of the shards are searched.
+     */
+    private String preference;
+
+    /**
+     * Whether to use the shard request cache for searches, if not set the setting of the index is used.
+     */
+    private Boolean requestCache;
+
     public String getIndexName() {
         return indexName;
     }
@@ -30,12 +49,39 @@ public class ElasticIndexDocRefEntity extends DocRefEntity {
         this.indexedType = value;
     }
 
+    public String getRoutingField() {
+        return routingField;
+    }
+
+    public void setRoutingField(final String value) {
+        this.routingField = value;
+    }
+
+    public String getPreference() {
+        return preference;
+    }
+
+    public void setPreference(final String value) {
+        this.preference = value;
+    }
+
+    public Boolean getRequestCache() {
+        return requestCache;
+    }
+
+    public void setRequestCache(final Boolean value) {
+        this.requestCache = value;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("ElasticIndexConfig{");
         sb.append("super='").append(super.toString()).append('\'');
         sb.append(", indexName='").append(indexName).append('\'');
         sb.append(", indexedType='").append(indexedType).append('\'');
+        sb.append(", routingField='").append(routingField).append('\'');
+        sb.append(", preference='").append(preference).append('\'');
+        sb.append(", requestCache=").append(requestCache);
         sb.append('}');
         return sb.toString();
     }
@@ -56,6 +102,21 @@ public class ElasticIndexDocRefEntity extends DocRefEntity {
             this.instance.setIndexedType(Optional.ofNullable(value).map(Object::toString).map(String::toLowerCase).orElse(null));
             return self();
         }
+
+        public CHILD_CLASS routingField(final Object value) {
+            this.instance.setRoutingField(Optional.ofNullable(value).map(Object::toString).filter(v -> !v.isEmpty()).orElse(null));
+            return self();
+        }
+
+        public CHILD_CLASS preference(final Object value) {
+            this.instance.setPreference(Optional.ofNullable(value).map(Object::toString).filter(v -> !v.isEmpty()).orElse(null));
+            return self();
+        }
+
+        public CHILD_CLASS requestCache(final Object value) {
+            this.instance.setRequestCache(Optional.ofNullable(value).map(Object::toString).filter(v -> !v.isEmpty()).map(Boolean::valueOf).orElse(null));
+            return self();
+        }
     }
 
     public static final class Builder extends BaseBuilder<ElasticIndexDocRefEntity, Builder> {
@@ -0,0 +1,108 @@
+package stroom.query.elastic.rest;
+
+import event.logging.Event;
+import event.logging.EventLoggingService;
+import io.dropwizard.auth.Auth;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.query.api.v2.DocRef;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.SearchResponse;
+import stroom.query.audit.authorisation.AuthorisationService;
+import stroom.query.audit.authorisation.DocumentPermission;
+import stroom.query.audit.rest.AuditedQueryResourceImpl;
+import stroom.query.audit.security.ServiceUser;
+import stroom.query.audit.service.QueryApiException;
+import stroom.query.elastic.service.ElasticQueryServiceImpl;
+
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Searches as the audited query resource does, but suspends the request while the search runs instead of holding
+ * a request thread for it. The request threads are then only used to start searches and to write the responses,
+ * so many more searches can be in flight than there are request threads.
+ *
+ * The user must have read permission on the data source, and each search is audited with the same event type as the
+ * audited resource. Searches started here are polled and destroyed through the audited resource as usual.
+ */
+@Path("/asyncQueryApi/v1")
+@Produces(MediaType.APPLICATION_JSON)
+@Consumes(MediaType.APPLICATION_JSON)
+public class AsyncQueryResource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncQueryResource.class);
+
+    private final ElasticQueryServiceImpl service;
+    private final AuthorisationService authorisationService;
+    private final EventLoggingService eventLoggingService;
+
+    @Inject
+    public AsyncQueryResource(final ElasticQueryServiceImpl service,
+                              final AuthorisationService authorisationService,
+                              final EventLoggingService eventLoggingService) {
+        this.service = service;
+        this.authorisationService = authorisationService;
+        this.eventLoggingService = eventLoggingService;
+    }
+
+    @POST
+    @Path("/search")
+    public void search(@Auth final ServiceUser user,
+                       final SearchRequest request,
+                       @Suspended final AsyncResponse asyncResponse) {
+        final DocRef docRef = request.getQuery().getDataSource();
+        if (!authorisationService.isAuthorised(user, docRef, DocumentPermission.READ)) {
+            audit(user, docRef, "was not authorised");
+            asyncResponse.resume(Response.status(Response.Status.FORBIDDEN).build());
+            return;
+        }
+
+        final CompletableFuture<Optional<SearchResponse>> searchResponse;
+        try {
+            searchResponse = service.searchResponse(user, request);
+        } catch (final QueryApiException | RuntimeException e) {
+            audit(user, docRef, "failed: " + e.getMessage());
+            asyncResponse.resume(e);
+            return;
+        }
+
+        // Completed on the thread that finishes the search, the request thread has long since been released
+        searchResponse.whenComplete((response, e) -> {
+            if (null != e) {
+                final Throwable cause = ((e instanceof CompletionException) && (null != e.getCause())) ? e.getCause() : e;
+                LOGGER.warn("Search of " + docRef.getUuid() + " failed", cause);
+                audit(user, docRef, "failed: " + cause.getMessage());
+                asyncResponse.resume(cause);
+            } else if (response.isPresent()) {
+                audit(user, docRef, "succeeded");
+                asyncResponse.resume(Response.ok(response.get()).build());
+            } else {
+                audit(user, docRef, "did not find the index");
+                asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+            }
+        });
+    }
+
+    private void audit(final ServiceUser user,
+                       final DocRef docRef,
+                       final String outcome) {
+        final Event.EventDetail eventDetail = new Event.EventDetail();
+        eventDetail.setTypeId(AuditedQueryResourceImpl.QUERY_SEARCH);
+        eventDetail.setDescription(String.format("%s searched %s %s, %s",
+                user.getName(), docRef.getType(), docRef.getUuid(), outcome));
+
+        final Event event = eventLoggingService.createEvent();
+        event.setEventDetail(eventDetail);
+        eventLoggingService.log(event);
+    }
+}
@@ -1,9 +1,20 @@
 package stroom.query.elastic.service;
 
+import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import stroom.query.api.v2.DocRef;
@@ -13,15 +24,24 @@ import stroom.query.audit.model.DocRefEntity;
 import stroom.query.audit.security.ServiceUser;
 import stroom.query.audit.service.DocRefService;
 import stroom.query.audit.service.QueryApiException;
+import stroom.query.elastic.client.ElasticClient;
 import stroom.query.elastic.model.ElasticIndexDocRefEntity;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
@@ -34,15 +54,125 @@ public abstract class AbstractElasticDocRefServiceImpl<T extends ElasticIndexDoc
     public static final String DOC_REF_INDEXED_TYPE = "docref";
     public static final String DOC_REF_ROLE = "DOC_REF_ROLE";
 
-    private final TransportClient client;
+    private static final int BATCH_SIZE = 500;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
 
-    public AbstractElasticDocRefServiceImpl(final TransportClient client) {
+    private final TransportClient client;
+    private final ElasticClient elasticClient;
+    private final DataSourceCache dataSourceCache;
+    private final DocRefEntityCache docRefEntityCache;
+
+    public AbstractElasticDocRefServiceImpl(final TransportClient client,
+                                            final ElasticClient elasticClient,
+                                            final DataSourceCache dataSourceCache,
+                                            final DocRefEntityCache docRefEntityCache) {
         this.client = client;
+        this.elasticClient = elasticClient;
+        this.dataSourceCache = dataSourceCache;
+        this.docRefEntityCache = docRefEntityCache;
     }
 
+    /**
+     * Read every doc ref of this type, a page at a time through a scroll.
+     * The entities read are held in the cache, so this can be used to warm it up.
+     */
     @Override
     public List<T> getAll(final ServiceUser user) throws QueryApiException {
-        return null;
+        final List<T> results = new ArrayList<>();
+        scrollAll(results::add);
+        return results;
+    }
+
+    /**
+     * Scroll through every doc ref of this type, handing each to the consumer as its page arrives.
+     * @param consumer Receives each entity, the entities are also put in the cache
+     * @throws QueryApiException If the doc refs could not be read, or the consumer failed
+     */
+    private void scrollAll(final Consumer<T> consumer) throws QueryApiException {
+        try {
+            SearchResponse response = client.prepareSearch(STROOM_INDEX_NAME)
+                    .setTypes(DOC_REF_INDEXED_TYPE)
+                    .setQuery(QueryBuilders.boolQuery()
+                            .filter(QueryBuilders.matchQuery(DOC_REF_ROLE, getType())))
+                    .addSort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC)
+                    .setFetchSource(getSourceFields(), null)
+                    .setSize(BATCH_SIZE)
+                    .setScroll(SCROLL_KEEP_ALIVE)
+                    .get();
+
+            try {
+                while (response.getHits().getHits().length > 0) {
+                    for (final SearchHit hit : response.getHits().getHits()) {
+                        if (null != hit.getSource()) {
+                            final T entity = fromSource(hit.getId(), hit.getSource());
+                            docRefEntityCache.put(getType(), entity);
+                            consumer.accept(entity);
+                        }
+                    }
+
+                    response = client.prepareSearchScroll(response.getScrollId())
+                            .setScroll(SCROLL_KEEP_ALIVE)
+                            .get();
+                }
+            } finally {
+                client.prepareClearScroll().addScrollId(response.getScrollId()).get();
+            }
+        } catch (IndexNotFoundException e) {
+            // Nothing has been created yet
+        } catch (Exception e) {
+            LOGGER.warn("Could not get all index configs", e);
+            throw new QueryApiException(e);
+        }
+    }
+
+    /**
+     * Get several doc refs at once, those not already cached are fetched with a multi get per batch of UUIDs.
+     * @param user The user making the request
+     * @param uuids The UUIDs of the doc refs
+     * @return The doc refs that were found, in the order of the UUIDs given
+     * @throws QueryApiException If the doc refs could not be read
+     */
+    public List<T> getMany(final ServiceUser user,
+                           final Collection<String> uuids) throws QueryApiException {
+        final Map<String, T> found = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (final String uuid : new LinkedHashSet<>(uuids)) {
+            final Optional<T> cached = docRefEntityCache.getIfPresent(getType(), uuid);
+            if (cached.isPresent()) {
+                found.put(uuid, cached.get());
+            } else {
+                missing.add(uuid);
+            }
+        }
+
+        try {
+            for (int from = 0; from < missing.size(); from += BATCH_SIZE) {
+                final MultiGetRequestBuilder multiGet = client.prepareMultiGet();
+                missing.subList(from, Math.min(from + BATCH_SIZE, missing.size()))
+                        .forEach(uuid -> multiGet.add(new MultiGetRequest.Item(STROOM_INDEX_NAME, DOC_REF_INDEXED_TYPE, uuid)
+                                .fetchSourceContext(new FetchSourceContext(true, getSourceFields(), null))));
+
+                for (final MultiGetItemResponse item : multiGet.get()) {
+                    // A missing stroom index fails each item rather than the whole request
+                    if (item.isFailed() || !item.getResponse().isExists() || item.getResponse().isSourceEmpty()) {
+                        continue;
+                    }
+
+                    final T entity = fromSource(item.getId(), item.getResponse().getSource());
+                    docRefEntityCache.put(getType(), entity);
+                    found.put(item.getId(), entity);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Could not get index configs", e);
+            throw new QueryApiException(e);
+        }
+
+        return uuids.stream()
+                .distinct()
+                .map(found::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
     }
 
     private static final Function<String, Object> NULL_SOURCE = (n) -> null;
@@ -57,77 +187,84 @@ public abstract class AbstractElasticDocRefServiceImpl<T extends ElasticIndexDoc
     @Override
     public Optional<T> get(final ServiceUser user,
                            final String uuid) throws QueryApiException {
-        try {
-            final GetResponse searchResponse = client
-                        .prepareGet(STROOM_INDEX_NAME, DOC_REF_INDEXED_TYPE, uuid)
-                    .get();
+        return docRefEntityCache.get(getType(), uuid, () -> load(uuid));
+    }
 
-            if (searchResponse.isExists() && !searchResponse.isSourceEmpty()) {
-                final Map<String, Object> source = searchResponse.getSource();
-                final Object stroomName = source.get(DocRefEntity.NAME);
-                final Object createUser = source.get(DocRefEntity.CREATE_USER);
-                final Object createTime = source.get(DocRefEntity.CREATE_TIME);
-                final Object updateUser = source.get(DocRefEntity.UPDATE_USER);
-                final Object updateTime = source.get(DocRefEntity.UPDATE_TIME);
-                final Object indexName = source.get(ElasticIndexDocRefEntity.INDEX_NAME);
-                final Object indexedType = source.get(ElasticIndexDocRefEntity.INDEXED_TYPE);
-
-                return Optional.of(build(source::get)
-                        .uuid(uuid)
-                        .indexName(indexName)
-                        .indexedType(indexedType)
-                        .name((stroomName != null) ? stroomName.toString() : null)
-                        .createUser((createUser != null) ? createUser.toString() : null)
-                        .createTime((createTime != null) ? Long.valueOf(createTime.toString()) : null)
-                        .updateUser((updateUser != null) ? updateUser.toString() : null)
-                        .updateTime((updateTime != null) ? Long.valueOf(updateTime.toString()) : null)
-                        .build());
-            } else {
-                return Optional.empty();
-            }
-        } catch (IndexNotFoundException e) {
-            return Optional.empty();
-        } catch (Exception e) {
-            LOGGER.warn("Could not update index config", e);
-            throw new QueryApiException(e);
-        }
+    private Optional<T> load(final String uuid) throws QueryApiException {
+        // This is on the path of every search, so goes through the configured client
+        return ActionFutures.await(elasticClient.get(new GetRequest(STROOM_INDEX_NAME, DOC_REF_INDEXED_TYPE, uuid))
+                .thenApply(searchResponse -> {
+                    if (searchResponse.isExists() && !searchResponse.isSourceEmpty()) {
+                        return Optional.of(fromSource(uuid, searchResponse.getSource()));
+                    } else {
+                        return Optional.<T>empty();
+                    }
+                })
+                .whenComplete((result, e) -> {
+                    if ((null != e) && !ActionFutures.isIndexNotFound(e)) {
+                        LOGGER.warn("Could not get index config", ActionFutures.unwrap(e));
+                    }
+                }));
+    }
+
+    /**
+     * Build an entity from the source of its document in the stroom index.
+     * @param uuid The UUID of the doc ref, this is the ID of the document
+     * @param source The source of the document
+     * @return The entity
+     */
+    private T fromSource(final String uuid,
+                         final Map<String, Object> source) {
+        final Object stroomName = source.get(DocRefEntity.NAME);
+        final Object createUser = source.get(DocRefEntity.CREATE_USER);
+        final Object createTime = source.get(DocRefEntity.CREATE_TIME);
+        final Object updateUser = source.get(DocRefEntity.UPDATE_USER);
+        final Object updateTime = source.get(DocRefEntity.UPDATE_TIME);
+        final Object indexName = source.get(ElasticIndexDocRefEntity.INDEX_NAME);
+        final Object indexedType = source.get(ElasticIndexDocRefEntity.INDEXED_TYPE);
+
+        return build(source::get)
+                .uuid(uuid)
+                .indexName(indexName)
+                .indexedType(indexedType)
+                .name((stroomName != null) ? stroomName.toString() : null)
+                .createUser((createUser != null) ? createUser.toString() : null)
+                .createTime((createTime != null) ? Long.valueOf(createTime.toString()) : null)
+                .updateUser((updateUser != null) ? updateUser.toString() : null)
+                .updateTime((updateTime != null) ? Long.valueOf(updateTime.toString()) : null)
+                .build();
+    }
+
+    /**
+     * @return The fields of the document source needed to build an entity
+     */
+    private String[] getSourceFields() {
+        final List<String> fields = new ArrayList<>(Arrays.asList(
+                DocRefEntity.NAME,
+                DocRefEntity.CREATE_USER,
+                DocRefEntity.CREATE_TIME,
+                DocRefEntity.UPDATE_USER,
+                DocRefEntity.UPDATE_TIME,
+                ElasticIndexDocRefEntity.INDEX_NAME,
+                ElasticIndexDocRefEntity.INDEXED_TYPE));
+        iterateFieldNames(fields::add);
+        return fields.toArray(new String[fields.size()]);
     }
 
     @Override
     public Optional<DocRefInfo> getInfo(final ServiceUser user,
                                         final String uuid) throws QueryApiException {
-        try {
-            final GetResponse searchResponse = client
-                    .prepareGet(STROOM_INDEX_NAME, DOC_REF_INDEXED_TYPE, uuid)
-                    .get();
-
-            if (searchResponse.isExists() && !searchResponse.isSourceEmpty()) {
-                final Map<String, Object> source = searchResponse.getSource();
-                final Object name = source.get(DocRefEntity.NAME);
-                final Object createUser = source.get(DocRefEntity.CREATE_USER);
-                final Object createTime = source.get(DocRefEntity.CREATE_TIME);
-                final Object updateUser = source.get(DocRefEntity.UPDATE_USER);
-                final Object updateTime = source.get(DocRefEntity.UPDATE_TIME);
-
-                return Optional.of(new DocRefInfo.Builder()
+        return get(user, uuid)
+                .map(d -> new DocRefInfo.Builder()
                         .docRef(new DocRef.Builder()
                                 .uuid(uuid)
-                                .name((name != null) ? name.toString() : null)
+                                .name(d.getName())
                                 .build())
-                        .createUser((createUser != null) ? createUser.toString() : null)
-                        .createTime((createTime != null) ? Long.valueOf(createTime.toString()) : null)
-                        .updateUser((updateUser != null) ? updateUser.toString() : null)
-                        .updateTime((updateTime != null) ? Long.valueOf(updateTime.toString()) : null)
+                        .createUser(d.getCreateUser())
+                        .createTime(d.getCreateTime())
+                        .updateUser(d.getUpdateUser())
+                        .updateTime(d.getUpdateTime())
                         .build());
-            } else {
-                return Optional.empty();
-            }
-        } catch (IndexNotFoundException e) {
-            return Optional.empty();
-        } catch (Exception e) {
-            LOGGER.warn("Could not update index config", e);
-            throw new QueryApiException(e);
-        }
     }
 
     @Override
@@ -150,6 +287,8 @@ public abstract class AbstractElasticDocRefServiceImpl<T extends ElasticIndexDoc
                     )
                     .get();
 
+            invalidate(uuid);
+
             return Optional.of(build()
                     .uuid(uuid)
                     .name(name)
@@ -184,6 +323,9 @@ public abstract class AbstractElasticDocRefServiceImpl<T extends ElasticIndexDoc
             client.prepareUpdate(STROOM_INDEX_NAME, DOC_REF_INDEXED_TYPE, uuid)
                     .setDoc(json.endObject())
                     .get();
+
+            // The doc ref may now point at a different index
+            invalidate(uuid);
         } catch (IndexNotFoundException e) {
             return Optional.empty();
         } catch (IOException | RuntimeException e) {
@@ -230,6 +372,8 @@ public abstract class AbstractElasticDocRefServiceImpl<T extends ElasticIndexDoc
                         .setSource(json.endObject())
                         .get();
 
+                invalidate(copyUuid);
+
                 return get(user, copyUuid);
             } else {
                 return Optional.empty();
@@ -265,6 +409,8 @@ public abstract class AbstractElasticDocRefServiceImpl<T extends ElasticIndexDoc
                             .endObject()
                     )
                     .get();
+
+            invalidate(uuid);
         } catch (IndexNotFoundException e) {
             return Optional.empty();
         } catch (IOException e) {
@@ -279,6 +425,7 @@ public abstract class AbstractElasticDocRefServiceImpl<T extends ElasticIndexDoc
     public Optional<Boolean> deleteDocument(final ServiceUser user,
                                             final String uuid) throws QueryApiException {
         client.prepareDelete(STROOM_INDEX_NAME, DOC_REF_INDEXED_TYPE, uuid).get();
+        invalidate(uuid);
         return Optional.of(Boolean.TRUE);
     }
 
@@ -326,4 +473,13 @@ public abstract class AbstractElasticDocRefServiceImpl<T extends ElasticIndexDoc
             }
         }
     }
+
+    /**
+     * Drop anything held for a doc ref once the document behind it has changed.
+     * @param uuid The UUID of the doc ref
+     */
+    private void invalidate(final String uuid) {
+        docRefEntityCache.invalidate(getType(), uuid);
+        dataSourceCache.invalidate(uuid);
+    }
 }
@@ -0,0 +1,126 @@
+package stroom.query.elastic.service;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.index.IndexNotFoundException;
+import stroom.query.audit.service.QueryApiException;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bridges the listener based Elastic client onto completable futures, so requests can be chained
+ * together without holding a thread while each round trip is in flight.
+ */
+class ActionFutures {
+    private ActionFutures() {
+        // Static methods only
+    }
+
+    /**
+     * Execute an Elastic request without blocking.
+     * @param requestBuilder The request to execute
+     * @param <R> The type of the response
+     * @return A future that completes with the response, or exceptionally with the failure
+     */
+    static <R extends ActionResponse> CompletableFuture<R> execute(final ActionRequestBuilder<?, R, ?> requestBuilder) {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+
+        requestBuilder.execute(new ActionListener<R>() {
+            @Override
+            public void onResponse(final R response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Determine if a failure was caused by the index not existing, this is reported as an empty result.
+     * @param e The failure, as passed along a future
+     * @return True if the root cause is a missing index
+     */
+    static boolean isIndexNotFound(final Throwable e) {
+        return (e instanceof IndexNotFoundException) || (ExceptionUtils.getRootCause(e) instanceof IndexNotFoundException);
+    }
+
+    /**
+     * Report a missing index as an empty result, as the blocking callers do.
+     * @param future The future of the result
+     * @param <T> The type of the result
+     * @return A future that completes with the result, empty if the index did not exist
+     */
+    static <T> CompletableFuture<Optional<T>> emptyIfIndexNotFound(final CompletableFuture<Optional<T>> future) {
+        return future.handle((result, e) -> {
+            if (null == e) {
+                return result;
+            } else if (isIndexNotFound(e)) {
+                return Optional.empty();
+            }
+            throw asCompletionException(e);
+        });
+    }
+
+    /**
+     * Wait for the result of a future, for callers that must still provide a blocking result.
+     * @param future The future to wait for
+     * @param <T> The type of the result
+     * @return The result, or empty if the index did not exist
+     * @throws QueryApiException If the future failed for any other reason
+     */
+    static <T> Optional<T> await(final CompletableFuture<Optional<T>> future) throws QueryApiException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryApiException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = unwrap(e);
+
+            if (isIndexNotFound(cause)) {
+                return Optional.empty();
+            } else if (cause instanceof QueryApiException) {
+                throw (QueryApiException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new QueryApiException((Exception) cause);
+            }
+        }
+    }
+
+    /**
+     * Wrap a failure so it can be rethrown from within a stage of a future, without wrapping it twice.
+     * @param e The failure
+     * @return The exception to throw
+     */
+    static CompletionException asCompletionException(final Throwable e) {
+        return (e instanceof CompletionException) ? (CompletionException) e : new CompletionException(e);
+    }
+
+    /**
+     * Strip the wrapping exceptions added as a failure passes along a chain of futures.
+     * @param e The exception
+     * @return The original failure
+     */
+    static Throwable unwrap(final Throwable e) {
+        Throwable cause = e;
+        while (((cause instanceof CompletionException) || (cause instanceof ExecutionException))
+                && (null != cause.getCause())) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
@@ -0,0 +1,441 @@
+package stroom.query.elastic.service;
+
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.SingleBucketAggregation;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+import stroom.datasource.api.v2.DataSource;
+import stroom.datasource.api.v2.DataSourceField;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Format;
+import stroom.query.api.v2.NumberFormat;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.common.v2.Coprocessor;
+import stroom.query.common.v2.CoprocessorSettings;
+import stroom.query.common.v2.CoprocessorSettingsMap;
+import stroom.query.common.v2.TableCoprocessorSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * When every table in a search request only groups on plain fields and aggregates with
+ * count/sum/min/max/average, the grouping can be done by Elastic with nested terms aggregations.
+ *
+ * The table settings are rewritten so that each aggregate reads a pre-computed value from the bucket,
+ * one row per leaf bucket is then fed to the normal table coprocessor, which builds the payload as usual.
+ * This keeps all the formatting/sorting/paging behaviour the same as for raw hits.
+ *
+ * Each level of grouping also has a missing aggregation, so hits without a value for the group field form a
+ * group with no value, as they would from the hits. The buckets of each level must hold every hit of the level
+ * above exactly once, which fails if any hit has several values for a group field.
+ * The group keys are written the way the hit source values are, so only keyword, boolean, ip and whole number
+ * fields are grouped on. Dates are not, Elastic keys them on the parsed time rather than the value in the source.
+ */
+class AggregationPushDown {
+    private static final Pattern FIELD_REF = Pattern.compile("^\\$\\{([^}]+)}$");
+    private static final Pattern COUNT = Pattern.compile("^count\\(\\s*\\)$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern METRIC = Pattern.compile(
+            "^(sum|min|max|average|mean)\\(\\s*\\$\\{([^}]+)}\\s*\\)$", Pattern.CASE_INSENSITIVE);
+
+    private static final String SYNTHETIC_PREFIX = "__agg_";
+    private static final String COUNT_FIELD = SYNTHETIC_PREFIX + "count";
+
+    /**
+     * Beyond this a double no longer holds every whole number exactly
+     */
+    private static final double MAX_EXACT_DOUBLE = 9007199254740992D;
+
+    private final List<TablePlan> tables;
+
+    private AggregationPushDown(final List<TablePlan> tables) {
+        this.tables = tables;
+    }
+
+    /**
+     * Attempt to plan the push down of all the tables in a search request.
+     * @param coprocessorSettingsMap The coprocessor settings from the search request
+     * @param maxBuckets The maximum number of buckets to request at each level of grouping
+     * @param dataSource The fields of the index, used to check the types of the grouped fields
+     * @return The plan, or empty if any of the tables cannot be computed from aggregations
+     */
+    static Optional<AggregationPushDown> forTables(final CoprocessorSettingsMap coprocessorSettingsMap,
+                                                   final int maxBuckets,
+                                                   final Optional<DataSource> dataSource) {
+        if (null == coprocessorSettingsMap.getMap() || coprocessorSettingsMap.getMap().isEmpty()) {
+            return Optional.empty();
+        }
+
+        final List<TablePlan> tables = new ArrayList<>();
+        for (final Map.Entry<CoprocessorSettingsMap.CoprocessorKey, CoprocessorSettings> entry :
+                coprocessorSettingsMap.getMap().entrySet()) {
+            if (!(entry.getValue() instanceof TableCoprocessorSettings)) {
+                return Optional.empty();
+            }
+
+            final TableSettings tableSettings = ((TableCoprocessorSettings) entry.getValue()).getTableSettings();
+            final Optional<TablePlan> tablePlan =
+                    TablePlan.create(entry.getKey(), tableSettings, String.format("t%d_", tables.size()), maxBuckets, dataSource);
+            if (!tablePlan.isPresent()) {
+                return Optional.empty();
+            }
+            tables.add(tablePlan.get());
+        }
+
+        return Optional.of(new AggregationPushDown(tables));
+    }
+
+    /**
+     * @return The top level aggregations to add to the search, one per table
+     */
+    List<AggregationBuilder> getAggregations() {
+        final List<AggregationBuilder> aggregations = new ArrayList<>();
+        tables.forEach(t -> aggregations.addAll(t.aggregations));
+        return aggregations;
+    }
+
+    /**
+     * @return Coprocessor settings to use in place of the requested ones, these read the bucket values
+     */
+    Map<CoprocessorSettingsMap.CoprocessorKey, CoprocessorSettings> getRewrittenSettings() {
+        final Map<CoprocessorSettingsMap.CoprocessorKey, CoprocessorSettings> settings = new HashMap<>();
+        tables.forEach(t -> settings.put(t.coprocessorKey, new TableCoprocessorSettings(t.rewrittenSettings)));
+        return settings;
+    }
+
+    /**
+     * Feed the buckets of an aggregated search response into the coprocessors.
+     *
+     * @param aggregations The aggregations from the search response
+     * @param totalHits The total number of hits that matched the query
+     * @param fieldIndexMap The field index map used to create the coprocessors
+     * @param coprocessorMap The coprocessors created from the rewritten settings
+     * @return False if the buckets did not account for every hit exactly once (too many buckets or multi valued
+     * group fields), in which case nothing is fed to the coprocessors and the hits should be searched instead.
+     */
+    boolean project(final Aggregations aggregations,
+                    final long totalHits,
+                    final FieldIndexMap fieldIndexMap,
+                    final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap) {
+        // Every table is read before any are fed, so the coprocessors are left untouched if one cannot be used
+        final Map<CoprocessorSettingsMap.CoprocessorKey, List<String[]>> tableRows = new HashMap<>();
+        for (final TablePlan table : tables) {
+            final List<String[]> rows = new ArrayList<>();
+            if (!table.readBuckets(aggregations, 0, new String[fieldIndexMap.size()], totalHits, fieldIndexMap, rows)) {
+                return false;
+            }
+            tableRows.put(table.coprocessorKey, rows);
+        }
+
+        tableRows.forEach((coprocessorKey, rows) -> rows.forEach(coprocessorMap.get(coprocessorKey)::receive));
+        return true;
+    }
+
+    /**
+     * Write the value of a metric aggregation as the hits would have held it, whole numbers have no fraction.
+     * Value counts are always whole, as are sums, minimums and maximums of integer fields.
+     * @param value The value of the metric
+     * @return The value as it is given to the coprocessor
+     */
+    static String formatMetric(final double value) {
+        if ((value == Math.rint(value)) && (Math.abs(value) < MAX_EXACT_DOUBLE)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * The plan for a single table
+     */
+    private static class TablePlan {
+        private final CoprocessorSettingsMap.CoprocessorKey coprocessorKey;
+        private final String namePrefix;
+        private final TableSettings rewrittenSettings;
+        private final List<AggregationBuilder> aggregations;
+        private final List<String> groupFields;
+        private final List<Boolean> numericGroups;
+        private final List<String> metricNames;
+
+        private TablePlan(final CoprocessorSettingsMap.CoprocessorKey coprocessorKey,
+                          final String namePrefix,
+                          final TableSettings rewrittenSettings,
+                          final List<AggregationBuilder> aggregations,
+                          final List<String> groupFields,
+                          final List<Boolean> numericGroups,
+                          final List<String> metricNames) {
+            this.coprocessorKey = coprocessorKey;
+            this.namePrefix = namePrefix;
+            this.rewrittenSettings = rewrittenSettings;
+            this.aggregations = aggregations;
+            this.groupFields = groupFields;
+            this.numericGroups = numericGroups;
+            this.metricNames = metricNames;
+        }
+
+        static Optional<TablePlan> create(final CoprocessorSettingsMap.CoprocessorKey coprocessorKey,
+                                          final TableSettings tableSettings,
+                                          final String namePrefix,
+                                          final int maxBuckets,
+                                          final Optional<DataSource> dataSource) {
+            if (Boolean.TRUE.equals(tableSettings.getShowDetail())) {
+                return Optional.empty();
+            }
+
+            final List<Field> groupedFields = new ArrayList<>();
+            final List<AggregationBuilder> metrics = new ArrayList<>();
+            final List<String> metricNames = new ArrayList<>();
+            final List<Field> rewrittenFields = new ArrayList<>();
+
+            final List<Field> fields = tableSettings.getFields();
+            for (int i = 0; i < fields.size(); i++) {
+                final Field field = fields.get(i);
+                if (null == field.getExpression() || null != field.getFilter()) {
+                    return Optional.empty();
+                }
+                final String expression = field.getExpression().trim();
+
+                if (null != field.getGroup()) {
+                    if (!FIELD_REF.matcher(expression).matches()) {
+                        return Optional.empty();
+                    }
+                    groupedFields.add(field);
+                    rewrittenFields.add(field);
+                    continue;
+                }
+
+                if (COUNT.matcher(expression).matches()) {
+                    if (!metricNames.contains(COUNT_FIELD)) {
+                        metricNames.add(COUNT_FIELD);
+                    }
+                    rewrittenFields.add(rewriteCount(field));
+                    continue;
+                }
+
+                final Matcher metricMatcher = METRIC.matcher(expression);
+                if (!metricMatcher.matches()) {
+                    return Optional.empty();
+                }
+
+                final String function = metricMatcher.group(1).toLowerCase();
+                final String fieldName = metricMatcher.group(2);
+                final String valueName = String.format("%s%s_%d", SYNTHETIC_PREFIX, function, i);
+                switch (function) {
+                    case "sum":
+                        metrics.add(AggregationBuilders.sum(namePrefix + valueName).field(fieldName));
+                        metricNames.add(valueName);
+                        rewrittenFields.add(rewrite(field, String.format("sum(${%s})", valueName)));
+                        break;
+                    case "min":
+                        metrics.add(AggregationBuilders.min(namePrefix + valueName).field(fieldName));
+                        metricNames.add(valueName);
+                        rewrittenFields.add(rewrite(field, String.format("min(${%s})", valueName)));
+                        break;
+                    case "max":
+                        metrics.add(AggregationBuilders.max(namePrefix + valueName).field(fieldName));
+                        metricNames.add(valueName);
+                        rewrittenFields.add(rewrite(field, String.format("max(${%s})", valueName)));
+                        break;
+                    default: {
+                        // Averages are carried as a sum and a count, so that parent group levels are weighted correctly
+                        final String sumName = String.format("%ssum_%d", SYNTHETIC_PREFIX, i);
+                        final String countName = String.format("%scount_%d", SYNTHETIC_PREFIX, i);
+                        metrics.add(AggregationBuilders.sum(namePrefix + sumName).field(fieldName));
+                        metrics.add(AggregationBuilders.count(namePrefix + countName).field(fieldName));
+                        metricNames.add(sumName);
+                        metricNames.add(countName);
+                        rewrittenFields.add(rewrite(field, String.format("sum(${%s})/sum(${%s})", sumName, countName)));
+                        break;
+                    }
+                }
+            }
+
+            if (groupedFields.isEmpty()) {
+                return Optional.empty();
+            }
+
+            // Nest the terms aggregations in order of group depth, each alongside a missing aggregation
+            groupedFields.sort(Comparator.comparing(Field::getGroup));
+            final List<String> groupFields = new ArrayList<>();
+            final List<Boolean> numericGroups = new ArrayList<>();
+            for (final Field groupedField : groupedFields) {
+                final Matcher fieldMatcher = FIELD_REF.matcher(groupedField.getExpression().trim());
+                if (!fieldMatcher.matches()) {
+                    return Optional.empty();
+                }
+                final String groupField = fieldMatcher.group(1);
+                final Optional<DataSourceField.DataSourceFieldType> type = getType(dataSource, groupField);
+                if (!type.isPresent() || DataSourceField.DataSourceFieldType.DATE_FIELD.equals(type.get())) {
+                    return Optional.empty();
+                }
+                groupFields.add(groupField);
+                numericGroups.add(DataSourceField.DataSourceFieldType.NUMERIC_FIELD.equals(type.get()));
+            }
+
+            List<AggregationBuilder> children = metrics;
+            for (int level = groupFields.size() - 1; level >= 0; level--) {
+                final AggregationBuilder terms = AggregationBuilders.terms(termsName(namePrefix, level))
+                        .field(groupFields.get(level))
+                        .size(maxBuckets);
+                final AggregationBuilder missing = AggregationBuilders.missing(missingName(namePrefix, level))
+                        .field(groupFields.get(level));
+                children.forEach(terms::subAggregation);
+                children.forEach(missing::subAggregation);
+                children = Arrays.asList(terms, missing);
+            }
+
+            final TableSettings.Builder rewrittenSettings = new TableSettings.Builder()
+                    .queryId(tableSettings.getQueryId())
+                    .showDetail(false);
+            rewrittenFields.forEach(rewrittenSettings::addFields);
+            if (null != tableSettings.getMaxResults()) {
+                tableSettings.getMaxResults().forEach(rewrittenSettings::addMaxResults);
+            }
+
+            return Optional.of(new TablePlan(coprocessorKey,
+                    namePrefix,
+                    rewrittenSettings.build(),
+                    children,
+                    groupFields,
+                    numericGroups,
+                    metricNames));
+        }
+
+        private static String termsName(final String namePrefix,
+                                        final int level) {
+            return String.format("%sgroup_%d", namePrefix, level);
+        }
+
+        private static String missingName(final String namePrefix,
+                                          final int level) {
+            return String.format("%smissing_%d", namePrefix, level);
+        }
+
+        private static Optional<DataSourceField.DataSourceFieldType> getType(final Optional<DataSource> dataSource,
+                                                                             final String fieldName) {
+            return dataSource
+                    .map(DataSource::getFields)
+                    .flatMap(fields -> fields.stream()
+                            .filter(Objects::nonNull)
+                            .filter(field -> fieldName.equals(field.getName()))
+                            .findFirst())
+                    .map(DataSourceField::getType);
+        }
+
+        /**
+         * Recurse down through the nested terms aggregations, collecting a row for each leaf bucket
+         * @param docCount The number of hits in the bucket above, which the buckets of this level must hold
+         * @return False if the buckets do not hold each hit exactly once
+         */
+        boolean readBuckets(final Aggregations aggregations,
+                            final int level,
+                            final String[] row,
+                            final long docCount,
+                            final FieldIndexMap fieldIndexMap,
+                            final List<String[]> rows) {
+            final Terms terms = aggregations.get(termsName(namePrefix, level));
+            final SingleBucketAggregation missing = aggregations.get(missingName(namePrefix, level));
+            if ((null == terms) || (null == missing) || (terms.getSumOfOtherDocCount() > 0)) {
+                return false;
+            }
+
+            // A hit with several values is in several buckets, so the buckets would hold more hits than the level above
+            long bucketDocCount = missing.getDocCount();
+            for (final Terms.Bucket bucket : terms.getBuckets()) {
+                bucketDocCount += bucket.getDocCount();
+            }
+            if (bucketDocCount != docCount) {
+                return false;
+            }
+
+            final int groupPos = fieldIndexMap.get(groupFields.get(level));
+            for (final Terms.Bucket bucket : terms.getBuckets()) {
+                // Whole number keys are written as the number, as the source value would be, rather than by the
+                // field format. Floating point keys are the indexed value, which need not print as the source did.
+                if (numericGroups.get(level) && !(bucket.getKey() instanceof Long)) {
+                    return false;
+                }
+                final String key = numericGroups.get(level) ? bucket.getKey().toString() : bucket.getKeyAsString();
+                if (!readBucket(bucket.getAggregations(), bucket.getDocCount(), level, row, groupPos, key, fieldIndexMap, rows)) {
+                    return false;
+                }
+            }
+
+            return (missing.getDocCount() == 0)
+                    || readBucket(missing.getAggregations(), missing.getDocCount(), level, row, groupPos, null, fieldIndexMap, rows);
+        }
+
+        private boolean readBucket(final Aggregations bucketAggregations,
+                                   final long bucketDocCount,
+                                   final int level,
+                                   final String[] row,
+                                   final int groupPos,
+                                   final String key,
+                                   final FieldIndexMap fieldIndexMap,
+                                   final List<String[]> rows) {
+            final String[] bucketRow = row.clone();
+            if (groupPos != -1) {
+                bucketRow[groupPos] = key;
+            }
+
+            if (level < groupFields.size() - 1) {
+                return readBuckets(bucketAggregations, level + 1, bucketRow, bucketDocCount, fieldIndexMap, rows);
+            }
+
+            for (final String metricName : metricNames) {
+                final int metricPos = fieldIndexMap.get(metricName);
+                if (metricPos == -1) {
+                    continue;
+                }
+
+                if (COUNT_FIELD.equals(metricName)) {
+                    bucketRow[metricPos] = Long.toString(bucketDocCount);
+                } else {
+                    final NumericMetricsAggregation.SingleValue metric = bucketAggregations.get(namePrefix + metricName);
+                    final double value = metric.value();
+                    if (!Double.isInfinite(value) && !Double.isNaN(value)) {
+                        bucketRow[metricPos] = formatMetric(value);
+                    }
+                }
+            }
+            rows.add(bucketRow);
+            return true;
+        }
+
+        private static Field rewrite(final Field field, final String expression) {
+            return rewrite(field, expression, field.getFormat());
+        }
+
+        /**
+         * The bucket doc counts are added up with sum(), which gives a decimal where count() gave an integer.
+         * Unless the field has a format of its own, the count is shown without decimal places to match.
+         */
+        private static Field rewriteCount(final Field field) {
+            final Format format = (null != field.getFormat())
+                    ? field.getFormat()
+                    : new Format(Format.Type.NUMBER, new NumberFormat(0, false), null);
+            return rewrite(field, String.format("sum(${%s})", COUNT_FIELD), format);
+        }
+
+        private static Field rewrite(final Field field, final String expression, final Format format) {
+            return new Field.Builder()
+                    .id(field.getId())
+                    .name(field.getName())
+                    .expression(expression)
+                    .sort(field.getSort())
+                    .format(format)
+                    .group(field.getGroup())
+                    .build();
+        }
+    }
+}
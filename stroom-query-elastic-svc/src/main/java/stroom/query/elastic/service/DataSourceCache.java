@@ -0,0 +1,110 @@
+package stroom.query.elastic.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import stroom.datasource.api.v2.DataSource;
+import stroom.query.elastic.config.CacheConfig;
+import stroom.query.elastic.config.ElasticConfig;
+import stroom.query.elastic.model.ElasticIndexDocRefEntity;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Holds the data sources built from the field mappings of each index.
+ *
+ * Entries are keyed on the doc ref along with the index and type it points at, so changing the index
+ * of a doc ref will miss the cache. Elastic does not expose a version for the mappings, so fields added
+ * to an index are picked up when the entry expires.
+ */
+@Singleton
+public class DataSourceCache {
+
+    private final Cache<Key, DataSource> cache;
+
+    @Inject
+    public DataSourceCache(final ElasticConfig elasticConfig,
+                           final MetricRegistry metricRegistry) {
+        final CacheConfig cacheConfig = elasticConfig.getDataSourceCache();
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheConfig.getMaximumSize())
+                .expireAfterWrite(cacheConfig.getExpireAfterWrite().toMilliseconds(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+
+        registerGauge(metricRegistry, "hits", () -> cache.stats().hitCount());
+        registerGauge(metricRegistry, "misses", () -> cache.stats().missCount());
+        registerGauge(metricRegistry, "evictions", () -> cache.stats().evictionCount());
+        registerGauge(metricRegistry, "size", cache::size);
+    }
+
+    /**
+     * Get the data source for an index, loading it from the mappings if it is not already held.
+     * @param entity The doc ref entity that points at the index
+     * @param loader Used to load the data source on a cache miss
+     * @return The data source, empty results are not cached as the index may yet be created
+     */
+    public CompletableFuture<Optional<DataSource>> get(final ElasticIndexDocRefEntity entity,
+                                                       final Supplier<CompletableFuture<Optional<DataSource>>> loader) {
+        final Key key = new Key(entity);
+
+        final DataSource cached = cache.getIfPresent(key);
+        if (null != cached) {
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        }
+
+        return loader.get().thenApply(loaded -> {
+            loaded.ifPresent(dataSource -> cache.put(key, dataSource));
+            return loaded;
+        });
+    }
+
+    /**
+     * Remove any data sources held for a doc ref, called when the doc ref is changed or deleted.
+     * @param uuid The UUID of the doc ref
+     */
+    public void invalidate(final String uuid) {
+        cache.asMap().keySet().removeIf(key -> key.uuid.equals(uuid));
+    }
+
+    private static void registerGauge(final MetricRegistry metricRegistry,
+                                      final String name,
+                                      final Supplier<Long> value) {
+        metricRegistry.register(MetricRegistry.name(DataSourceCache.class, name), (Gauge<Long>) value::get);
+    }
+
+    private static class Key {
+        private final String uuid;
+        private final String indexName;
+        private final String indexedType;
+
+        private Key(final ElasticIndexDocRefEntity entity) {
+            this.uuid = entity.getUuid();
+            this.indexName = entity.getIndexName();
+            this.indexedType = entity.getIndexedType();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return Objects.equals(uuid, key.uuid) &&
+                    Objects.equals(indexName, key.indexName) &&
+                    Objects.equals(indexedType, key.indexedType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uuid, indexName, indexedType);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package stroom.query.elastic.service;
+
+import stroom.datasource.api.v2.DataSourceField;
+import stroom.query.api.v2.ExpressionTerm;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Creates the data source fields that describe the mapped fields of an index.
+ *
+ * Each field is only offered the conditions that Elastic can answer from its index structures,
+ * so users are not able to build queries that would have to fall back on scripts or wildcards.
+ */
+class DataSourceFields {
+    private static final String TYPE = "type";
+
+    private static final String TEXT = "text";
+    private static final String KEYWORD = "keyword";
+    private static final String DATE = "date";
+    private static final String IP = "ip";
+    private static final String BOOLEAN = "boolean";
+    private static final Set<String> NUMERIC = new HashSet<>(Arrays.asList(
+            "long", "integer", "short", "byte", "double", "float", "half_float", "scaled_float"));
+
+    private static final ExpressionTerm.Condition[] TEXT_CONDITIONS = {
+            ExpressionTerm.Condition.CONTAINS
+    };
+
+    private static final ExpressionTerm.Condition[] KEYWORD_CONDITIONS = {
+            ExpressionTerm.Condition.EQUALS,
+            ExpressionTerm.Condition.IN
+    };
+
+    private static final ExpressionTerm.Condition[] RANGE_CONDITIONS = {
+            ExpressionTerm.Condition.EQUALS,
+            ExpressionTerm.Condition.GREATER_THAN,
+            ExpressionTerm.Condition.GREATER_THAN_OR_EQUAL_TO,
+            ExpressionTerm.Condition.LESS_THAN,
+            ExpressionTerm.Condition.LESS_THAN_OR_EQUAL_TO,
+            ExpressionTerm.Condition.BETWEEN,
+            ExpressionTerm.Condition.IN
+    };
+
+    private static final ExpressionTerm.Condition[] BOOLEAN_CONDITIONS = {
+            ExpressionTerm.Condition.EQUALS
+    };
+
+    private DataSourceFields() {
+        // Static methods only
+    }
+
+    /**
+     * Create the data source field for a single mapped field.
+     * @param fieldName The full path of the field
+     * @param mapping The mapping of the field, as found in the field mapping meta data
+     * @return The data source field, empty if the field is a meta field or of a type that cannot be queried
+     */
+    static Optional<DataSourceField> create(final String fieldName,
+                                            final Map<?, ?> mapping) {
+        final Object type = mapping.get(TYPE);
+        if (null == type) {
+            return Optional.empty();
+        }
+
+        final String typeName = type.toString();
+
+        final DataSourceField.DataSourceFieldType fieldType;
+        final ExpressionTerm.Condition[] conditions;
+        if (TEXT.equals(typeName)) {
+            fieldType = DataSourceField.DataSourceFieldType.FIELD;
+            conditions = TEXT_CONDITIONS;
+        } else if (KEYWORD.equals(typeName)) {
+            fieldType = DataSourceField.DataSourceFieldType.FIELD;
+            conditions = KEYWORD_CONDITIONS;
+        } else if (DATE.equals(typeName)) {
+            fieldType = DataSourceField.DataSourceFieldType.DATE_FIELD;
+            conditions = RANGE_CONDITIONS;
+        } else if (NUMERIC.contains(typeName)) {
+            fieldType = DataSourceField.DataSourceFieldType.NUMERIC_FIELD;
+            conditions = RANGE_CONDITIONS;
+        } else if (IP.equals(typeName)) {
+            fieldType = DataSourceField.DataSourceFieldType.FIELD;
+            conditions = RANGE_CONDITIONS;
+        } else if (BOOLEAN.equals(typeName)) {
+            fieldType = DataSourceField.DataSourceFieldType.FIELD;
+            conditions = BOOLEAN_CONDITIONS;
+        } else {
+            // geo, nested and the like have nothing we can offer
+            return Optional.empty();
+        }
+
+        return Optional.of(new DataSourceField.Builder()
+                .type(fieldType)
+                .name(fieldName)
+                .queryable(true)
+                .addConditions(conditions)
+                .build());
+    }
+}
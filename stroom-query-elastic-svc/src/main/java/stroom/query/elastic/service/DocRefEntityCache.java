@@ -0,0 +1,147 @@
+package stroom.query.elastic.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import stroom.query.audit.service.QueryApiException;
+import stroom.query.elastic.config.CacheConfig;
+import stroom.query.elastic.config.ElasticConfig;
+import stroom.query.elastic.model.ElasticIndexDocRefEntity;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Holds the doc ref entities read from the stroom index, so that searches do not have to fetch the doc ref
+ * from Elastic before they can start.
+ *
+ * Entries are keyed on the doc ref type as well as the UUID, so services for different types of doc ref can
+ * share the cache. The doc ref services invalidate an entry whenever they change the document behind it.
+ */
+@Singleton
+public class DocRefEntityCache {
+
+    private final Cache<Key, ElasticIndexDocRefEntity> cache;
+
+    @Inject
+    public DocRefEntityCache(final ElasticConfig elasticConfig,
+                             final MetricRegistry metricRegistry) {
+        final CacheConfig cacheConfig = elasticConfig.getDocRefCache();
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheConfig.getMaximumSize())
+                .expireAfterWrite(cacheConfig.getExpireAfterWrite().toMilliseconds(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+
+        registerGauge(metricRegistry, "hits", () -> cache.stats().hitCount());
+        registerGauge(metricRegistry, "misses", () -> cache.stats().missCount());
+        registerGauge(metricRegistry, "evictions", () -> cache.stats().evictionCount());
+        registerGauge(metricRegistry, "size", cache::size);
+        metricRegistry.register(MetricRegistry.name(DocRefEntityCache.class, "hitRate"),
+                (Gauge<Double>) () -> cache.stats().hitRate());
+    }
+
+    /**
+     * Get a doc ref entity, reading it from Elastic if it is not already held.
+     * @param type The type of doc ref
+     * @param uuid The UUID of the doc ref
+     * @param loader Used to read the entity on a cache miss
+     * @param <T> The class of entity held for the type of doc ref
+     * @return The entity, empty results are not cached as the document may yet be created
+     * @throws QueryApiException If the loader fails
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ElasticIndexDocRefEntity> Optional<T> get(final String type,
+                                                                final String uuid,
+                                                                final Loader<T> loader) throws QueryApiException {
+        final Key key = new Key(type, uuid);
+
+        final ElasticIndexDocRefEntity cached = cache.getIfPresent(key);
+        if (null != cached) {
+            return Optional.of((T) cached);
+        }
+
+        final Optional<T> loaded = loader.load();
+        loaded.ifPresent(entity -> cache.put(key, entity));
+        return loaded;
+    }
+
+    /**
+     * Get a doc ref entity only if it is already held.
+     * @param type The type of doc ref
+     * @param uuid The UUID of the doc ref
+     * @param <T> The class of entity held for the type of doc ref
+     * @return The entity, empty if it is not held
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ElasticIndexDocRefEntity> Optional<T> getIfPresent(final String type,
+                                                                         final String uuid) {
+        return Optional.ofNullable((T) cache.getIfPresent(new Key(type, uuid)));
+    }
+
+    /**
+     * Hold an entity that has been read from Elastic in bulk.
+     * @param type The type of doc ref
+     * @param entity The entity read
+     */
+    public void put(final String type,
+                    final ElasticIndexDocRefEntity entity) {
+        cache.put(new Key(type, entity.getUuid()), entity);
+    }
+
+    /**
+     * Remove the entity held for a doc ref, called whenever the document is changed or deleted.
+     * @param type The type of doc ref
+     * @param uuid The UUID of the doc ref
+     */
+    public void invalidate(final String type,
+                           final String uuid) {
+        cache.invalidate(new Key(type, uuid));
+    }
+
+    private static void registerGauge(final MetricRegistry metricRegistry,
+                                      final String name,
+                                      final Supplier<Long> value) {
+        metricRegistry.register(MetricRegistry.name(DocRefEntityCache.class, name), (Gauge<Long>) value::get);
+    }
+
+    /**
+     * Reads an entity from Elastic on a cache miss.
+     * @param <T> The class of entity
+     */
+    @FunctionalInterface
+    public interface Loader<T extends ElasticIndexDocRefEntity> {
+        Optional<T> load() throws QueryApiException;
+    }
+
+    private static class Key {
+        private final String type;
+        private final String uuid;
+
+        private Key(final String type,
+                    final String uuid) {
+            this.type = type;
+            this.uuid = uuid;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return Objects.equals(type, key.type) &&
+                    Objects.equals(uuid, key.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, uuid);
+        }
+    }
+}
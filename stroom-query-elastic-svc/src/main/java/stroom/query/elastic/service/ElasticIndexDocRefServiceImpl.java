@@ -1,6 +1,7 @@
 package stroom.query.elastic.service;
 
 import org.elasticsearch.client.transport.TransportClient;
+import stroom.query.elastic.client.ElasticClient;
 import stroom.query.elastic.model.ElasticIndexDocRefEntity;
 
 import javax.inject.Inject;
@@ -12,8 +13,11 @@ public class ElasticIndexDocRefServiceImpl
         extends AbstractElasticDocRefServiceImpl<ElasticIndexDocRefEntity, ElasticIndexDocRefEntity.Builder> {
 
     @Inject
-    public ElasticIndexDocRefServiceImpl(final TransportClient client) {
-        super(client);
+    public ElasticIndexDocRefServiceImpl(final TransportClient client,
+                                         final ElasticClient elasticClient,
+                                         final DataSourceCache dataSourceCache,
+                                         final DocRefEntityCache docRefEntityCache) {
+        super(client, elasticClient, dataSourceCache, docRefEntityCache);
     }
 
     @Override
@@ -23,16 +27,26 @@ public class ElasticIndexDocRefServiceImpl
 
     @Override
     protected ElasticIndexDocRefEntity.Builder build(final Function<String, Object> source) {
-        return new ElasticIndexDocRefEntity.Builder();
+        return new ElasticIndexDocRefEntity.Builder()
+                .routingField(source.apply(ElasticIndexDocRefEntity.ROUTING_FIELD))
+                .preference(source.apply(ElasticIndexDocRefEntity.PREFERENCE))
+                .requestCache(source.apply(ElasticIndexDocRefEntity.REQUEST_CACHE));
     }
 
     @Override
     protected void iterateFieldNames(final Consumer<String> consumer) {
+        consumer.accept(ElasticIndexDocRefEntity.ROUTING_FIELD);
+        consumer.accept(ElasticIndexDocRefEntity.PREFERENCE);
+        consumer.accept(ElasticIndexDocRefEntity.REQUEST_CACHE);
     }
 
     @Override
     protected void exportValues(final ElasticIndexDocRefEntity instance,
                                 final BiConsumer<String, String> consumer) {
+        consumer.accept(ElasticIndexDocRefEntity.ROUTING_FIELD, instance.getRoutingField());
+        consumer.accept(ElasticIndexDocRefEntity.PREFERENCE, instance.getPreference());
+        consumer.accept(ElasticIndexDocRefEntity.REQUEST_CACHE,
+                (null != instance.getRequestCache()) ? instance.getRequestCache().toString() : null);
     }
 
 }
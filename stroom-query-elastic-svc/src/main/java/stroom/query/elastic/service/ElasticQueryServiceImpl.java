@@ -1,15 +1,19 @@
 package stroom.query.elastic.service;
 
-import org.apache.commons.lang3.exception.ExceptionUtils;
-import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsRequest;
-import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsResponse;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchScrollRequest;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.index.IndexNotFoundException;
-import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import stroom.dashboard.expression.v1.FieldIndexMap;
@@ -21,26 +25,57 @@ import stroom.query.audit.service.DocRefService;
 import stroom.query.audit.service.QueryApiException;
 import stroom.query.audit.service.QueryService;
 import stroom.query.common.v2.*;
+import stroom.query.elastic.client.ElasticClient;
+import stroom.query.elastic.config.ElasticConfig;
 import stroom.query.elastic.model.ElasticIndexDocRefEntity;
 import stroom.query.elastic.store.ElasticStore;
 
 import javax.inject.Inject;
 import java.util.*;
-import java.util.function.BiConsumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+/**
+ * Runs searches against Elastic for the audited query resource.
+ *
+ * Each round trip to Elastic is chained onto the last through listeners, so no thread waits on Elastic while a
+ * search runs. The audited resource and the {@link QueryService} interface come from the stroom-query audit library
+ * and require a blocking result, so that request thread waits in {@link #getDataSource} and {@link #search}.
+ * The asynchronous query resource suspends its requests on {@link #searchResponse} instead.
+ */
 public class ElasticQueryServiceImpl implements QueryService {
     private static final Logger LOGGER = LoggerFactory.getLogger(ElasticQueryServiceImpl.class);
 
+    private static final Pattern FIELD_REFERENCE = Pattern.compile("\\$\\{([^}]+)}");
+
     private final TransportClient client;
+    private final ElasticClient elasticClient;
     private final DocRefService<ElasticIndexDocRefEntity> service;
+    private final ElasticConfig elasticConfig;
+    private final MetricRegistry metricRegistry;
+    private final DataSourceCache dataSourceCache;
+    private final RunningSearches runningSearches;
 
     @Inject
     @SuppressWarnings("unchecked")
     public ElasticQueryServiceImpl(final TransportClient client,
-                                   final DocRefService service) {
+                                   final ElasticClient elasticClient,
+                                   final DocRefService service,
+                                   final ElasticConfig elasticConfig,
+                                   final MetricRegistry metricRegistry,
+                                   final DataSourceCache dataSourceCache,
+                                   final RunningSearches runningSearches) {
         this.client = client;
+        this.elasticClient = elasticClient;
         this.service = service;
+        this.elasticConfig = elasticConfig;
+        this.metricRegistry = metricRegistry;
+        this.dataSourceCache = dataSourceCache;
+        this.runningSearches = runningSearches;
     }
 
     @Override
@@ -48,232 +83,714 @@ public class ElasticQueryServiceImpl implements QueryService {
                                               final DocRef docRef) throws QueryApiException {
         LOGGER.debug("Getting Data Source for DocRef: " + docRef);
 
-        try {
-            final Optional<ElasticIndexDocRefEntity> elasticIndexConfigO = service.get(user, docRef.getUuid());
+        final Optional<ElasticIndexDocRefEntity> elasticIndexConfigO = service.get(user, docRef.getUuid());
 
-            if (!elasticIndexConfigO.isPresent()) {
-                return Optional.empty();
-            }
+        if (!elasticIndexConfigO.isPresent()) {
+            return Optional.empty();
+        }
 
-            final ElasticIndexDocRefEntity elasticIndexConfig = elasticIndexConfigO.get();
-
-            LOGGER.debug("Found Elastic Config!" + elasticIndexConfig);
-
-            final List<DataSourceField> fields = new ArrayList<>();
-
-            final GetFieldMappingsResponse response = client.admin().indices()
-                    .getFieldMappings(new GetFieldMappingsRequest()
-                            .indices(elasticIndexConfig.getIndexName())
-                            .types(elasticIndexConfig.getIndexedType())
-                            .fields("*"))
-                    .get();
-
-            response.mappings().forEach((index, stringMapMap) -> {
-                stringMapMap.forEach((type, stringFieldMappingMetaDataMap) -> {
-                    stringFieldMappingMetaDataMap.forEach((fieldName, fieldMappingMetaData) -> {
-                        fieldMappingMetaData.sourceAsMap().forEach((fieldNameAgain, meta) -> {
-                            if (meta instanceof Map) {
-                                final Map<?, ?> metaAsMap = (Map) meta;
-                                metaAsMap.forEach((metaProp, metaPropValue) -> {
-                                    final DataSourceField dataSourceField = new DataSourceField.Builder()
-                                            .type(DataSourceField.DataSourceFieldType.FIELD)
-                                            .name(fieldName)
-                                            .queryable(true)
-                                            .addConditions(
-                                                    ExpressionTerm.Condition.EQUALS,
-                                                    ExpressionTerm.Condition.CONTAINS,
-                                                    ExpressionTerm.Condition.GREATER_THAN,
-                                                    ExpressionTerm.Condition.GREATER_THAN_OR_EQUAL_TO,
-                                                    ExpressionTerm.Condition.LESS_THAN,
-                                                    ExpressionTerm.Condition.LESS_THAN_OR_EQUAL_TO,
-                                                    ExpressionTerm.Condition.BETWEEN,
-                                                    ExpressionTerm.Condition.IN
-                                            ).build();
-                                    fields.add(dataSourceField);
-                                });
-                            }
+        final ElasticIndexDocRefEntity elasticIndexConfig = elasticIndexConfigO.get();
+
+        LOGGER.debug("Found Elastic Config!" + elasticIndexConfig);
+
+        return ActionFutures.await(dataSourceCache.get(elasticIndexConfig, () -> getFieldMappings(elasticIndexConfig))
+                .whenComplete(this::logFailure));
+    }
+
+    /**
+     * Build the data source from the field mappings of the index.
+     * @param elasticIndexConfig The doc ref entity that points at the index
+     * @return A future for the data source describing the fields of the index
+     */
+    private CompletableFuture<Optional<DataSource>> getFieldMappings(final ElasticIndexDocRefEntity elasticIndexConfig) {
+        return ActionFutures.execute(client.admin().indices()
+                .prepareGetFieldMappings(elasticIndexConfig.getIndexName())
+                .setTypes(elasticIndexConfig.getIndexedType())
+                .setFields("*"))
+                .thenApply(response -> {
+                    // An index pattern may match several indices with the same fields, only keep one of each
+                    final Map<String, DataSourceField> fields = new TreeMap<>();
+
+                    response.mappings().forEach((index, stringMapMap) -> {
+                        stringMapMap.forEach((type, stringFieldMappingMetaDataMap) -> {
+                            stringFieldMappingMetaDataMap.forEach((fieldName, fieldMappingMetaData) -> {
+                                // The source is keyed on the leaf name of the field, the full path is the key we are given
+                                fieldMappingMetaData.sourceAsMap().values().stream()
+                                        .filter(Map.class::isInstance)
+                                        .map(Map.class::cast)
+                                        .findFirst()
+                                        .flatMap(mapping -> DataSourceFields.create(fieldName, mapping))
+                                        .ifPresent(dataSourceField -> fields.putIfAbsent(fieldName, dataSourceField));
+                            });
                         });
                     });
+
+                    return Optional.of(new DataSource(new ArrayList<>(fields.values())));
                 });
-            });
+    }
+
+    @Override
+    public Optional<SearchResponse> search(final ServiceUser user,
+                                           final SearchRequest request) throws QueryApiException {
+        // The resource expects a blocking result, but no thread is held by the search itself while Elastic works
+        return ActionFutures.await(searchResponse(user, request));
+    }
 
-            return Optional.of(new stroom.datasource.api.v2.DataSource(fields));
+    /**
+     * Search without holding the calling thread while the search runs, for resources that suspend the request.
+     * @param user The user making the request
+     * @param request The search request
+     * @return A future that completes with the response once the search has finished, or once the incremental wait
+     * is up for incremental requests. It is empty if the index config or the index could not be found.
+     * @throws QueryApiException If the index config could not be read
+     */
+    public CompletableFuture<Optional<SearchResponse>> searchResponse(final ServiceUser user,
+                                                                      final SearchRequest request) throws QueryApiException {
+        final String queryUuid = request.getQuery().getDataSource().getUuid();
+        final Optional<ElasticIndexDocRefEntity> elasticIndexConfigO = service.get(user, queryUuid);
+
+        if (!elasticIndexConfigO.isPresent()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
 
-        } catch (IndexNotFoundException e) {
-            return Optional.empty();
-        } catch (Exception e) {
-            LOGGER.warn("Could not query the datasource for field mappings", e);
+        // Polls for a query that is already running are answered from the results gathered so far
+        final RunningSearches.Started started = runningSearches.getOrCreate(request, this::createSearch);
+        final RunningSearch runningSearch = started.getRunningSearch();
+        if (started.isCreated()) {
+            startSearch(request, elasticIndexConfigO.get(), runningSearch);
+        }
+
+        // Incremental requests only wait a short while for the search to finish, then return what has been found
+        final CompletableFuture<Optional<ElasticStore>> result = request.incremental()
+                ? runningSearches.within(runningSearch.getResult(),
+                        elasticConfig.getIncrementalWait().toMilliseconds(),
+                        () -> Optional.of(runningSearch.getStore()))
+                : runningSearch.getResult();
+
+        return ActionFutures.emptyIfIndexNotFound(result)
+                .thenApplyAsync(store -> store.map(s -> createResponse(request, s)), getExecutor())
+                .whenComplete((response, e) -> {
+                    // A search that is not polled again, or that failed, would otherwise hold its store until it
+                    // went idle. A failed search is run again by the next request rather than failing it too.
+                    if (!request.incremental() || runningSearch.getResult().isCompletedExceptionally()) {
+                        runningSearches.remove(runningSearch);
+                    }
+                });
+    }
+
+    private RunningSearch createSearch(final SearchRequest request) {
+        // Grouped tables hold every result found, the store bounds the others by their own maximum results
+        final List<Integer> storeSize = Collections.singletonList(Integer.MAX_VALUE);
+        final ElasticStore store = new ElasticStore(storeSize,
+                new StoreSize(storeSize),
+                CoprocessorSettingsMap.create(request));
+
+        final Long defaultTimeout = Optional.ofNullable(elasticConfig.getSearchTimeout())
+                .map(io.dropwizard.util.Duration::toMilliseconds)
+                .orElse(null);
+
+        return new RunningSearch(request, store, defaultTimeout);
+    }
+
+    /**
+     * Start gathering the results of a search into its store, the result of the running search is completed
+     * once the search has finished.
+     * @param request The search request
+     * @param elasticIndexConfig The doc ref entity that points at the index
+     * @param runningSearch The search being started
+     */
+    private void startSearch(final SearchRequest request,
+                             final ElasticIndexDocRefEntity elasticIndexConfig,
+                             final RunningSearch runningSearch) {
+        final ElasticStore store = runningSearch.getStore();
+
+        // Elastic needs telling to stop work on a search that is cancelled before it has finished
+        runningSearch.onCancel(() -> {
+            if (!runningSearch.getResult().isDone()) {
+                cancelTasks(runningSearch);
+            }
+        });
+
+        CompletableFuture<Void> search;
+        try {
+            search = searchAsync(request, elasticIndexConfig, runningSearch);
+        } catch (final RuntimeException e) {
+            search = new CompletableFuture<>();
+            search.completeExceptionally(e);
+        }
 
-            final Throwable rootCause = ExceptionUtils.getRootCause(e);
-            if (rootCause instanceof IndexNotFoundException) {
-                return Optional.empty();
+        search.whenComplete((result, e) -> {
+            if (null == e) {
+                if (runningSearch.isTimedOut()) {
+                    // The rows found are still returned, but flagged so they are not taken for every result
+                    LOGGER.debug("Search {} timed out", runningSearch.getQueryKey());
+                    store.error("The search timed out, the results are incomplete");
+                } else {
+                    store.complete();
+                }
+                runningSearch.getResult().complete(Optional.of(store));
+            } else if (runningSearch.isCancelled()) {
+                // Elastic fails the search once its task is cancelled, nobody is waiting on the result
+                LOGGER.debug("Search {} was cancelled", runningSearch.getQueryKey());
+                store.complete();
+                runningSearch.getResult().complete(Optional.empty());
             } else {
-                throw new QueryApiException(e);
+                logFailure(result, e);
+                store.error(ActionFutures.unwrap(e).getMessage());
+                runningSearch.getResult().completeExceptionally(e);
             }
+        });
+    }
+
+    /**
+     * Run a search, each round trip to Elastic is chained onto the last without blocking.
+     * @param request The search request
+     * @param elasticIndexConfig The doc ref entity that points at the index
+     * @param runningSearch The state of the search, the results are added to its store as they are found
+     * @return A future that completes once every result has been added to the store
+     */
+    private CompletableFuture<Void> searchAsync(final SearchRequest request,
+                                                final ElasticIndexDocRefEntity elasticIndexConfig,
+                                                final RunningSearch runningSearch) {
+        final ExpressionQueryBuilder expressionQueryBuilder =
+                ExpressionQueryBuilder.withFilterContext(elasticConfig.isFilterContext());
+        final QueryBuilder elasticQuery = expressionQueryBuilder.build(request.getQuery().getExpression());
+        final SearchType searchType = getSearchType(expressionQueryBuilder, request.getQuery().getExpression());
+
+        // TODO: possibly the mapping from the componentId to the coprocessorsettings map is a bit odd.
+        final CoprocessorSettingsMap coprocessorSettingsMap = runningSearch.getStore().getCoprocessorSettingsMap();
+
+        // If the tables can be calculated from aggregations, let Elastic do the grouping,
+        // the types of the grouped fields decide if the bucket keys can be given as the hits would give them
+        CompletableFuture<Boolean> aggregated = CompletableFuture.completedFuture(Boolean.FALSE);
+        if (elasticConfig.isAggregationPushDown()) {
+            aggregated = getDataSource(elasticIndexConfig)
+                    .thenCompose(dataSource -> AggregationPushDown.forTables(coprocessorSettingsMap,
+                            elasticConfig.getMaxAggregationBuckets(),
+                            dataSource)
+                            .map(aggregationPushDown -> searchAggregations(request,
+                                    runningSearch,
+                                    elasticIndexConfig,
+                                    elasticQuery,
+                                    searchType,
+                                    aggregationPushDown))
+                            .orElseGet(() -> CompletableFuture.completedFuture(Boolean.FALSE)));
         }
+
+        return aggregated.thenCompose(done -> {
+            if (done) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // A search that used up its time on the aggregations is not given it again for the hits
+            if (stopSearch(runningSearch)) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return searchHits(request, runningSearch, elasticIndexConfig, elasticQuery, searchType)
+                    .thenAccept(hitCount -> LOGGER.debug("Search {} projected {} hits", runningSearch.getQueryKey(), hitCount));
+        });
     }
 
-    @Override
-    public Optional<SearchResponse> search(final ServiceUser user,
-                                           final SearchRequest request) throws QueryApiException {
-        try {
-            final String queryUuid = request.getQuery().getDataSource().getUuid();
-            final Optional<ElasticIndexDocRefEntity> elasticIndexConfigO = service.get(user, queryUuid);
+    /**
+     * Run the search, streaming every hit back through a scroll and into the coprocessors.
+     */
+    private CompletableFuture<Long> searchHits(final SearchRequest request,
+                                               final RunningSearch runningSearch,
+                                               final ElasticIndexDocRefEntity elasticIndexConfig,
+                                               final QueryBuilder elasticQuery,
+                                               final SearchType searchType) {
+        final CoprocessorSettingsMap coprocessorSettingsMap = runningSearch.getStore().getCoprocessorSettingsMap();
+
+        // TODO: Mapping to this is complicated! it'd be nice not to have to do this.
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
 
-            if (!elasticIndexConfigO.isPresent()) {
-                return Optional.empty();
+        final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap =
+                createCoprocessors(request, coprocessorSettingsMap.getMap(), fieldIndexMap);
+
+        // Only bring back the parts of the source that the tables will actually use
+        final Set<String> referencedFields = getReferencedFields(coprocessorSettingsMap.getMap());
+        final HitProjection hitProjection = HitProjection.compile(referencedFields, fieldIndexMap);
+
+        final HitsSearch hitsSearch = new HitsSearch(runningSearch, elasticIndexConfig, searchType,
+                referencedFields, hitProjection, coprocessorMap);
+
+        if (!elasticConfig.isSortPushDown()) {
+            return hitsSearch.searchAll(elasticQuery);
+        }
+
+        // The type of the sorted field decides if Elastic can put the hits in the order of the table
+        return getDataSource(elasticIndexConfig)
+                .thenCompose(dataSource -> SortPushDown.forTables(coprocessorSettingsMap, dataSource)
+                        .map(sortPushDown -> hitsSearch.searchSorted(elasticQuery, sortPushDown))
+                        .orElseGet(() -> hitsSearch.searchAll(elasticQuery)));
+    }
+
+    /**
+     * @return The fields of the index, or empty if they could not be found, so the search goes ahead without them
+     */
+    private CompletableFuture<Optional<DataSource>> getDataSource(final ElasticIndexDocRefEntity elasticIndexConfig) {
+        return dataSourceCache.get(elasticIndexConfig, () -> getFieldMappings(elasticIndexConfig))
+                .exceptionally(e -> Optional.empty());
+    }
+
+    /**
+     * The scrolls over the hits of a single search, each feeding the same coprocessors.
+     */
+    private class HitsSearch {
+        private final RunningSearch runningSearch;
+        private final ElasticIndexDocRefEntity elasticIndexConfig;
+        private final SearchType searchType;
+        private final Set<String> referencedFields;
+        private final HitProjection hitProjection;
+        private final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap;
+        private final TimeValue scrollKeepAlive = TimeValue.timeValueMillis(elasticConfig.getScrollKeepAlive().toMilliseconds());
+
+        private HitsSearch(final RunningSearch runningSearch,
+                           final ElasticIndexDocRefEntity elasticIndexConfig,
+                           final SearchType searchType,
+                           final Set<String> referencedFields,
+                           final HitProjection hitProjection,
+                           final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap) {
+            this.runningSearch = runningSearch;
+            this.elasticIndexConfig = elasticIndexConfig;
+            this.searchType = searchType;
+            this.referencedFields = referencedFields;
+            this.hitProjection = hitProjection;
+            this.coprocessorMap = coprocessorMap;
+        }
+
+        /**
+         * Page through every hit with a scroll sorted on _doc, as we have no use for relevance ordering.
+         * Each page is projected straight into the coprocessors, so only one page is held at a time.
+         */
+        private CompletableFuture<Long> searchAll(final QueryBuilder query) {
+            return timeSearch(searchType, prepareHitsSearch(runningSearch, elasticIndexConfig, query,
+                    searchType, scrollKeepAlive, referencedFields, Optional.empty()))
+                    .thenComposeAsync(response ->
+                            scrollHits(response, runningSearch, scrollKeepAlive, hitProjection, coprocessorMap, 0L, Long.MAX_VALUE),
+                            getExecutor());
+        }
+
+        /**
+         * Let Elastic put the hits that have a value in the order of the table, the scroll stops once the table
+         * is full. The hits without a value are then read in full, as they may sort anywhere in the table.
+         */
+        private CompletableFuture<Long> searchSorted(final QueryBuilder query,
+                                                     final SortPushDown sortPushDown) {
+            return timeSearch(searchType, prepareHitsSearch(runningSearch, elasticIndexConfig, sortPushDown.withValue(query),
+                    searchType, scrollKeepAlive, referencedFields, Optional.of(sortPushDown)))
+                    .handleAsync((response, e) -> {
+                        if (null == e) {
+                            return scrollHits(response, runningSearch, scrollKeepAlive, hitProjection, coprocessorMap, 0L, sortPushDown.getLimit())
+                                    .thenCompose(sortedCount -> stopSearch(runningSearch)
+                                            ? CompletableFuture.completedFuture(sortedCount)
+                                            : searchAll(sortPushDown.withoutValue(query))
+                                                    .thenApply(missingCount -> sortedCount + missingCount));
+                        }
+
+                        if (ActionFutures.isIndexNotFound(e) || runningSearch.isStopped()) {
+                            throw ActionFutures.asCompletionException(e);
+                        }
+
+                        // The field may not be sortable in every index the doc ref matches
+                        LOGGER.debug("Could not push the sort down to Elastic, falling back to unsorted hits", e);
+                        return searchAll(query);
+                    }, getExecutor())
+                    .thenCompose(Function.identity());
+        }
+    }
+
+    /**
+     * Build the initial request of the scroll over the hits of a search.
+     * @param sortPushDown The sort to ask Elastic for, if empty the hits are sorted on _doc
+     */
+    private org.elasticsearch.action.search.SearchRequest prepareHitsSearch(final RunningSearch runningSearch,
+                                                                            final ElasticIndexDocRefEntity elasticIndexConfig,
+                                                                            final QueryBuilder elasticQuery,
+                                                                            final SearchType searchType,
+                                                                            final TimeValue scrollKeepAlive,
+                                                                            final Set<String> referencedFields,
+                                                                            final Optional<SortPushDown> sortPushDown) {
+        final SearchSourceBuilder source = prepareSource(runningSearch, elasticQuery);
+
+        if (sortPushDown.isPresent()) {
+            // There is no point fetching a larger page than the table can show
+            final int pageSize = Math.max(1, Math.min(sortPushDown.get().getLimit(), elasticConfig.getScrollPageSize()));
+            source.sort(SortBuilders.fieldSort(sortPushDown.get().getFieldName())
+                            .order(sortPushDown.get().getSortOrder()))
+                    .sort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC)
+                    .size(pageSize);
+        } else {
+            source.sort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC)
+                    .size(elasticConfig.getScrollPageSize());
+        }
+
+        if (referencedFields.isEmpty()) {
+            source.fetchSource(false);
+        } else {
+            source.fetchSource(referencedFields.toArray(new String[referencedFields.size()]), null);
+        }
+
+        return prepareSearch(runningSearch, elasticIndexConfig, searchType, source)
+                .scroll(scrollKeepAlive);
+    }
+
+    /**
+     * Build the parts of a search that are common to the hits and aggregation searches.
+     */
+    private SearchSourceBuilder prepareSource(final RunningSearch runningSearch,
+                                              final QueryBuilder elasticQuery) {
+        final SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(elasticQuery)
+                .stats(Collections.singletonList(runningSearch.getStatsGroup()));
+        runningSearch.getTimeout().ifPresent(source::timeout);
+        return source;
+    }
+
+    /**
+     * Build a search against the index of a doc ref, applying the routing and preference settings of the doc ref.
+     */
+    private org.elasticsearch.action.search.SearchRequest prepareSearch(final RunningSearch runningSearch,
+                                                                        final ElasticIndexDocRefEntity elasticIndexConfig,
+                                                                        final SearchType searchType,
+                                                                        final SearchSourceBuilder source) {
+        final org.elasticsearch.action.search.SearchRequest searchRequest =
+                new org.elasticsearch.action.search.SearchRequest(elasticIndexConfig.getIndexName())
+                        .types(elasticIndexConfig.getIndexedType())
+                        .searchType(searchType)
+                        .source(source)
+                        .preference(elasticIndexConfig.getPreference());
+
+        // If the query only matches particular values of the routing field, only the shards holding them are searched
+        if (null != elasticIndexConfig.getRoutingField()) {
+            ExpressionQueryBuilder.findRequiredValues(runningSearch.getExpression(), elasticIndexConfig.getRoutingField())
+                    .filter(values -> !values.isEmpty())
+                    .ifPresent(values -> searchRequest.routing(values.toArray(new String[values.size()])));
+        }
+
+        return searchRequest;
+    }
+
+    /**
+     * Project a page of hits into the coprocessors and merge them into the store, then request the next page.
+     * The pages are chained together rather than looped over, so no thread waits on Elastic between pages.
+     * @param hitLimit The number of hits after which the rest cannot appear in the results, as they are sorted
+     * @return A future for the total number of hits projected, once the scroll is exhausted or the search stopped
+     */
+    private CompletableFuture<Long> scrollHits(final org.elasticsearch.action.search.SearchResponse response,
+                                               final RunningSearch runningSearch,
+                                               final TimeValue scrollKeepAlive,
+                                               final HitProjection hitProjection,
+                                               final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap,
+                                               final long hitCount,
+                                               final long hitLimit) {
+        final String scrollId = response.getScrollId();
+        final SearchHit[] hits = response.getHits().getHits();
+
+        // The shards that ran out of time will have left hits out of this page
+        if (response.isTimedOut()) {
+            runningSearch.markTimedOut();
+        }
+
+        if (hits.length == 0) {
+            clearScroll(scrollId);
+            return CompletableFuture.completedFuture(hitCount);
+        }
+
+        // Release the search context as soon as the search has been destroyed or has run out of time
+        if (stopSearch(runningSearch)) {
+            LOGGER.debug("Search {} stopped after {} hits", runningSearch.getQueryKey(), hitCount);
+            clearScroll(scrollId);
+            return CompletableFuture.completedFuture(hitCount);
+        }
+
+        final CompletableFuture<Void> fed;
+        try {
+            final String[][] rows = new String[hits.length][];
+            for (int i = 0; i < hits.length; i++) {
+                rows[i] = hitProjection.project(hits[i].getSource());
             }
 
-            final ElasticIndexDocRefEntity elasticIndexConfig = elasticIndexConfigO.get();
+            fed = feedCoprocessors(rows, coprocessorMap, runningSearch.getStore());
+        } catch (final RuntimeException e) {
+            clearScroll(scrollId);
+            throw e;
+        }
+
+        final long projectedCount = hitCount + hits.length;
+        if (projectedCount >= hitLimit) {
+            LOGGER.debug("Search {} has every hit it can show after {} hits", runningSearch.getQueryKey(), projectedCount);
+            clearScroll(scrollId);
+            return fed.thenApply(ignored -> projectedCount);
+        }
+
+        // The next page is requested while this one is still being fed into the coprocessors
+        return fed.thenCombine(elasticClient.searchScroll(new SearchScrollRequest(scrollId).scroll(scrollKeepAlive)),
+                (ignored, nextResponse) -> nextResponse)
+                .whenComplete((nextResponse, e) -> {
+                    if (null != e) {
+                        clearScroll(scrollId);
+                    }
+                })
+                .thenComposeAsync(nextResponse ->
+                        scrollHits(nextResponse, runningSearch, scrollKeepAlive, hitProjection, coprocessorMap, projectedCount, hitLimit),
+                        getExecutor());
+    }
 
-            final QueryBuilder elasticQuery = getQuery(request.getQuery().getExpression());
+    /**
+     * Check if a search should go no further, a search that has run out of time is marked as timed out
+     * so the results it has found are reported as incomplete.
+     * @param runningSearch The search to check
+     * @return True if the search has been cancelled or has run out of time
+     */
+    private static boolean stopSearch(final RunningSearch runningSearch) {
+        if (!runningSearch.isStopped()) {
+            return false;
+        }
+
+        if (!runningSearch.isCancelled()) {
+            runningSearch.markTimedOut();
+        }
+        return true;
+    }
 
-            org.elasticsearch.action.search.SearchResponse response = client
-                    .prepareSearch(elasticIndexConfig.getIndexName())
-                    .setTypes(elasticIndexConfig.getIndexedType())
-                    .setSearchType(SearchType.DFS_QUERY_THEN_FETCH)
-                    .setQuery(elasticQuery)
-                    .get();
+    /**
+     * Feed a page of rows into the coprocessors, then merge their output into the store.
+     * When there are several coprocessors each is fed on its own thread, no coprocessor is ever used by
+     * two threads at once as the next page is not fed until every coprocessor has finished with this one.
+     * @return A future that completes once every coprocessor has been fed the page
+     */
+    private CompletableFuture<Void> feedCoprocessors(final String[][] rows,
+                                                     final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap,
+                                                     final ElasticStore store) {
+        if (!elasticConfig.isParallelCoprocessors() || coprocessorMap.size() < 2) {
+            coprocessorMap.forEach((coprocessorKey, coprocessor) ->
+                    feedCoprocessor(rows, coprocessorKey, coprocessor, store));
+            return CompletableFuture.completedFuture(null);
+        }
 
-            LOGGER.debug("Found " + response);
+        return CompletableFuture.allOf(coprocessorMap.entrySet().stream()
+                .map(entry -> CompletableFuture.runAsync(() ->
+                        feedCoprocessor(rows, entry.getKey(), entry.getValue(), store), getExecutor()))
+                .toArray(CompletableFuture[]::new));
+    }
 
-            for (final SearchHit hit : response.getHits().getHits()) {
-                LOGGER.trace("Hit " + hit);
-                hit.getSource().forEach((s, objects) -> {
-                    LOGGER.trace("Hit Field " + s + " - "  + objects);
-                });
+    private static void feedCoprocessor(final String[][] rows,
+                                        final CoprocessorSettingsMap.CoprocessorKey coprocessorKey,
+                                        final Coprocessor coprocessor,
+                                        final ElasticStore store) {
+        for (final String[] row : rows) {
+            coprocessor.receive(row);
+        }
+
+        // Make this page visible to anyone polling for the results
+        store.addPayload(coprocessorKey, coprocessor);
+    }
+
+    /**
+     * Run the search as a set of aggregations, the buckets are fed into the coprocessors in place of the hits.
+     * @return A future for whether the results were added to the store, false if the aggregations could not be used
+     * and the hits must be searched instead.
+     */
+    private CompletableFuture<Boolean> searchAggregations(final SearchRequest request,
+                                                          final RunningSearch runningSearch,
+                                                          final ElasticIndexDocRefEntity elasticIndexConfig,
+                                                          final QueryBuilder elasticQuery,
+                                                          final SearchType searchType,
+                                                          final AggregationPushDown aggregationPushDown) {
+        final SearchSourceBuilder source = prepareSource(runningSearch, elasticQuery)
+                .size(0);
+        aggregationPushDown.getAggregations().forEach(source::aggregation);
+
+        // Elastic refuses the request cache for scrolls, but repeated aggregations can be answered from it
+        final org.elasticsearch.action.search.SearchRequest searchRequest =
+                prepareSearch(runningSearch, elasticIndexConfig, searchType, source)
+                        .requestCache(elasticIndexConfig.getRequestCache());
+
+        return timeSearch(searchType, searchRequest).handleAsync((response, e) -> {
+            if (null != e) {
+                // There is no time left to search the hits instead
+                if (ActionFutures.isIndexNotFound(e) || runningSearch.isStopped()) {
+                    throw ActionFutures.asCompletionException(e);
+                }
+
+                // Aggregating on a field that does not support it (analysed text for instance) will fail
+                LOGGER.debug("Could not push aggregations down to Elastic, falling back to searching hits", e);
+                return Boolean.FALSE;
             }
 
-            final List<Map<String, Object>> hits = Arrays.stream(response.getHits().getHits())
-                    .map(SearchHit::getSource)
-                    .collect(Collectors.toList());
+            final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+            final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap =
+                    createCoprocessors(request, aggregationPushDown.getRewrittenSettings(), fieldIndexMap);
 
-            final stroom.query.api.v2.SearchResponse searchResponse = projectResults(request, hits);
+            final long totalHits = response.getHits().getTotalHits();
+            final boolean accounted = (null != response.getAggregations())
+                    && aggregationPushDown.project(response.getAggregations(), totalHits, fieldIndexMap, coprocessorMap);
 
-            return Optional.of(searchResponse);
-        } catch (IndexNotFoundException e) {
-            return Optional.empty();
-        } catch (Exception e) {
-            LOGGER.warn("Could not query the datasource for field mappings", e);
+            // Buckets from shards that timed out are missing, searching the hits would only spend the time again
+            if (response.isTimedOut()) {
+                LOGGER.debug("Aggregation search {} timed out", runningSearch.getQueryKey());
+                runningSearch.markTimedOut();
+                runningSearch.getStore().addPayloads(coprocessorMap);
+                return Boolean.TRUE;
+            }
 
-            final Throwable rootCause = ExceptionUtils.getRootCause(e);
-            if (rootCause instanceof IndexNotFoundException) {
-                return Optional.empty();
-            } else {
-                throw e;
+            if (!accounted) {
+                LOGGER.debug("Aggregation buckets did not account for every hit, falling back to searching hits");
+                return Boolean.FALSE;
             }
-        }
+
+            runningSearch.getStore().addPayloads(coprocessorMap);
+            return Boolean.TRUE;
+        }, getExecutor());
     }
 
     @Override
     public Boolean destroy(final ServiceUser user,
                            final QueryKey queryKey) {
+        // The search is cancelled as it is removed, which tells Elastic to stop work on it
+        runningSearches.remove(queryKey);
+
         return Boolean.TRUE;
     }
 
+    /**
+     * Cancel the Elastic search task of a running search, so the shards stop working on it straight away.
+     * The task is found by the stats group the search was tagged with, which appears in the task description.
+     * A search that is between scroll pages has no task, it will be stopped before the next page is requested.
+     * @param runningSearch The search to cancel
+     */
+    private void cancelTasks(final RunningSearch runningSearch) {
+        ActionFutures.execute(client.admin().cluster()
+                .prepareListTasks()
+                .setActions(SearchAction.NAME)
+                .setDetailed(true))
+                .thenAccept(listTasksResponse -> listTasksResponse.getTasks().stream()
+                        .filter(taskInfo -> null != taskInfo.getDescription())
+                        .filter(taskInfo -> taskInfo.getDescription().contains(runningSearch.getStatsGroup()))
+                        .forEach(taskInfo -> {
+                            LOGGER.debug("Cancelling task {} for search {}", taskInfo.getTaskId(), runningSearch.getQueryKey());
+                            ActionFutures.execute(client.admin().cluster()
+                                    .prepareCancelTasks()
+                                    .setTaskId(taskInfo.getTaskId()));
+                        }))
+                .whenComplete((result, e) -> {
+                    if (null != e) {
+                        LOGGER.warn("Could not cancel the tasks for search " + runningSearch.getQueryKey(), e);
+                    }
+                });
+    }
+
     @Override
     public Optional<DocRef> getDocRefForQueryKey(final ServiceUser user,
                                                  final QueryKey queryKey) {
-        return Optional.empty();
+        return runningSearches.get(queryKey)
+                .map(RunningSearch::getDocRef);
+    }
+
+    /**
+     * Execute the initial request of a search, recording the latency against the search type used.
+     */
+    private CompletableFuture<org.elasticsearch.action.search.SearchResponse> timeSearch(final SearchType searchType,
+                                                                                        final org.elasticsearch.action.search.SearchRequest searchRequest) {
+        final Timer.Context timerContext = metricRegistry
+                .timer(MetricRegistry.name(ElasticQueryServiceImpl.class, "search", searchType.name()))
+                .time();
+        return elasticClient.search(searchRequest)
+                .whenComplete((response, e) -> timerContext.stop());
+    }
+
+    /**
+     * The Elastic client completes its futures on the network threads, the work of projecting the results
+     * is handed over to an executor of the client so those threads are not held up.
+     */
+    private Executor getExecutor() {
+        return elasticClient.getExecutor();
     }
 
-    private QueryBuilder getQuery(final ExpressionItem item) {
-        if (!item.enabled()) {
-            return null;
+    private void logFailure(final Object result, final Throwable e) {
+        if ((null != e) && !ActionFutures.isIndexNotFound(e)) {
+            LOGGER.warn("Could not query the datasource", ActionFutures.unwrap(e));
         }
+    }
 
-        if (item instanceof ExpressionTerm) {
-            final ExpressionTerm term = (ExpressionTerm) item;
+    /**
+     * Select the search type according to the configured policy.
+     * @param expressionQueryBuilder The builder used to compile the expression
+     * @param expression The expression being searched for
+     * @return The search type to use
+     */
+    private SearchType getSearchType(final ExpressionQueryBuilder expressionQueryBuilder,
+                                     final ExpressionItem expression) {
+        switch (elasticConfig.getSearchTypePolicy()) {
+            case QUERY_THEN_FETCH:
+                return SearchType.QUERY_THEN_FETCH;
+            case DFS_QUERY_THEN_FETCH:
+                return SearchType.DFS_QUERY_THEN_FETCH;
+            default:
+                return expressionQueryBuilder.isScored(expression) ? SearchType.DFS_QUERY_THEN_FETCH : SearchType.QUERY_THEN_FETCH;
+        }
+    }
 
-            switch (term.getCondition()) {
-                case EQUALS: {
-                    return QueryBuilders.termQuery(term.getField(), term.getValue());
-                }
-                case CONTAINS: {
-                    return QueryBuilders.termQuery(term.getField(), term.getValue());
-                }
-                case BETWEEN: {
-                    final String[] parts = term.getValue().split(",");
-                    if (parts.length == 2) {
-                        final String from = parts[0];
-                        final String to = parts[1];
-                        return QueryBuilders.rangeQuery(term.getField()).from(from).to(to);
-                    }
-                    break;
-                }
-                case GREATER_THAN: {
-                    return QueryBuilders.rangeQuery(term.getField()).gt(term.getValue());
-                }
-                case GREATER_THAN_OR_EQUAL_TO: {
-                    return QueryBuilders.rangeQuery(term.getField()).gte(term.getValue());
-                }
-                case LESS_THAN: {
-                    return QueryBuilders.rangeQuery(term.getField()).lt(term.getValue());
-                }
-                case LESS_THAN_OR_EQUAL_TO: {
-                    return QueryBuilders.rangeQuery(term.getField()).lte(term.getValue());
-                }
-                case IN: {
-                    final String[] parts = term.getValue().split(",");
-
-                    // Compose an effective 'or' statement
-                    final BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
-                    Arrays.stream(parts)
-                            .forEach(p -> boolQuery.should(QueryBuilders.termQuery(term.getField(), p)));
-                    return boolQuery;
-                }
-                case IN_DICTIONARY: {
-                    // Not sure how to handle this yet
-                }
+    /**
+     * Release the search context held open by a scroll, Elastic would eventually time it out
+     * but there is no sense holding onto it once we have read every page.
+     * @param scrollId The ID of the scroll to clear
+     */
+    private void clearScroll(final String scrollId) {
+        if (null == scrollId) {
+            return;
+        }
 
-            }
+        final ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+        clearScrollRequest.addScrollId(scrollId);
 
-        } else if (item instanceof ExpressionOperator) {
-            final ExpressionOperator operator = (ExpressionOperator) item;
-
-            final BiConsumer<BoolQueryBuilder, QueryBuilder> consumer;
-            switch (operator.getOp()) {
-                case AND:
-                    consumer = BoolQueryBuilder::must;
-                    break;
-                case OR:
-                    consumer = BoolQueryBuilder::should;
-                    break;
-                case NOT:
-                    consumer = BoolQueryBuilder::mustNot;
-                    break;
-                default:
-                    consumer = BoolQueryBuilder::must; // shouldn't really get here
-                    break;
-            }
+        elasticClient.clearScroll(clearScrollRequest)
+                .whenComplete((response, e) -> {
+                    if (null != e) {
+                        LOGGER.warn("Could not clear scroll " + scrollId, e);
+                    }
+                });
+    }
 
-            // Construct the combined term
-            final BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
-            operator.getChildren().stream()
-                    .map(this::getQuery)
+    /**
+     * Find the names of all the fields referenced by the expressions of the table coprocessors.
+     * @param coprocessorSettings The coprocessor settings for the search
+     * @return The names of every field used as ${field} in a table field expression
+     */
+    private Set<String> getReferencedFields(final Map<CoprocessorSettingsMap.CoprocessorKey, CoprocessorSettings> coprocessorSettings) {
+        final Set<String> referencedFields = new HashSet<>();
+
+        if (coprocessorSettings != null) {
+            coprocessorSettings.values().stream()
+                    .filter(TableCoprocessorSettings.class::isInstance)
+                    .map(TableCoprocessorSettings.class::cast)
+                    .map(TableCoprocessorSettings::getTableSettings)
+                    .filter(tableSettings -> null != tableSettings.getFields())
+                    .flatMap(tableSettings -> tableSettings.getFields().stream())
+                    .map(Field::getExpression)
                     .filter(Objects::nonNull)
-                    .forEach(queryBuilder -> consumer.accept(boolQuery, queryBuilder));
-            return boolQuery;
+                    .forEach(expression -> {
+                        final Matcher matcher = FIELD_REFERENCE.matcher(expression);
+                        while (matcher.find()) {
+                            referencedFields.add(matcher.group(1));
+                        }
+                    });
         }
 
-        return null;
+        return referencedFields;
     }
 
     // TODO I copied this from 'stats', but can't make head or tail of it to try and move it into somewhere more sensible
-    private stroom.query.api.v2.SearchResponse projectResults(final SearchRequest searchRequest,
-                                                              final List<Map<String, Object>> hits) {
-
-        // TODO: possibly the mapping from the componentId to the coprocessorsettings map is a bit odd.
-        final CoprocessorSettingsMap coprocessorSettingsMap = CoprocessorSettingsMap.create(searchRequest);
-
+    private Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> createCoprocessors(final SearchRequest searchRequest,
+                                                                                   final Map<CoprocessorSettingsMap.CoprocessorKey, CoprocessorSettings> settingsMap,
+                                                                                   final FieldIndexMap fieldIndexMap) {
         final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap = new HashMap<>();
 
-        // TODO: Mapping to this is complicated! it'd be nice not to have to do this.
-        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
-
         // Compile all of the result component options to optimise pattern matching etc.
-        if (coprocessorSettingsMap.getMap() != null) {
-            for (final Map.Entry<CoprocessorSettingsMap.CoprocessorKey, CoprocessorSettings> entry : coprocessorSettingsMap.getMap().entrySet()) {
+        if (settingsMap != null) {
+            for (final Map.Entry<CoprocessorSettingsMap.CoprocessorKey, CoprocessorSettings> entry : settingsMap.entrySet()) {
                 final CoprocessorSettingsMap.CoprocessorKey coprocessorId = entry.getKey();
                 final CoprocessorSettings coprocessorSettings = entry.getValue();
 
@@ -297,53 +814,11 @@ public class ElasticQueryServiceImpl implements QueryService {
             }
         }
 
-        //TODO TableCoprocessor is doing a lot of work to pre-process and aggregate the datas
-
-        for (Map<String, Object> hit : hits) {
-            String[] dataArray = new String[fieldIndexMap.size()];
-
-            //TODO should probably drive this off a new fieldIndexMap.getEntries() method or similar
-            //then we only loop round fields we car about
-            hit.forEach((fieldName, value) -> {
-                int posInDataArray = fieldIndexMap.get(fieldName);
-                //if the fieldIndexMap returns -1 the field has not been requested
-                if (posInDataArray != -1) {
-                    dataArray[posInDataArray] = value.toString();
-                }
-            });
-
-            coprocessorMap.entrySet().forEach(coprocessor -> {
-                coprocessor.getValue().receive(dataArray);
-            });
-        }
-
-        // TODO putting things into a payload and taking them out again is a waste of time in this case. We could use a queue instead and that'd be fine.
-        //TODO: 'Payload' is a cluster specific name - what lucene ships back from a node.
-        // Produce payloads for each coprocessor.
-        Map<CoprocessorSettingsMap.CoprocessorKey, Payload> payloadMap = null;
-        if (coprocessorMap != null && coprocessorMap.size() > 0) {
-            for (final Map.Entry<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> entry : coprocessorMap.entrySet()) {
-                final Payload payload = entry.getValue().createPayload();
-                if (payload != null) {
-                    if (payloadMap == null) {
-                        payloadMap = new HashMap<>();
-                    }
-                    payloadMap.put(entry.getKey(), payload);
-                }
-            }
-        }
-
-        // Construct the store
-        final List<Integer> storeSize = Collections.singletonList(hits.size());
-        ElasticStore store = new ElasticStore(storeSize, new StoreSize(storeSize));
-        store.process(coprocessorSettingsMap);
-        store.coprocessorMap(coprocessorMap);
-        store.payloadMap(payloadMap);
-
-        // defaultMaxResultsSizes could be obtained from the StatisticsStore but at this point that object is ephemeral.
-        // It seems a little pointless to put it into the StatisticsStore only to get it out again so for now
-        // we'll just get it straight from the config.
+        return coprocessorMap;
+    }
 
+    private stroom.query.api.v2.SearchResponse createResponse(final SearchRequest searchRequest,
+                                                              final ElasticStore store) {
         final SearchResponseCreator searchResponseCreator = new SearchResponseCreator(store);
 
         return searchResponseCreator.create(searchRequest);
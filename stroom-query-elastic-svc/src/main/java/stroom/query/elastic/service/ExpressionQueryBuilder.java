@@ -0,0 +1,294 @@
+package stroom.query.elastic.service;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import stroom.query.api.v2.ExpressionItem;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Translates Stroom expressions into Elastic queries.
+ *
+ * Stroom never makes use of relevance, so by default the expression is compiled into filter context
+ * (wrapped in a constant score) which lets the nodes use their filter caches. Operators with a single child
+ * are collapsed, nested operators of the same type are flattened and IN terms become a single terms query.
+ *
+ * The original scoring translation (must/should/must_not) can still be requested.
+ */
+public class ExpressionQueryBuilder {
+    private final boolean filterContext;
+
+    public static ExpressionQueryBuilder withFilterContext(final boolean filterContext) {
+        return new ExpressionQueryBuilder(filterContext);
+    }
+
+    private ExpressionQueryBuilder(final boolean filterContext) {
+        this.filterContext = filterContext;
+    }
+
+    /**
+     * Compile the expression into an Elastic query
+     * @param expression The root of the expression
+     * @return The Elastic query, an empty or disabled expression will match all documents.
+     */
+    public QueryBuilder build(final ExpressionItem expression) {
+        final QueryBuilder query = filterContext ? getFilter(expression) : getQuery(expression);
+
+        if (null == query) {
+            return QueryBuilders.matchAllQuery();
+        } else if (filterContext) {
+            return QueryBuilders.constantScoreQuery(query);
+        } else {
+            return query;
+        }
+    }
+
+    /**
+     * Determine if the query compiled from an expression would be scored.
+     * Global term statistics only change the relevance of text matches, equality and range clauses
+     * are unaffected.
+     * @param item The expression item to check
+     * @return True if any enabled part of the expression is a scored text match
+     */
+    public boolean isScored(final ExpressionItem item) {
+        if (filterContext || null == item || !item.enabled()) {
+            return false;
+        }
+
+        if (item instanceof ExpressionTerm) {
+            return ExpressionTerm.Condition.CONTAINS.equals(((ExpressionTerm) item).getCondition());
+        } else if (item instanceof ExpressionOperator) {
+            return ((ExpressionOperator) item).getChildren().stream()
+                    .anyMatch(this::isScored);
+        }
+
+        return false;
+    }
+
+    /**
+     * Find the values a field must have for a document to match the expression, these are taken from the
+     * EQUALS and IN terms that every match must satisfy, so any terms beneath an OR or NOT are ignored.
+     * @param expression The root of the expression
+     * @param fieldName The name of the field
+     * @return The values the field is restricted to, empty if the expression does not restrict the field
+     */
+    public static Optional<Set<String>> findRequiredValues(final ExpressionItem expression,
+                                                           final String fieldName) {
+        if (null == expression || !expression.enabled()) {
+            return Optional.empty();
+        }
+
+        if (expression instanceof ExpressionTerm) {
+            final ExpressionTerm term = (ExpressionTerm) expression;
+            if (!fieldName.equals(term.getField()) || null == term.getValue()) {
+                return Optional.empty();
+            }
+
+            switch (term.getCondition()) {
+                case EQUALS:
+                    return Optional.of(Collections.singleton(term.getValue()));
+                case IN:
+                    return Optional.of(new HashSet<>(Arrays.asList(term.getValue().split(","))));
+                default:
+                    return Optional.empty();
+            }
+        } else if ((expression instanceof ExpressionOperator)
+                && ExpressionOperator.Op.AND.equals(((ExpressionOperator) expression).getOp())
+                && (null != ((ExpressionOperator) expression).getChildren())) {
+            // Each restriction of an AND must hold, so only the values common to all of them can match
+            Set<String> required = null;
+            for (final ExpressionItem child : ((ExpressionOperator) expression).getChildren()) {
+                final Optional<Set<String>> childValues = findRequiredValues(child, fieldName);
+                if (childValues.isPresent()) {
+                    if (null == required) {
+                        required = new HashSet<>(childValues.get());
+                    } else {
+                        required.retainAll(childValues.get());
+                    }
+                }
+            }
+            return Optional.ofNullable(required);
+        }
+
+        return Optional.empty();
+    }
+
+    private QueryBuilder getFilter(final ExpressionItem item) {
+        if (null == item || !item.enabled()) {
+            return null;
+        }
+
+        if (item instanceof ExpressionTerm) {
+            return getTerm((ExpressionTerm) item);
+        } else if (item instanceof ExpressionOperator) {
+            final ExpressionOperator operator = (ExpressionOperator) item;
+
+            final List<QueryBuilder> clauses = new ArrayList<>();
+            collectClauses(operator.getOp(), operator, clauses);
+
+            if (clauses.isEmpty()) {
+                return null;
+            }
+
+            switch (operator.getOp()) {
+                case OR: {
+                    if (clauses.size() == 1) {
+                        return clauses.get(0);
+                    }
+                    final BoolQueryBuilder boolQuery = QueryBuilders.boolQuery().minimumShouldMatch(1);
+                    clauses.forEach(boolQuery::should);
+                    return boolQuery;
+                }
+                case NOT: {
+                    final BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
+                    clauses.forEach(boolQuery::mustNot);
+                    return boolQuery;
+                }
+                default: {
+                    if (clauses.size() == 1) {
+                        return clauses.get(0);
+                    }
+                    final BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
+                    clauses.forEach(boolQuery::filter);
+                    return boolQuery;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gather the clauses for an operator, any child AND/OR operator of the same type is flattened into the parent.
+     */
+    private void collectClauses(final ExpressionOperator.Op parentOp,
+                                final ExpressionOperator operator,
+                                final List<QueryBuilder> clauses) {
+        if (null == operator.getChildren()) {
+            return;
+        }
+
+        for (final ExpressionItem child : operator.getChildren()) {
+            if (!child.enabled()) {
+                continue;
+            }
+
+            if ((child instanceof ExpressionOperator)
+                    && !ExpressionOperator.Op.NOT.equals(parentOp)
+                    && parentOp.equals(((ExpressionOperator) child).getOp())) {
+                collectClauses(parentOp, (ExpressionOperator) child, clauses);
+            } else {
+                final QueryBuilder clause = getFilter(child);
+                if (null != clause) {
+                    clauses.add(clause);
+                }
+            }
+        }
+    }
+
+    private QueryBuilder getTerm(final ExpressionTerm term) {
+        switch (term.getCondition()) {
+            case IN: {
+                final String[] parts = term.getValue().split(",");
+                return QueryBuilders.termsQuery(term.getField(), Arrays.asList(parts));
+            }
+            default:
+                return getScoredTerm(term);
+        }
+    }
+
+    private QueryBuilder getQuery(final ExpressionItem item) {
+        if (null == item || !item.enabled()) {
+            return null;
+        }
+
+        if (item instanceof ExpressionTerm) {
+            return getScoredTerm((ExpressionTerm) item);
+        } else if (item instanceof ExpressionOperator) {
+            final ExpressionOperator operator = (ExpressionOperator) item;
+
+            final BiConsumer<BoolQueryBuilder, QueryBuilder> consumer;
+            switch (operator.getOp()) {
+                case AND:
+                    consumer = BoolQueryBuilder::must;
+                    break;
+                case OR:
+                    consumer = BoolQueryBuilder::should;
+                    break;
+                case NOT:
+                    consumer = BoolQueryBuilder::mustNot;
+                    break;
+                default:
+                    consumer = BoolQueryBuilder::must; // shouldn't really get here
+                    break;
+            }
+
+            // Construct the combined term
+            final BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
+            operator.getChildren().stream()
+                    .map(this::getQuery)
+                    .filter(Objects::nonNull)
+                    .forEach(queryBuilder -> consumer.accept(boolQuery, queryBuilder));
+            return boolQuery;
+        }
+
+        return null;
+    }
+
+    private QueryBuilder getScoredTerm(final ExpressionTerm term) {
+        switch (term.getCondition()) {
+            case EQUALS: {
+                return QueryBuilders.termQuery(term.getField(), term.getValue());
+            }
+            case CONTAINS: {
+                return QueryBuilders.termQuery(term.getField(), term.getValue());
+            }
+            case BETWEEN: {
+                final String[] parts = term.getValue().split(",");
+                if (parts.length == 2) {
+                    final String from = parts[0];
+                    final String to = parts[1];
+                    return QueryBuilders.rangeQuery(term.getField()).from(from).to(to);
+                }
+                break;
+            }
+            case GREATER_THAN: {
+                return QueryBuilders.rangeQuery(term.getField()).gt(term.getValue());
+            }
+            case GREATER_THAN_OR_EQUAL_TO: {
+                return QueryBuilders.rangeQuery(term.getField()).gte(term.getValue());
+            }
+            case LESS_THAN: {
+                return QueryBuilders.rangeQuery(term.getField()).lt(term.getValue());
+            }
+            case LESS_THAN_OR_EQUAL_TO: {
+                return QueryBuilders.rangeQuery(term.getField()).lte(term.getValue());
+            }
+            case IN: {
+                final String[] parts = term.getValue().split(",");
+
+                // Compose an effective 'or' statement
+                final BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
+                Arrays.stream(parts)
+                        .forEach(p -> boolQuery.should(QueryBuilders.termQuery(term.getField(), p)));
+                return boolQuery;
+            }
+            case IN_DICTIONARY: {
+                // Not sure how to handle this yet
+            }
+        }
+
+        return null;
+    }
+}
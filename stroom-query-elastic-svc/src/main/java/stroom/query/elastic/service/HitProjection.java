@@ -0,0 +1,79 @@
+package stroom.query.elastic.service;
+
+import stroom.dashboard.expression.v1.FieldIndexMap;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A plan for turning the source of each hit into the row of values given to the coprocessors.
+ *
+ * It is compiled once per search from the fields the tables reference, so each hit only has those
+ * fields looked up in its source, rather than every source field being checked against the field index map.
+ */
+class HitProjection {
+    private final String[] fieldNames;
+    private final int[] positions;
+    private final int width;
+
+    private HitProjection(final String[] fieldNames,
+                          final int[] positions,
+                          final int width) {
+        this.fieldNames = fieldNames;
+        this.positions = positions;
+        this.width = width;
+    }
+
+    /**
+     * Compile the projection, this must be done after the coprocessors have been created
+     * as they populate the field index map.
+     * @param referencedFields The names of the fields referenced by the tables
+     * @param fieldIndexMap The positions of the fields in each row
+     * @return The compiled projection
+     */
+    static HitProjection compile(final Collection<String> referencedFields,
+                                 final FieldIndexMap fieldIndexMap) {
+        final String[] fieldNames = new String[referencedFields.size()];
+        final int[] positions = new int[referencedFields.size()];
+
+        int count = 0;
+        for (final String fieldName : referencedFields) {
+            final int position = fieldIndexMap.get(fieldName);
+
+            //if the fieldIndexMap returns -1 the field has not been requested
+            if (position != -1) {
+                fieldNames[count] = fieldName;
+                positions[count] = position;
+                count++;
+            }
+        }
+
+        final String[] compiledFieldNames = new String[count];
+        final int[] compiledPositions = new int[count];
+        System.arraycopy(fieldNames, 0, compiledFieldNames, 0, count);
+        System.arraycopy(positions, 0, compiledPositions, 0, count);
+
+        return new HitProjection(compiledFieldNames, compiledPositions, fieldIndexMap.size());
+    }
+
+    /**
+     * Project the source of a hit into a row.
+     * The coprocessors may hold onto the rows they receive, so a new row is created for each hit.
+     * @param source The source of the hit, may be null if no source was fetched
+     * @return The row of values, with nulls for fields the hit does not have
+     */
+    String[] project(final Map<String, Object> source) {
+        final String[] row = new String[width];
+
+        if (null != source) {
+            for (int i = 0; i < fieldNames.length; i++) {
+                final Object value = source.get(fieldNames[i]);
+                if (null != value) {
+                    row[positions[i]] = value.toString();
+                }
+            }
+        }
+
+        return row;
+    }
+}
@@ -0,0 +1,157 @@
+package stroom.query.elastic.service;
+
+import org.elasticsearch.common.unit.TimeValue;
+import stroom.query.api.v2.DocRef;
+import stroom.query.api.v2.ExpressionItem;
+import stroom.query.api.v2.Query;
+import stroom.query.api.v2.QueryKey;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.elastic.store.ElasticStore;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The state of a single search, held between polls while results are gathered from Elastic.
+ *
+ * Searches are tagged with a stats group unique to the search, this shows up in the description of the
+ * Elastic search task so the task can be found and cancelled when the query is destroyed.
+ */
+class RunningSearch {
+    private static final String STATS_GROUP_PREFIX = "stroom-query-";
+
+    private final QueryKey queryKey;
+    private final Query query;
+    private final String dateTimeLocale;
+    private final Map<String, List<TableSettings>> resultSettings;
+    private final String statsGroup;
+    private final Long timeout;
+    private final long startTime;
+    private final ElasticStore store;
+    private final CompletableFuture<Optional<ElasticStore>> result = new CompletableFuture<>();
+    private final List<Runnable> cancelListeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean cancelled;
+    private volatile boolean timedOut;
+
+    /**
+     * @param request The search request
+     * @param store The store the results are gathered into
+     * @param defaultTimeout The timeout to use if the request does not give one, may be null
+     */
+    RunningSearch(final SearchRequest request,
+                  final ElasticStore store,
+                  final Long defaultTimeout) {
+        this.queryKey = request.getKey();
+        this.query = request.getQuery();
+        this.dateTimeLocale = request.getDateTimeLocale();
+        this.resultSettings = getResultSettings(request);
+        this.statsGroup = STATS_GROUP_PREFIX + ((null != queryKey) ? queryKey.getUuid() : UUID.randomUUID().toString());
+        this.timeout = (null != request.getTimeout()) ? request.getTimeout() : defaultTimeout;
+        this.startTime = System.currentTimeMillis();
+        this.store = store;
+    }
+
+    QueryKey getQueryKey() {
+        return queryKey;
+    }
+
+    DocRef getDocRef() {
+        return query.getDataSource();
+    }
+
+    ExpressionItem getExpression() {
+        return query.getExpression();
+    }
+
+    /**
+     * @param request A search request made with the same key as this search
+     * @return True if the request is for the same query and tables, so can be answered from this search.
+     * The range of rows requested may differ, as every row is held in the store.
+     */
+    boolean isFor(final SearchRequest request) {
+        return query.equals(request.getQuery())
+                && Objects.equals(dateTimeLocale, request.getDateTimeLocale())
+                && resultSettings.equals(getResultSettings(request));
+    }
+
+    /**
+     * @return The settings of each table, by component ID, which decide what is gathered into the store
+     */
+    private static Map<String, List<TableSettings>> getResultSettings(final SearchRequest request) {
+        final Map<String, List<TableSettings>> resultSettings = new HashMap<>();
+        if (null != request.getResultRequests()) {
+            for (final ResultRequest resultRequest : request.getResultRequests()) {
+                resultSettings.put(resultRequest.getComponentId(), resultRequest.getMappings());
+            }
+        }
+        return resultSettings;
+    }
+
+    String getStatsGroup() {
+        return statsGroup;
+    }
+
+    ElasticStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return A future that completes with the store once the search has finished, empty if the index was not found
+     */
+    CompletableFuture<Optional<ElasticStore>> getResult() {
+        return result;
+    }
+
+    /**
+     * @return The timeout to hand to Elastic for each request, if the search request or the config gave one
+     */
+    Optional<TimeValue> getTimeout() {
+        return Optional.ofNullable(timeout)
+                .map(TimeValue::timeValueMillis);
+    }
+
+    /**
+     * @return True if the search has been cancelled, or has run for longer than its timeout
+     */
+    boolean isStopped() {
+        return cancelled || ((null != timeout) && (System.currentTimeMillis() - startTime > timeout));
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Flag that the search ran out of time, either here or on the shards, so the results found so far are
+     * reported as incomplete rather than as every result.
+     */
+    void markTimedOut() {
+        this.timedOut = true;
+    }
+
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @param listener Called when the search is cancelled, to stop any work on it held elsewhere
+     */
+    void onCancel(final Runnable listener) {
+        cancelListeners.add(listener);
+    }
+
+    void cancel() {
+        this.cancelled = true;
+        store.destroy();
+        cancelListeners.forEach(Runnable::run);
+    }
+}
@@ -0,0 +1,204 @@
+package stroom.query.elastic.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.query.api.v2.QueryKey;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.elastic.config.ElasticConfig;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Registry of searches keyed on the query key, so that later polls for the same query are answered from
+ * the results already gathered. Searches are cancelled when they are removed, either by being destroyed,
+ * by their key being reused for a different query, or by going unread for longer than the configured time to idle.
+ *
+ * The cache only evicts idle entries as it is used, so while managed it is cleaned up on a schedule to
+ * cancel abandoned searches even when no other queries arrive. Any searches left when it stops are cancelled.
+ * The same timer ends the waits of incremental requests, so no thread is held while a request waits on a search.
+ */
+@Singleton
+public class RunningSearches implements Managed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunningSearches.class);
+
+    /**
+     * The longest an idle search is left running past its time to idle
+     */
+    private static final long CLEAN_UP_INTERVAL_MILLIS = 30000;
+
+    private final Cache<QueryKey, RunningSearch> searches;
+    private final long cleanUpIntervalMillis;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "running-searches-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    public RunningSearches(final ElasticConfig elasticConfig) {
+        final long timeToIdleMillis = elasticConfig.getSearchResultsTimeToIdle().toMilliseconds();
+        this.searches = CacheBuilder.newBuilder()
+                .expireAfterAccess(timeToIdleMillis, TimeUnit.MILLISECONDS)
+                .removalListener((RemovalListener<QueryKey, RunningSearch>) notification -> {
+                    LOGGER.debug("Cancelling search {}, {}", notification.getKey(), notification.getCause());
+                    notification.getValue().cancel();
+                })
+                .build();
+        this.cleanUpIntervalMillis = Math.max(1, Math.min(timeToIdleMillis, CLEAN_UP_INTERVAL_MILLIS));
+    }
+
+    @Override
+    public void start() throws Exception {
+        timer.scheduleWithFixedDelay(this::cleanUp,
+                cleanUpIntervalMillis,
+                cleanUpIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        LOGGER.info("Stopping Running Searches");
+        timer.shutdownNow();
+        timer.awaitTermination(5, TimeUnit.SECONDS);
+        searches.invalidateAll();
+    }
+
+    /**
+     * Wait a limited time for a future without holding a thread, the wait is ended by a timer.
+     * @param future The future to wait for, usually the result of a search
+     * @param waitMillis The longest time to wait
+     * @param otherwise Supplies the value to complete with if the future has not completed in time
+     * @param <T> The type of the result
+     * @return A future that completes with the result of the future, or the other value once the wait is up
+     */
+    <T> CompletableFuture<T> within(final CompletableFuture<T> future,
+                                    final long waitMillis,
+                                    final Supplier<T> otherwise) {
+        final CompletableFuture<T> waited = new CompletableFuture<>();
+        final ScheduledFuture<?> waitUp = timer.schedule(() -> waited.complete(otherwise.get()),
+                waitMillis,
+                TimeUnit.MILLISECONDS);
+
+        future.whenComplete((result, e) -> {
+            waitUp.cancel(false);
+            if (null == e) {
+                waited.complete(result);
+            } else {
+                waited.completeExceptionally(e);
+            }
+        });
+
+        return waited;
+    }
+
+    /**
+     * Evict, and so cancel, the searches that have gone unread for longer than the time to idle.
+     */
+    void cleanUp() {
+        try {
+            searches.cleanUp();
+        } catch (final RuntimeException e) {
+            // A failure must not stop the schedule, the next clean up will try again
+            LOGGER.warn("Failed to clean up idle searches", e);
+        }
+    }
+
+    /**
+     * Find the search for a request, starting a new one if there is not already a search for the same query.
+     * @param request The search request
+     * @param createSearch Creates the new search, it should not yet be started
+     * @return The search, and whether it was created by this call so needs starting
+     */
+    Started getOrCreate(final SearchRequest request,
+                        final Function<SearchRequest, RunningSearch> createSearch) {
+        // Searches without a key cannot be polled, so are never registered
+        if (null == request.getKey()) {
+            return new Started(createSearch.apply(request), true);
+        }
+
+        final RunningSearch existing = searches.getIfPresent(request.getKey());
+        if (null != existing) {
+            if (existing.isFor(request)) {
+                return new Started(existing, false);
+            }
+
+            // The key has been reused for a different query, the old results are of no further use
+            searches.asMap().remove(request.getKey(), existing);
+        }
+
+        final RunningSearch created = createSearch.apply(request);
+        try {
+            final RunningSearch runningSearch = searches.get(request.getKey(), () -> created);
+            return new Started(runningSearch, runningSearch == created);
+        } catch (final ExecutionException e) {
+            // The loader cannot fail
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Find a registered search.
+     * @param queryKey The key of the search
+     * @return The search, empty if there is no search registered with that key
+     */
+    Optional<RunningSearch> get(final QueryKey queryKey) {
+        return Optional.ofNullable(searches.getIfPresent(queryKey));
+    }
+
+    /**
+     * Remove a search, it is cancelled as it is removed.
+     * @param queryKey The key of the search
+     * @return The removed search, empty if there is no search registered with that key
+     */
+    Optional<RunningSearch> remove(final QueryKey queryKey) {
+        final Optional<RunningSearch> runningSearch = get(queryKey);
+        searches.invalidate(queryKey);
+        return runningSearch;
+    }
+
+    /**
+     * Remove a search if it is still the one registered against its key, it is cancelled as it is removed.
+     * @param runningSearch The search to remove
+     */
+    void remove(final RunningSearch runningSearch) {
+        if (null != runningSearch.getQueryKey()) {
+            searches.asMap().remove(runningSearch.getQueryKey(), runningSearch);
+        }
+    }
+
+    /**
+     * A search as found or created by the registry.
+     */
+    static class Started {
+        private final RunningSearch runningSearch;
+        private final boolean created;
+
+        private Started(final RunningSearch runningSearch,
+                        final boolean created) {
+            this.runningSearch = runningSearch;
+            this.created = created;
+        }
+
+        RunningSearch getRunningSearch() {
+            return runningSearch;
+        }
+
+        boolean isCreated() {
+            return created;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package stroom.query.elastic.service;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import stroom.datasource.api.v2.DataSource;
+import stroom.datasource.api.v2.DataSourceField;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Format;
+import stroom.query.api.v2.Sort;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.common.v2.CoprocessorSettings;
+import stroom.query.common.v2.CoprocessorSettingsMap;
+import stroom.query.common.v2.TableCoprocessorSettings;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * When a search feeds a single ungrouped table whose only sort is on a plain numeric field, Elastic can return the
+ * hits already in that order, so once the table has as many rows as it can show the rest of the hits cannot make it
+ * into the results and the scroll can be stopped early.
+ *
+ * Only numeric fields are pushed down, Elastic orders text and keyword fields on their terms and dates on their
+ * parsed values, neither of which need be the order the table puts the source values in. Hits without a value
+ * for the field are searched for separately and always read in full, as they may sort anywhere in the table.
+ * Fields with several values are sorted on their lowest or highest value by Elastic, so an index holding those
+ * should not have its sort pushed down, see sortPushDown on the elastic config.
+ */
+class SortPushDown {
+    private static final Pattern FIELD_REF = Pattern.compile("^\\$\\{([^}]+)}$");
+
+    private final String fieldName;
+    private final SortOrder sortOrder;
+    private final int limit;
+
+    private SortPushDown(final String fieldName,
+                         final SortOrder sortOrder,
+                         final int limit) {
+        this.fieldName = fieldName;
+        this.sortOrder = sortOrder;
+        this.limit = limit;
+    }
+
+    /**
+     * Attempt to plan the push down of the sort of a search request.
+     * @param coprocessorSettingsMap The coprocessor settings from the search request
+     * @param dataSource The fields of the index, used to check the type of the sorted field
+     * @return The plan, or empty if Elastic cannot be relied on to find the rows of the table
+     */
+    static Optional<SortPushDown> forTables(final CoprocessorSettingsMap coprocessorSettingsMap,
+                                            final Optional<DataSource> dataSource) {
+        if ((null == coprocessorSettingsMap.getMap()) || (coprocessorSettingsMap.getMap().size() != 1)) {
+            return Optional.empty();
+        }
+
+        final CoprocessorSettings coprocessorSettings = coprocessorSettingsMap.getMap().values().iterator().next();
+        if (!(coprocessorSettings instanceof TableCoprocessorSettings)) {
+            return Optional.empty();
+        }
+
+        final TableSettings tableSettings = ((TableCoprocessorSettings) coprocessorSettings).getTableSettings();
+        final List<Field> fields = tableSettings.getFields();
+        if ((null == fields) || fields.stream().anyMatch(field -> null != field.getGroup())) {
+            return Optional.empty();
+        }
+
+        // Later sorts and filters change which rows make the cut, so every hit would still need to be read
+        if (fields.stream().anyMatch(field -> null != field.getFilter())
+                || (null == tableSettings.getMaxResults())
+                || tableSettings.getMaxResults().isEmpty()
+                || (null == tableSettings.getMaxResults().get(0))) {
+            return Optional.empty();
+        }
+
+        final List<Field> sortedFields = fields.stream()
+                .filter(field -> null != field.getSort())
+                .sorted(Comparator.comparing(field -> null != field.getSort().getOrder() ? field.getSort().getOrder() : Integer.MAX_VALUE))
+                .collect(Collectors.toList());
+        if (sortedFields.size() != 1) {
+            return Optional.empty();
+        }
+
+        final Field sortedField = sortedFields.get(0);
+        if ((null == sortedField.getExpression()) || !isNumberFormat(sortedField.getFormat())) {
+            return Optional.empty();
+        }
+
+        final Matcher matcher = FIELD_REF.matcher(sortedField.getExpression().trim());
+        if (!matcher.matches() || !isNumeric(dataSource, matcher.group(1))) {
+            return Optional.empty();
+        }
+
+        final SortOrder sortOrder = Sort.SortDirection.DESCENDING.equals(sortedField.getSort().getDirection())
+                ? SortOrder.DESC
+                : SortOrder.ASC;
+
+        return Optional.of(new SortPushDown(matcher.group(1), sortOrder, tableSettings.getMaxResults().get(0)));
+    }
+
+    private static boolean isNumberFormat(final Format format) {
+        return (null == format)
+                || (null == format.getType())
+                || Format.Type.GENERAL.equals(format.getType())
+                || Format.Type.NUMBER.equals(format.getType());
+    }
+
+    private static boolean isNumeric(final Optional<DataSource> dataSource,
+                                     final String fieldName) {
+        return dataSource
+                .map(DataSource::getFields)
+                .flatMap(fields -> fields.stream()
+                        .filter(Objects::nonNull)
+                        .filter(field -> fieldName.equals(field.getName()))
+                        .findFirst())
+                .map(field -> DataSourceField.DataSourceFieldType.NUMERIC_FIELD.equals(field.getType()))
+                .orElse(false);
+    }
+
+    /**
+     * @return The source field to sort the hits on
+     */
+    String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * @return The direction of the sort
+     */
+    SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    /**
+     * @return The number of sorted hits after which no more can appear in the table
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param query The query of the search
+     * @return The query for the hits that have a value for the sorted field, these are read in order
+     */
+    QueryBuilder withValue(final QueryBuilder query) {
+        return QueryBuilders.boolQuery()
+                .must(query)
+                .filter(QueryBuilders.existsQuery(fieldName));
+    }
+
+    /**
+     * @param query The query of the search
+     * @return The query for the hits that have no value for the sorted field, every one of these must be read
+     */
+    QueryBuilder withoutValue(final QueryBuilder query) {
+        return QueryBuilders.boolQuery()
+                .must(query)
+                .mustNot(QueryBuilders.existsQuery(fieldName));
+    }
+}
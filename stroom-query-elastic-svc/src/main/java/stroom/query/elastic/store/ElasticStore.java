@@ -1,45 +1,157 @@
 package stroom.query.elastic.store;
 
-import stroom.mapreduce.v2.UnsafePairQueue;
 import stroom.query.api.v2.TableSettings;
 import stroom.query.common.v2.*;
+import stroom.util.shared.HasTerminate;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-
-public class ElasticStore implements Store {
-    private CoprocessorSettingsMap coprocessorSettingsMap;
-    private Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap;
-    private Map<CoprocessorSettingsMap.CoprocessorKey, Payload> payloadMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the results of a search as they are found, so they can be read while the search is still running.
+ *
+ * The output of the coprocessors is merged into a payload handler for each table after every page of hits,
+ * reading the data for a component only takes what has been merged so far. The sorted and trimmed data for each
+ * table is held until more results are merged in, so repeated reads between pages do not sort it all again.
+ * Tables that do not group are trimmed to their maximum results on every merge, so they stay bounded however
+ * many hits the search matches.
+ */
+public class ElasticStore implements Store, HasTerminate {
+    private final CoprocessorSettingsMap coprocessorSettingsMap;
+    private final Map<CoprocessorSettingsMap.CoprocessorKey, TablePayloadHandler> payloadHandlers = new HashMap<>();
+    private final Map<CoprocessorSettingsMap.CoprocessorKey, AtomicLong> payloadVersions = new HashMap<>();
+    private final ConcurrentMap<CoprocessorSettingsMap.CoprocessorKey, VersionedData> dataCache = new ConcurrentHashMap<>();
 
     private final List<Integer> defaultMaxResultsSizes;
     private final StoreSize storeSize;
 
-    public ElasticStore(final List<Integer> defaultMaxResultsSizes, final StoreSize storeSize) {
+    private final CountDownLatch completionLatch = new CountDownLatch(1);
+    private final List<String> errors = new CopyOnWriteArrayList<>();
+    private volatile boolean terminated;
+
+    public ElasticStore(final List<Integer> defaultMaxResultsSizes,
+                        final StoreSize storeSize,
+                        final CoprocessorSettingsMap coprocessorSettingsMap) {
         this.defaultMaxResultsSizes = defaultMaxResultsSizes;
         this.storeSize = storeSize;
+        this.coprocessorSettingsMap = coprocessorSettingsMap;
+
+        coprocessorSettingsMap.getMap().forEach((coprocessorKey, coprocessorSettings) -> {
+            if (coprocessorSettings instanceof TableCoprocessorSettings) {
+                final TableSettings tableSettings = ((TableCoprocessorSettings) coprocessorSettings).getTableSettings();
+                payloadHandlers.put(coprocessorKey, new TablePayloadHandler(
+                        tableSettings.getFields(),
+                        Boolean.TRUE.equals(tableSettings.getShowDetail()),
+                        getTableStoreSize(tableSettings, storeSize)));
+                payloadVersions.put(coprocessorKey, new AtomicLong());
+            }
+        });
+    }
+
+    /**
+     * Each merge sorts the rows held for a table and trims them to the store size, so a table that does not group
+     * only ever needs to hold the rows it can show plus one page. Grouped tables hold every group, as a group that is
+     * trimmed early would be missing the values of any rows added to it later.
+     * @param tableSettings The settings of the table
+     * @param storeSize The store size to use when the table must hold everything
+     * @return The store size for the payload handler of the table
+     */
+    private static StoreSize getTableStoreSize(final TableSettings tableSettings,
+                                               final StoreSize storeSize) {
+        final boolean grouped = (null != tableSettings.getFields())
+                && tableSettings.getFields().stream().anyMatch(field -> null != field.getGroup());
+        if (grouped || (null == tableSettings.getMaxResults()) || tableSettings.getMaxResults().isEmpty()) {
+            return storeSize;
+        }
+
+        return new StoreSize(tableSettings.getMaxResults());
+    }
+
+    public CoprocessorSettingsMap getCoprocessorSettingsMap() {
+        return coprocessorSettingsMap;
+    }
+
+    /**
+     * Merge everything the coprocessors have received since the last call into the results.
+     * This must not be called while the coprocessors are receiving data.
+     * @param coprocessorMap The coprocessors that are being fed the search results
+     */
+    public void addPayloads(final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap) {
+        coprocessorMap.forEach(this::addPayload);
+    }
+
+    /**
+     * Merge everything a single coprocessor has received since the last call into the results for its table.
+     * Each table is merged independently, so different coprocessors may be added from different threads.
+     * @param coprocessorKey The key of the coprocessor
+     * @param coprocessor The coprocessor being fed the search results
+     */
+    public void addPayload(final CoprocessorSettingsMap.CoprocessorKey coprocessorKey,
+                           final Coprocessor coprocessor) {
+        final TablePayloadHandler payloadHandler = payloadHandlers.get(coprocessorKey);
+        final Payload payload = coprocessor.createPayload();
+
+        if ((null != payloadHandler) && (payload instanceof TablePayload)) {
+            payloadHandler.addQueue(((TablePayload) payload).getQueue(), this);
+
+            // Any data already built for this table is now out of date
+            payloadVersions.get(coprocessorKey).incrementAndGet();
+        }
+    }
+
+    /**
+     * Called once the search has found everything it is going to.
+     */
+    public void complete() {
+        completionLatch.countDown();
+    }
+
+    /**
+     * Record an error that stopped the search, the search is then complete.
+     * @param message The error to report back with the results
+     */
+    public void error(final String message) {
+        errors.add(message);
+        complete();
     }
 
     @Override
     public void destroy() {
+        terminate();
+    }
 
+    @Override
+    public void terminate() {
+        terminated = true;
+        complete();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated;
     }
 
     @Override
     public boolean isComplete() {
-        return true;
+        return completionLatch.getCount() == 0;
     }
 
     @Override
     public void awaitCompletion() throws InterruptedException {
-
+        completionLatch.await();
     }
 
     @Override
     public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
-        return false;
+        return completionLatch.await(timeout, unit);
     }
 
     @Override
@@ -48,31 +160,31 @@ public class ElasticStore implements Store {
         if (coprocessorKey == null) {
             return null;
         }
-        if (null == payloadMap) {
+
+        final TablePayloadHandler payloadHandler = payloadHandlers.get(coprocessorKey);
+        if (null == payloadHandler) {
             return new Data(new HashMap<>(), 0, 0);
         }
 
-        TableCoprocessorSettings tableCoprocessorSettings = (TableCoprocessorSettings) coprocessorSettingsMap.getMap()
-                .get(coprocessorKey);
-        TableSettings tableSettings = tableCoprocessorSettings.getTableSettings();
-
-        Payload payload = payloadMap.get(coprocessorKey);
-        TablePayload tablePayload = (TablePayload) payload;
-        UnsafePairQueue<Key, Item> queue = tablePayload.getQueue();
-
-        CompiledSorter compiledSorter = new CompiledSorter(tableSettings.getFields());
-        final ResultStoreCreator resultStoreCreator = new ResultStoreCreator(compiledSorter);
-        resultStoreCreator.read(queue);
+        // The version is read before the data is built, if more is merged in meanwhile the data is rebuilt next time
+        final long version = payloadVersions.get(coprocessorKey).get();
+        final VersionedData cached = dataCache.get(coprocessorKey);
+        if ((null != cached) && (cached.version == version)) {
+            return cached.data;
+        }
 
-        // Trim the number of results in the store.
-        resultStoreCreator.trim(storeSize);
+        Data data = payloadHandler.getData();
+        if (null == data) {
+            data = new Data(new HashMap<>(), 0, 0);
+        }
 
-        return resultStoreCreator.create(queue.size(), queue.size());
+        dataCache.put(coprocessorKey, new VersionedData(version, data));
+        return data;
     }
 
     @Override
     public List<String> getErrors() {
-        return null;
+        return errors.isEmpty() ? null : new ArrayList<>(errors);
     }
 
     @Override
@@ -90,15 +202,14 @@ public class ElasticStore implements Store {
         return storeSize;
     }
 
-    public void process(CoprocessorSettingsMap coprocessorSettingsMap) {
-        this.coprocessorSettingsMap = coprocessorSettingsMap;
-    }
-
-    public void coprocessorMap(Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap) {
-        this.coprocessorMap = coprocessorMap;
-    }
+    private static class VersionedData {
+        private final long version;
+        private final Data data;
 
-    public void payloadMap(Map<CoprocessorSettingsMap.CoprocessorKey, Payload> payloadMap) {
-        this.payloadMap = payloadMap;
+        private VersionedData(final long version,
+                              final Data data) {
+            this.version = version;
+            this.data = data;
+        }
     }
 }
@@ -1,61 +1,143 @@
 package stroom.query.elastic.transportClient;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.Configuration;
 import io.dropwizard.ConfiguredBundle;
 import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import stroom.query.elastic.client.ElasticClient;
+import stroom.query.elastic.client.RestElasticClient;
+import stroom.query.elastic.client.TransportElasticClient;
 import stroom.query.elastic.config.ElasticConfig;
 import stroom.query.elastic.config.HasElasticConfig;
+import stroom.query.elastic.config.TransportClientConfig;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public class TransportClientBundle<T extends Configuration & HasElasticConfig> implements ConfiguredBundle<T> {
     private static final Logger LOGGER = LoggerFactory.getLogger(TransportClientBundle.class);
 
     private TransportClient transportClient;
 
+    private ElasticClient elasticClient;
+
     public TransportClient getTransportClient() {
         return transportClient;
     }
 
+    public ElasticClient getElasticClient() {
+        return elasticClient;
+    }
+
+    /**
+     * Create the client for the busy request paths, of the type selected in the config.
+     * @param hasElasticConfig The config
+     * @param transportClient The transport client, this is used directly when the client type is TRANSPORT
+     * @return The client
+     */
+    public static ElasticClient createElasticClient(final HasElasticConfig hasElasticConfig,
+                                                    final TransportClient transportClient) {
+        final ElasticConfig elasticConfig = hasElasticConfig.getElasticConfig();
+
+        switch (elasticConfig.getClientType()) {
+            case REST:
+                return new RestElasticClient(elasticConfig);
+            default:
+                return new TransportElasticClient(transportClient);
+        }
+    }
+
     public static TransportClient createTransportClient(final HasElasticConfig hasElasticConfig) {
         final ElasticConfig elasticConfig = hasElasticConfig.getElasticConfig();
+        final TransportClientConfig clientConfig = elasticConfig.getTransportClient();
+
+        final List<Tuple<String, Integer>> hosts = Arrays.stream(elasticConfig.getTransportHosts().split(ElasticConfig.ENTRY_DELIMITER))
+                .map(String::trim)
+                .filter(h -> !h.isEmpty())
+                .map(h -> parseHost(h, elasticConfig.getTransportHosts()))
+                .collect(Collectors.toList());
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException(String.format("No transport hosts of the form host:port in '%s'",
+                    elasticConfig.getTransportHosts()));
+        }
 
         final Settings settings = Settings.builder()
-                .put("cluster.name", elasticConfig.getClusterName()).build();
+                .put("cluster.name", elasticConfig.getClusterName())
+                .put("client.transport.sniff", clientConfig.isSniff())
+                .put("client.transport.ping_timeout", toTimeValue(clientConfig.getPingTimeout()))
+                .put("client.transport.nodes_sampler_interval", toTimeValue(clientConfig.getNodesSamplerInterval()))
+                .put("transport.tcp.connect_timeout", toTimeValue(clientConfig.getConnectTimeout()))
+                .put("transport.connections_per_node.reg", clientConfig.getConnectionsPerNode())
+                .build();
         final TransportClient tClient = new PreBuiltTransportClient(settings);
 
-        Arrays.stream(elasticConfig.getTransportHosts().split(ElasticConfig.ENTRY_DELIMITER))
-                .map(h -> h.split(ElasticConfig.HOST_PORT_DELIMITER))
-                .filter(h -> (h.length == 2))
-                .map(h -> new Tuple<>(h[0], Integer.parseInt(h[1])))
-                .forEach(tuple -> {
-                    final String hostname = tuple.v1();
-                    final Integer port = tuple.v2();
-                    try {
-                        LOGGER.info(String.format("Elastic Connecting to %s:%d", hostname, port));
-                        tClient.addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(hostname), port));
-                    } catch (UnknownHostException e) {
-                        LOGGER.warn(String.format("Could not configure client connection to %s:%d", hostname, port));
-                    }
-                });
+        hosts.forEach(tuple -> {
+            final String hostname = tuple.v1();
+            final Integer port = tuple.v2();
+            try {
+                LOGGER.info(String.format("Elastic Connecting to %s:%d", hostname, port));
+                tClient.addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(hostname), port));
+            } catch (UnknownHostException e) {
+                LOGGER.warn(String.format("Could not configure client connection to %s:%d", hostname, port));
+            }
+        });
+
+        if (clientConfig.isSniff()) {
+            LOGGER.info(String.format("Elastic Sniffing found %d nodes", tClient.connectedNodes().size()));
+        }
 
         return tClient;
     }
 
+    private static Tuple<String, Integer> parseHost(final String entry,
+                                                    final String transportHosts) {
+        final String[] h = entry.split(ElasticConfig.HOST_PORT_DELIMITER);
+        if ((h.length == 2) && !h[0].trim().isEmpty()) {
+            try {
+                final int port = Integer.parseInt(h[1].trim());
+                if ((port > 0) && (port <= 65535)) {
+                    return new Tuple<>(h[0].trim(), port);
+                }
+            } catch (final NumberFormatException e) {
+                // Falls through to the error below
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("Transport host '%s' is not of the form host:port in '%s'",
+                entry, transportHosts));
+    }
+
+    private static String toTimeValue(final Duration duration) {
+        return TimeValue.timeValueMillis(duration.toMilliseconds()).getStringRep();
+    }
+
     @Override
     public void run(final T configuration, final Environment environment) throws Exception {
         transportClient = createTransportClient(configuration);
+        elasticClient = createElasticClient(configuration, transportClient);
+
+        // Shows how far the requests are being spread across the cluster
+        environment.metrics().register(MetricRegistry.name(TransportClientBundle.class, "connectedNodes"),
+                (Gauge<Integer>) () -> transportClient.connectedNodes().size());
+        environment.metrics().register(MetricRegistry.name(TransportClientBundle.class, "listedNodes"),
+                (Gauge<Integer>) () -> transportClient.listedNodes().size());
+        environment.metrics().register(MetricRegistry.name(TransportClientBundle.class, "filteredNodes"),
+                (Gauge<Integer>) () -> transportClient.filteredNodes().size());
 
         environment.lifecycle().manage(new Managed() {
             @Override
@@ -65,6 +147,8 @@ public class TransportClientBundle<T extends Configuration & HasElasticConfig> i
 
             @Override
             public void stop() throws Exception {
+                elasticClient.close();
+
                 LOGGER.info("Closing Elastic Transport Client");
                 transportClient.close();
             }
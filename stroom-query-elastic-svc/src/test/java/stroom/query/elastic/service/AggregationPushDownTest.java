@@ -0,0 +1,513 @@
+package stroom.query.elastic.service;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.InternalSingleBucketAggregation;
+import org.elasticsearch.search.aggregations.bucket.missing.MissingAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.DoubleTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.sum.InternalSum;
+import org.elasticsearch.search.aggregations.metrics.valuecount.InternalValueCount;
+import org.junit.Test;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+import stroom.datasource.api.v2.DataSource;
+import stroom.datasource.api.v2.DataSourceField;
+import stroom.query.api.v2.DocRef;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Filter;
+import stroom.query.api.v2.Query;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.Row;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.SearchResponse;
+import stroom.query.api.v2.Sort;
+import stroom.query.api.v2.TableResult;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.common.v2.Coprocessor;
+import stroom.query.common.v2.CoprocessorSettings;
+import stroom.query.common.v2.CoprocessorSettingsMap;
+import stroom.query.common.v2.SearchResponseCreator;
+import stroom.query.common.v2.StoreSize;
+import stroom.query.common.v2.TableCoprocessor;
+import stroom.query.common.v2.TableCoprocessorSettings;
+import stroom.query.elastic.store.ElasticStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AggregationPushDownTest {
+    private static final String COMPONENT_ID = "table";
+    private static final String SPECIES = "species";
+    private static final String BYTES = "bytes";
+
+    private static final Optional<DataSource> DATA_SOURCE = Optional.of(new DataSource(Arrays.asList(
+            dataSourceField(SPECIES, DataSourceField.DataSourceFieldType.FIELD),
+            dataSourceField("colour", DataSourceField.DataSourceFieldType.FIELD),
+            dataSourceField(BYTES, DataSourceField.DataSourceFieldType.NUMERIC_FIELD),
+            dataSourceField("time", DataSourceField.DataSourceFieldType.DATE_FIELD))));
+
+    private static final Field SPECIES_GROUP = new Field.Builder()
+            .name(SPECIES)
+            .expression("${species}")
+            .sort(new Sort(0, Sort.SortDirection.ASCENDING))
+            .group(0)
+            .build();
+
+    private static final Field COLOUR_GROUP = new Field.Builder()
+            .name("colour")
+            .expression("${colour}")
+            .group(1)
+            .build();
+
+    private static final Field COUNT = new Field.Builder()
+            .name("count")
+            .expression("count()")
+            .build();
+
+    private static final Field SUM_BYTES = new Field.Builder()
+            .name("total")
+            .expression("sum(${bytes})")
+            .build();
+
+    private static final Field AVERAGE_BYTES = new Field.Builder()
+            .name("average")
+            .expression("average(${bytes})")
+            .build();
+
+    @Test
+    public void testPlanRewritesAggregatesToReadBuckets() {
+        // Given
+        final CoprocessorSettingsMap settingsMap = settingsMap(request(SPECIES_GROUP, COUNT, SUM_BYTES, AVERAGE_BYTES));
+
+        // When
+        final AggregationPushDown pushDown = AggregationPushDown.forTables(settingsMap, 100, DATA_SOURCE).get();
+        final List<AggregationBuilder> aggregations = pushDown.getAggregations();
+        final List<String> expressions = getRewrittenFields(pushDown).stream()
+                .map(Field::getExpression)
+                .collect(Collectors.toList());
+
+        // Then, hits without a species are counted by the missing aggregation beside the terms
+        assertEquals(Arrays.asList("t0_group_0", "t0_missing_0"), getNames(aggregations));
+        assertEquals(SPECIES, ((TermsAggregationBuilder) aggregations.get(0)).field());
+        assertEquals(100, ((TermsAggregationBuilder) aggregations.get(0)).size());
+        assertEquals(SPECIES, ((MissingAggregationBuilder) aggregations.get(1)).field());
+        final List<String> metricNames = Arrays.asList("t0___agg_sum_2", "t0___agg_sum_3", "t0___agg_count_3");
+        assertEquals(metricNames, getNames(aggregations.get(0).getSubAggregations()));
+        assertEquals(metricNames, getNames(aggregations.get(1).getSubAggregations()));
+
+        assertEquals(Arrays.asList("${species}",
+                "sum(${__agg_count})",
+                "sum(${__agg_sum_2})",
+                "sum(${__agg_sum_3})/sum(${__agg_count_3})"), expressions);
+    }
+
+    @Test
+    public void testNestedGroupsAreNestedTerms() {
+        // Given
+        final CoprocessorSettingsMap settingsMap = settingsMap(request(COLOUR_GROUP, SPECIES_GROUP, COUNT));
+
+        // When
+        final AggregationPushDown pushDown = AggregationPushDown.forTables(settingsMap, 100, DATA_SOURCE).get();
+        final List<AggregationBuilder> aggregations = pushDown.getAggregations();
+
+        // Then
+        assertEquals(SPECIES, ((TermsAggregationBuilder) aggregations.get(0)).field());
+        aggregations.forEach(aggregation -> {
+            assertEquals(Arrays.asList("t0_group_1", "t0_missing_1"), getNames(aggregation.getSubAggregations()));
+            assertEquals("colour", ((TermsAggregationBuilder) aggregation.getSubAggregations().get(0)).field());
+        });
+    }
+
+    @Test
+    public void testUnsupportedTablesAreNotPushedDown() {
+        // Given
+        final Field calculated = new Field.Builder()
+                .name("kilobytes")
+                .expression("sum(${bytes}) / 1024")
+                .build();
+        final Field filtered = new Field.Builder()
+                .name(SPECIES)
+                .expression("${species}")
+                .group(0)
+                .filter(new Filter("fox", null))
+                .build();
+
+        // Elastic keys dates on the parsed time, not the value in the source
+        final Field dateGroup = new Field.Builder()
+                .name("time")
+                .expression("${time}")
+                .group(0)
+                .build();
+
+        // When
+        final Optional<AggregationPushDown> calculatedPushDown =
+                AggregationPushDown.forTables(settingsMap(request(SPECIES_GROUP, calculated)), 100, DATA_SOURCE);
+        final Optional<AggregationPushDown> ungroupedPushDown =
+                AggregationPushDown.forTables(settingsMap(request(SUM_BYTES)), 100, DATA_SOURCE);
+        final Optional<AggregationPushDown> filteredPushDown =
+                AggregationPushDown.forTables(settingsMap(request(filtered, COUNT)), 100, DATA_SOURCE);
+        final Optional<AggregationPushDown> datePushDown =
+                AggregationPushDown.forTables(settingsMap(request(dateGroup, COUNT)), 100, DATA_SOURCE);
+
+        // Without the data source the type of the group field is not known
+        final Optional<AggregationPushDown> unknownPushDown =
+                AggregationPushDown.forTables(settingsMap(request(SPECIES_GROUP, COUNT)), 100, Optional.empty());
+
+        // Then
+        assertFalse(calculatedPushDown.isPresent());
+        assertFalse(ungroupedPushDown.isPresent());
+        assertFalse(filteredPushDown.isPresent());
+        assertFalse(datePushDown.isPresent());
+        assertFalse(unknownPushDown.isPresent());
+    }
+
+    @Test
+    public void testPushedDownRowsMatchCoprocessorRows() {
+        // Given
+        final SearchRequest request = request(SPECIES_GROUP, COUNT, SUM_BYTES, AVERAGE_BYTES);
+        final List<Map<String, String>> hits = Arrays.asList(
+                hit("fox", "10"),
+                hit("fox", "20"),
+                hit("owl", "5"),
+                hit(null, "7"));
+
+        // When
+        final List<List<String>> expected = searchHits(request, hits);
+        final List<List<String>> pushedDown = searchAggregations(request, 4,
+                terms("t0_group_0", 0,
+                        bucket("fox", 2, bytesMetrics(30, 2)),
+                        bucket("owl", 1, bytesMetrics(5, 1))),
+                missing("t0_missing_0", 1, bytesMetrics(7, 1)))
+                .get();
+
+        // Then, the hits without a species form a group of their own
+        assertEquals(expected, pushedDown);
+        assertEquals(3, pushedDown.size());
+    }
+
+    @Test
+    public void testNumericGroupKeysMatchTheSource() {
+        // Given
+        final Field bytesGroup = new Field.Builder()
+                .name(BYTES)
+                .expression("${bytes}")
+                .sort(new Sort(0, Sort.SortDirection.ASCENDING))
+                .group(0)
+                .build();
+        final SearchRequest request = request(bytesGroup, COUNT);
+
+        // When
+        final List<List<String>> expected = searchHits(request, Arrays.asList(hit("fox", "10"), hit("owl", "10")));
+        final Optional<List<List<String>>> longKeys = searchAggregations(request, 2,
+                new LongTerms("t0_group_0", Terms.Order.count(false), 100, 1, Collections.emptyList(),
+                        Collections.emptyMap(), DocValueFormat.RAW, 100, false, 0,
+                        Collections.singletonList(new LongTerms.Bucket(10, 2, InternalAggregations.EMPTY,
+                                false, 0, DocValueFormat.RAW)), 0),
+                missing("t0_missing_0", 0));
+
+        // Floating point keys are the indexed value, which need not print as the source did
+        final Optional<List<List<String>>> doubleKeys = searchAggregations(request, 2,
+                new DoubleTerms("t0_group_0", Terms.Order.count(false), 100, 1, Collections.emptyList(),
+                        Collections.emptyMap(), DocValueFormat.RAW, 100, false, 0,
+                        Collections.singletonList(new DoubleTerms.Bucket(10.1, 2, InternalAggregations.EMPTY,
+                                false, 0, DocValueFormat.RAW)), 0),
+                missing("t0_missing_0", 0));
+
+        // Then
+        assertEquals(Optional.of(expected), longKeys);
+        assertFalse(doubleKeys.isPresent());
+    }
+
+    @Test
+    public void testBucketsNotHoldingEachHitOnceFallBack() {
+        // Given
+        final SearchRequest request = request(SPECIES_GROUP, COUNT);
+
+        // When
+
+        // A hit with two species is in two buckets
+        final Optional<List<List<String>>> multiValued = searchAggregations(request, 3,
+                terms("t0_group_0", 0, bucket("fox", 2), bucket("owl", 2)),
+                missing("t0_missing_0", 0));
+
+        // A hit counted by neither the terms nor the missing aggregation
+        final Optional<List<List<String>>> unaccounted = searchAggregations(request, 4,
+                terms("t0_group_0", 0, bucket("fox", 2), bucket("owl", 1)),
+                missing("t0_missing_0", 0));
+
+        // More groups than buckets were asked for
+        final Optional<List<List<String>>> tooManyGroups = searchAggregations(request, 4,
+                terms("t0_group_0", 1, bucket("fox", 2), bucket("owl", 1)),
+                missing("t0_missing_0", 0));
+
+        final Optional<List<List<String>>> accounted = searchAggregations(request, 4,
+                terms("t0_group_0", 0, bucket("fox", 2), bucket("owl", 1)),
+                missing("t0_missing_0", 1));
+
+        // Then
+        assertFalse(multiValued.isPresent());
+        assertFalse(unaccounted.isPresent());
+        assertFalse(tooManyGroups.isPresent());
+        assertTrue(accounted.isPresent());
+    }
+
+    @Test
+    public void testNestedBucketsAreCheckedAgainstTheirParent() {
+        // Given
+        final SearchRequest request = request(COLOUR_GROUP, SPECIES_GROUP, COUNT);
+
+        // When
+        final Optional<List<List<String>>> accounted = searchAggregations(request, 3,
+                terms("t0_group_0", 0, bucket("fox", 3,
+                        terms("t0_group_1", 0, bucket("red", 2)),
+                        missing("t0_missing_1", 1))),
+                missing("t0_missing_0", 0));
+
+        // The colours of the foxes hold fewer hits than the fox bucket
+        final Optional<List<List<String>>> unaccounted = searchAggregations(request, 3,
+                terms("t0_group_0", 0, bucket("fox", 3,
+                        terms("t0_group_1", 0, bucket("red", 2)),
+                        missing("t0_missing_1", 0))),
+                missing("t0_missing_0", 0));
+
+        // Then
+        assertEquals(2, accounted.get().size());
+        assertFalse(unaccounted.isPresent());
+    }
+
+    @Test
+    public void testFormatMetric() {
+        // When
+        final String whole = AggregationPushDown.formatMetric(12.0);
+        final String negative = AggregationPushDown.formatMetric(-3.0);
+        final String fraction = AggregationPushDown.formatMetric(12.5);
+        final String large = AggregationPushDown.formatMetric(1e20);
+
+        // Then
+        assertEquals("12", whole);
+        assertEquals("-3", negative);
+        assertEquals("12.5", fraction);
+        assertEquals("1.0E20", large);
+    }
+
+    private static List<List<String>> searchHits(final SearchRequest request,
+                                                 final List<Map<String, String>> hits) {
+        final CoprocessorSettingsMap settingsMap = settingsMap(request);
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap =
+                createCoprocessors(settingsMap.getMap(), fieldIndexMap);
+
+        hits.forEach(hit -> {
+            final String[] row = new String[fieldIndexMap.size()];
+            hit.forEach((name, value) -> {
+                final int pos = fieldIndexMap.get(name);
+                if (pos != -1) {
+                    row[pos] = value;
+                }
+            });
+            coprocessorMap.values().forEach(coprocessor -> coprocessor.receive(row));
+        });
+
+        return getRows(request, settingsMap, coprocessorMap);
+    }
+
+    private static Optional<List<List<String>>> searchAggregations(final SearchRequest request,
+                                                                   final long totalHits,
+                                                                   final InternalAggregation... aggregation) {
+        final CoprocessorSettingsMap settingsMap = settingsMap(request);
+        final AggregationPushDown pushDown = AggregationPushDown.forTables(settingsMap, 100, DATA_SOURCE).get();
+
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap =
+                createCoprocessors(pushDown.getRewrittenSettings(), fieldIndexMap);
+
+        final InternalAggregations aggregations = new InternalAggregations(Arrays.asList(aggregation));
+        if (!pushDown.project(aggregations, totalHits, fieldIndexMap, coprocessorMap)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(getRows(request, settingsMap, coprocessorMap));
+    }
+
+    private static Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> createCoprocessors(
+            final Map<CoprocessorSettingsMap.CoprocessorKey, CoprocessorSettings> settings,
+            final FieldIndexMap fieldIndexMap) {
+        final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap = new HashMap<>();
+        settings.forEach((key, value) -> coprocessorMap.put(key,
+                new TableCoprocessor((TableCoprocessorSettings) value, fieldIndexMap, Collections.emptyMap())));
+        return coprocessorMap;
+    }
+
+    /**
+     * Read the rows back out as the service does, through the store and the search response creator.
+     */
+    private static List<List<String>> getRows(final SearchRequest request,
+                                              final CoprocessorSettingsMap settingsMap,
+                                              final Map<CoprocessorSettingsMap.CoprocessorKey, Coprocessor> coprocessorMap) {
+        final List<Integer> storeSize = Collections.singletonList(Integer.MAX_VALUE);
+        final ElasticStore store = new ElasticStore(storeSize, new StoreSize(storeSize), settingsMap);
+        store.addPayloads(coprocessorMap);
+        store.complete();
+
+        final SearchResponse response = new SearchResponseCreator(store).create(request);
+        final TableResult tableResult = (TableResult) response.getResults().get(0);
+        return tableResult.getRows().stream()
+                .map(Row::getValues)
+                .collect(Collectors.toList());
+    }
+
+    private static List<Field> getRewrittenFields(final AggregationPushDown pushDown) {
+        return pushDown.getRewrittenSettings().values().stream()
+                .map(TableCoprocessorSettings.class::cast)
+                .map(TableCoprocessorSettings::getTableSettings)
+                .flatMap(tableSettings -> tableSettings.getFields().stream())
+                .collect(Collectors.toList());
+    }
+
+    private static CoprocessorSettingsMap settingsMap(final SearchRequest request) {
+        return CoprocessorSettingsMap.create(request);
+    }
+
+    private static SearchRequest request(final Field... fields) {
+        final TableSettings.Builder tableSettings = new TableSettings.Builder()
+                .queryId("queryId")
+                .extractValues(false)
+                .showDetail(false);
+        Arrays.stream(fields).forEach(tableSettings::addFields);
+
+        return new SearchRequest.Builder()
+                .query(new Query.Builder()
+                        .dataSource(new DocRef.Builder()
+                                .type("ElasticIndex")
+                                .uuid(UUID.randomUUID().toString())
+                                .build())
+                        .expression(new ExpressionOperator.Builder().build())
+                        .build())
+                .key(UUID.randomUUID().toString())
+                .dateTimeLocale("en-gb")
+                .incremental(false)
+                .addResultRequests(new ResultRequest.Builder()
+                        .fetch(ResultRequest.Fetch.ALL)
+                        .resultStyle(ResultRequest.ResultStyle.TABLE)
+                        .componentId(COMPONENT_ID)
+                        .addMappings(tableSettings.build())
+                        .build())
+                .build();
+    }
+
+    private static DataSourceField dataSourceField(final String name,
+                                                   final DataSourceField.DataSourceFieldType type) {
+        return new DataSourceField.Builder()
+                .type(type)
+                .name(name)
+                .queryable(true)
+                .build();
+    }
+
+    private static Map<String, String> hit(final String species,
+                                           final String bytes) {
+        final Map<String, String> hit = new HashMap<>();
+        hit.put(SPECIES, species);
+        hit.put(BYTES, bytes);
+        return hit;
+    }
+
+    private static List<String> getNames(final List<AggregationBuilder> aggregations) {
+        return aggregations.stream()
+                .map(AggregationBuilder::getName)
+                .collect(Collectors.toList());
+    }
+
+    private static StringTerms terms(final String name,
+                                     final long otherDocCount,
+                                     final StringTerms.Bucket... buckets) {
+        return new StringTerms(name,
+                Terms.Order.count(false),
+                100,
+                1,
+                Collections.emptyList(),
+                Collections.emptyMap(),
+                DocValueFormat.RAW,
+                100,
+                false,
+                otherDocCount,
+                new ArrayList<>(Arrays.asList(buckets)),
+                0);
+    }
+
+    private static StringTerms.Bucket bucket(final String key,
+                                             final long docCount,
+                                             final InternalAggregation... aggregations) {
+        return new StringTerms.Bucket(new BytesRef(key),
+                docCount,
+                new InternalAggregations(Arrays.asList(aggregations)),
+                false,
+                0,
+                DocValueFormat.RAW);
+    }
+
+    private static InternalAggregation[] bytesMetrics(final double sum,
+                                                      final long count) {
+        return new InternalAggregation[]{
+                sum("t0___agg_sum_2", sum),
+                sum("t0___agg_sum_3", sum),
+                valueCount("t0___agg_count_3", count)};
+    }
+
+    private static MissingBucket missing(final String name,
+                                         final long docCount,
+                                         final InternalAggregation... aggregations) {
+        return new MissingBucket(name, docCount, new InternalAggregations(Arrays.asList(aggregations)));
+    }
+
+    private static InternalSum sum(final String name,
+                                   final double value) {
+        return new InternalSum(name, value, DocValueFormat.RAW, Collections.emptyList(), Collections.emptyMap());
+    }
+
+    private static InternalValueCount valueCount(final String name,
+                                                 final long value) {
+        return new InternalValueCount(name, value, Collections.emptyList(), Collections.emptyMap());
+    }
+
+    /**
+     * Stands in for the missing aggregation of a response, which can only be built by Elastic
+     */
+    private static class MissingBucket extends InternalSingleBucketAggregation {
+        private MissingBucket(final String name,
+                              final long docCount,
+                              final InternalAggregations aggregations) {
+            super(name, docCount, aggregations, Collections.emptyList(), Collections.emptyMap());
+        }
+
+        @Override
+        protected InternalSingleBucketAggregation newAggregation(final String name,
+                                                                 final long docCount,
+                                                                 final InternalAggregations subAggregations) {
+            return new MissingBucket(name, docCount, subAggregations);
+        }
+
+        @Override
+        public String getWriteableName() {
+            return "missing";
+        }
+    }
+}
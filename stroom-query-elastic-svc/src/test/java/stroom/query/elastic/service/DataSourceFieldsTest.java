@@ -0,0 +1,125 @@
+package stroom.query.elastic.service;
+
+import org.junit.Test;
+import stroom.datasource.api.v2.DataSourceField;
+import stroom.query.api.v2.ExpressionTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class DataSourceFieldsTest {
+    private static final List<ExpressionTerm.Condition> RANGE_CONDITIONS = Arrays.asList(
+            ExpressionTerm.Condition.EQUALS,
+            ExpressionTerm.Condition.GREATER_THAN,
+            ExpressionTerm.Condition.GREATER_THAN_OR_EQUAL_TO,
+            ExpressionTerm.Condition.LESS_THAN,
+            ExpressionTerm.Condition.LESS_THAN_OR_EQUAL_TO,
+            ExpressionTerm.Condition.BETWEEN,
+            ExpressionTerm.Condition.IN);
+
+    @Test
+    public void testTextFieldsOnlyOfferContains() {
+        // Given
+        final Map<String, Object> mapping = mapping("text");
+
+        // When
+        final DataSourceField field = DataSourceFields.create("text", mapping).get();
+
+        // Then
+        assertEquals("text", field.getName());
+        assertEquals(DataSourceField.DataSourceFieldType.FIELD, field.getType());
+        assertEquals(Collections.singletonList(ExpressionTerm.Condition.CONTAINS), field.getConditions());
+    }
+
+    @Test
+    public void testKeywordFieldsOfferExactMatches() {
+        // Given
+        final Map<String, Object> mapping = mapping("keyword");
+
+        // When
+        final DataSourceField field = DataSourceFields.create("speaker", mapping).get();
+
+        // Then
+        assertEquals(DataSourceField.DataSourceFieldType.FIELD, field.getType());
+        assertEquals(Arrays.asList(ExpressionTerm.Condition.EQUALS, ExpressionTerm.Condition.IN),
+                field.getConditions());
+    }
+
+    @Test
+    public void testNumericFieldsOfferRanges() {
+        // Given
+        final List<String> numericTypes = Arrays.asList(
+                "long", "integer", "short", "byte", "double", "float", "half_float", "scaled_float");
+
+        numericTypes.forEach(type -> {
+            // When
+            final DataSourceField field = DataSourceFields.create("bytes", mapping(type)).get();
+
+            // Then
+            assertEquals(type, DataSourceField.DataSourceFieldType.NUMERIC_FIELD, field.getType());
+            assertEquals(type, RANGE_CONDITIONS, field.getConditions());
+        });
+    }
+
+    @Test
+    public void testDateAndIpFieldsOfferRanges() {
+        // Given
+        final Map<String, Object> dateMapping = mapping("date");
+        final Map<String, Object> ipMapping = mapping("ip");
+
+        // When
+        final DataSourceField date = DataSourceFields.create("time", dateMapping).get();
+        final DataSourceField ip = DataSourceFields.create("address", ipMapping).get();
+
+        // Then
+        assertEquals(DataSourceField.DataSourceFieldType.DATE_FIELD, date.getType());
+        assertEquals(RANGE_CONDITIONS, date.getConditions());
+        assertEquals(DataSourceField.DataSourceFieldType.FIELD, ip.getType());
+        assertEquals(RANGE_CONDITIONS, ip.getConditions());
+    }
+
+    @Test
+    public void testBooleanFieldsOnlyOfferEquals() {
+        // Given
+        final Map<String, Object> mapping = mapping("boolean");
+
+        // When
+        final DataSourceField field = DataSourceFields.create("flag", mapping).get();
+
+        // Then
+        assertEquals(DataSourceField.DataSourceFieldType.FIELD, field.getType());
+        assertEquals(Collections.singletonList(ExpressionTerm.Condition.EQUALS), field.getConditions());
+    }
+
+    @Test
+    public void testUnqueryableFieldsAreLeftOut() {
+        // Given
+        final Map<String, Object> geoMapping = mapping("geo_point");
+        final Map<String, Object> nestedMapping = mapping("nested");
+
+        // When
+        final Optional<DataSourceField> geo = DataSourceFields.create("location", geoMapping);
+        final Optional<DataSourceField> nested = DataSourceFields.create("children", nestedMapping);
+
+        // Meta fields and objects have no type
+        final Optional<DataSourceField> untyped = DataSourceFields.create("_id", Collections.emptyMap());
+
+        // Then
+        assertFalse(geo.isPresent());
+        assertFalse(nested.isPresent());
+        assertFalse(untyped.isPresent());
+    }
+
+    private static Map<String, Object> mapping(final String type) {
+        final Map<String, Object> mapping = new HashMap<>();
+        mapping.put("type", type);
+        return mapping;
+    }
+}
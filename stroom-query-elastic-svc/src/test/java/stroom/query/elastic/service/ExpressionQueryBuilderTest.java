@@ -0,0 +1,268 @@
+package stroom.query.elastic.service;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExpressionQueryBuilderTest {
+    private static final String SPEAKER = "speaker";
+    private static final String PLAY = "play";
+    private static final String LINE_ID = "lineId";
+
+    private final ExpressionQueryBuilder filterBuilder = ExpressionQueryBuilder.withFilterContext(true);
+    private final ExpressionQueryBuilder scoringBuilder = ExpressionQueryBuilder.withFilterContext(false);
+
+    @Test
+    public void testEmptyExpressionMatchesAll() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder().build();
+
+        // When
+        final QueryBuilder emptyQuery = filterBuilder.build(expression);
+        final QueryBuilder nullQuery = filterBuilder.build(null);
+
+        // Then
+        assertEquals(QueryBuilders.matchAllQuery(), emptyQuery);
+        assertEquals(QueryBuilders.matchAllQuery(), nullQuery);
+    }
+
+    @Test
+    public void testSingleTermIsNotWrapped() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                .build();
+
+        // When
+        final QueryBuilder query = filterBuilder.build(expression);
+
+        // Then
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.termQuery(SPEAKER, "HAMLET")), query);
+    }
+
+    @Test
+    public void testNestedAndIsFlattened() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                        .addTerm(PLAY, ExpressionTerm.Condition.EQUALS, "Hamlet")
+                        .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                                .addTerm(LINE_ID, ExpressionTerm.Condition.GREATER_THAN, "100")
+                                .build())
+                        .build())
+                .build();
+
+        // When
+        final QueryBuilder query = filterBuilder.build(expression);
+
+        // Then
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.termQuery(SPEAKER, "HAMLET"))
+                        .filter(QueryBuilders.termQuery(PLAY, "Hamlet"))
+                        .filter(QueryBuilders.rangeQuery(LINE_ID).gt("100"))),
+                query);
+    }
+
+    @Test
+    public void testNestedOrIsFlattened() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder(ExpressionOperator.Op.OR)
+                .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.OR)
+                        .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "OPHELIA")
+                        .build())
+                .build();
+
+        // When
+        final QueryBuilder query = filterBuilder.build(expression);
+
+        // Then
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.boolQuery()
+                        .minimumShouldMatch(1)
+                        .should(QueryBuilders.termQuery(SPEAKER, "HAMLET"))
+                        .should(QueryBuilders.termQuery(SPEAKER, "OPHELIA"))),
+                query);
+    }
+
+    @Test
+    public void testOperatorsOfOtherTypesAreKept() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(PLAY, ExpressionTerm.Condition.EQUALS, "Hamlet")
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.OR)
+                        .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                        .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "OPHELIA")
+                        .build())
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.NOT)
+                        .addTerm(LINE_ID, ExpressionTerm.Condition.BETWEEN, "100,200")
+                        .build())
+                .build();
+
+        // When
+        final QueryBuilder query = filterBuilder.build(expression);
+
+        // Then
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.termQuery(PLAY, "Hamlet"))
+                        .filter(QueryBuilders.boolQuery()
+                                .minimumShouldMatch(1)
+                                .should(QueryBuilders.termQuery(SPEAKER, "HAMLET"))
+                                .should(QueryBuilders.termQuery(SPEAKER, "OPHELIA")))
+                        .filter(QueryBuilders.boolQuery()
+                                .mustNot(QueryBuilders.rangeQuery(LINE_ID).from("100").to("200")))),
+                query);
+    }
+
+    @Test
+    public void testInBecomesTermsQuery() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(PLAY, ExpressionTerm.Condition.IN, "Henry IV,Hamlet,Macbeth")
+                .build();
+
+        // When
+        final QueryBuilder query = filterBuilder.build(expression);
+
+        // Then
+        assertEquals(QueryBuilders.constantScoreQuery(
+                QueryBuilders.termsQuery(PLAY, Arrays.asList("Henry IV", "Hamlet", "Macbeth"))),
+                query);
+    }
+
+    @Test
+    public void testDisabledItemsAreSkipped() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                .addTerm(new ExpressionTerm.Builder()
+                        .field(PLAY)
+                        .condition(ExpressionTerm.Condition.EQUALS)
+                        .value("Hamlet")
+                        .enabled(false)
+                        .build())
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.NOT)
+                        .addTerm(LINE_ID, ExpressionTerm.Condition.LESS_THAN, "100")
+                        .enabled(false)
+                        .build())
+                .build();
+
+        // When
+        final QueryBuilder query = filterBuilder.build(expression);
+
+        // Then
+        assertEquals(QueryBuilders.constantScoreQuery(QueryBuilders.termQuery(SPEAKER, "HAMLET")), query);
+    }
+
+    @Test
+    public void testScoringQueryIsUnchanged() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                .addTerm(PLAY, ExpressionTerm.Condition.IN, "Hamlet,Macbeth")
+                .build();
+
+        // When
+        final QueryBuilder query = scoringBuilder.build(expression);
+
+        // Then
+        assertEquals(QueryBuilders.boolQuery()
+                        .must(QueryBuilders.termQuery(SPEAKER, "HAMLET"))
+                        .must(QueryBuilders.boolQuery()
+                                .should(QueryBuilders.termQuery(PLAY, "Hamlet"))
+                                .should(QueryBuilders.termQuery(PLAY, "Macbeth"))),
+                query);
+    }
+
+    @Test
+    public void testOnlyScoringContainsIsScored() {
+        // Given
+        final ExpressionOperator contains = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                .addTerm("text", ExpressionTerm.Condition.CONTAINS, "dagger")
+                .build();
+        final ExpressionOperator equals = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                .build();
+
+        // When
+        final boolean scoredContains = scoringBuilder.isScored(contains);
+        final boolean scoredEquals = scoringBuilder.isScored(equals);
+        final boolean filteredContains = filterBuilder.isScored(contains);
+
+        // Then
+        assertTrue(scoredContains);
+        assertFalse(scoredEquals);
+        assertFalse(filteredContains);
+    }
+
+    @Test
+    public void testRequiredValuesAreIntersectedAcrossAnd() {
+        // Given
+        final ExpressionOperator expression = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(PLAY, ExpressionTerm.Condition.IN, "Hamlet,Macbeth")
+                .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                        .addTerm(PLAY, ExpressionTerm.Condition.EQUALS, "Hamlet")
+                        .build())
+                .build();
+        final ExpressionOperator inOnly = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(PLAY, ExpressionTerm.Condition.IN, "Hamlet,Macbeth")
+                .build();
+
+        // When
+        final Optional<Set<String>> intersected = ExpressionQueryBuilder.findRequiredValues(expression, PLAY);
+        final Optional<Set<String>> inValues = ExpressionQueryBuilder.findRequiredValues(inOnly, PLAY);
+
+        // Then
+        assertEquals(Optional.of(Collections.singleton("Hamlet")), intersected);
+        assertEquals(Optional.of(new HashSet<>(Arrays.asList("Hamlet", "Macbeth"))), inValues);
+    }
+
+    @Test
+    public void testOptionalAndExcludedValuesAreNotRequired() {
+        // Given
+        final ExpressionOperator beneathOrAndNot = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.OR)
+                        .addTerm(PLAY, ExpressionTerm.Condition.EQUALS, "Hamlet")
+                        .build())
+                .addOperator(new ExpressionOperator.Builder(ExpressionOperator.Op.NOT)
+                        .addTerm(PLAY, ExpressionTerm.Condition.EQUALS, "Macbeth")
+                        .build())
+                .build();
+        final ExpressionOperator range = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(PLAY, ExpressionTerm.Condition.GREATER_THAN, "Hamlet")
+                .addTerm(SPEAKER, ExpressionTerm.Condition.EQUALS, "HAMLET")
+                .build();
+        final ExpressionOperator disabled = new ExpressionOperator.Builder(ExpressionOperator.Op.AND)
+                .addTerm(new ExpressionTerm.Builder()
+                        .field(PLAY)
+                        .condition(ExpressionTerm.Condition.EQUALS)
+                        .value("Hamlet")
+                        .enabled(false)
+                        .build())
+                .build();
+
+        // When
+        final Optional<Set<String>> beneathOrAndNotValues = ExpressionQueryBuilder.findRequiredValues(beneathOrAndNot, PLAY);
+        final Optional<Set<String>> rangeValues = ExpressionQueryBuilder.findRequiredValues(range, PLAY);
+        final Optional<Set<String>> disabledValues = ExpressionQueryBuilder.findRequiredValues(disabled, PLAY);
+
+        // Then
+        assertEquals(Optional.empty(), beneathOrAndNotValues);
+        assertEquals(Optional.empty(), rangeValues);
+        assertEquals(Optional.empty(), disabledValues);
+    }
+}
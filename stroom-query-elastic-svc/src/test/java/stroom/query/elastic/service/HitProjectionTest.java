@@ -0,0 +1,95 @@
+package stroom.query.elastic.service;
+
+import org.junit.Test;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class HitProjectionTest {
+
+    @Test
+    public void testFieldsAreProjectedToTheirPositions() {
+        // Given
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        fieldIndexMap.create("speaker");
+        fieldIndexMap.create("bytes");
+        fieldIndexMap.create("time");
+
+        final Map<String, Object> source = new HashMap<>();
+        source.put("speaker", "HAMLET");
+        source.put("bytes", 1024);
+        source.put("time", "2017-01-01T00:00:00.000Z");
+        source.put("text", "To be, or not to be");
+
+        // When
+        final HitProjection projection = HitProjection.compile(Arrays.asList("time", "speaker", "bytes"), fieldIndexMap);
+        final String[] row = projection.project(source);
+
+        // Then
+        assertArrayEquals(new String[]{"HAMLET", "1024", "2017-01-01T00:00:00.000Z"}, row);
+    }
+
+    @Test
+    public void testMissingValuesAreNull() {
+        // Given
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        fieldIndexMap.create("speaker");
+        fieldIndexMap.create("bytes");
+
+        final Map<String, Object> source = new HashMap<>();
+        source.put("speaker", "HAMLET");
+        source.put("bytes", null);
+
+        // When
+        final HitProjection projection = HitProjection.compile(Arrays.asList("speaker", "bytes"), fieldIndexMap);
+        final String[] row = projection.project(source);
+
+        // Hits fetched without a source still give a row for each field
+        final String[] noSourceRow = projection.project(null);
+
+        // Then
+        assertArrayEquals(new String[]{"HAMLET", null}, row);
+        assertArrayEquals(new String[]{null, null}, noSourceRow);
+    }
+
+    @Test
+    public void testUnrequestedFieldsAreSkipped() {
+        // Given
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        fieldIndexMap.create("bytes");
+
+        final Map<String, Object> source = new HashMap<>();
+        source.put("speaker", "HAMLET");
+        source.put("bytes", 1024);
+
+        // When
+        final HitProjection projection = HitProjection.compile(Arrays.asList("speaker", "bytes"), fieldIndexMap);
+        final String[] row = projection.project(source);
+
+        // Then
+        assertArrayEquals(new String[]{"1024"}, row);
+    }
+
+    @Test
+    public void testEachHitGetsItsOwnRow() {
+        // Given
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        fieldIndexMap.create("speaker");
+
+        final Map<String, Object> source = new HashMap<>();
+        source.put("speaker", "HAMLET");
+
+        // When
+        final HitProjection projection = HitProjection.compile(Arrays.asList("speaker"), fieldIndexMap);
+        final String[] firstRow = projection.project(source);
+        final String[] secondRow = projection.project(source);
+
+        // Then, the coprocessors hold onto the rows they are given, so rows must not be reused
+        assertNotSame(firstRow, secondRow);
+    }
+}
@@ -0,0 +1,219 @@
+package stroom.query.elastic.service;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.Test;
+import stroom.datasource.api.v2.DataSource;
+import stroom.datasource.api.v2.DataSourceField;
+import stroom.query.api.v2.DocRef;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Filter;
+import stroom.query.api.v2.Format;
+import stroom.query.api.v2.Query;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.Sort;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.common.v2.CoprocessorSettingsMap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SortPushDownTest {
+    private static final Optional<DataSource> DATA_SOURCE = Optional.of(new DataSource(Arrays.asList(
+            dataSourceField("bytes", DataSourceField.DataSourceFieldType.NUMERIC_FIELD),
+            dataSourceField("speaker", DataSourceField.DataSourceFieldType.FIELD),
+            dataSourceField("time", DataSourceField.DataSourceFieldType.DATE_FIELD))));
+
+    @Test
+    public void testNumericSortIsPushedDown() {
+        // Given
+        final CoprocessorSettingsMap settingsMap = settingsMap(10,
+                sorted("bytes", 0, Sort.SortDirection.DESCENDING),
+                plain("speaker"));
+
+        // When
+        final SortPushDown sortPushDown = SortPushDown.forTables(settingsMap, DATA_SOURCE).get();
+
+        // Then
+        assertEquals("bytes", sortPushDown.getFieldName());
+        assertEquals(SortOrder.DESC, sortPushDown.getSortOrder());
+        assertEquals(10, sortPushDown.getLimit());
+    }
+
+    @Test
+    public void testTextAndDateSortsAreNotPushedDown() {
+        // Given
+        final CoprocessorSettingsMap textSort = settingsMap(10, sorted("speaker", 0, Sort.SortDirection.ASCENDING));
+        final CoprocessorSettingsMap dateSort = settingsMap(10, sorted("time", 0, Sort.SortDirection.ASCENDING));
+        final CoprocessorSettingsMap numericSort = settingsMap(10, sorted("bytes", 0, Sort.SortDirection.ASCENDING));
+
+        // When
+        final Optional<SortPushDown> textPushDown = SortPushDown.forTables(textSort, DATA_SOURCE);
+        final Optional<SortPushDown> datePushDown = SortPushDown.forTables(dateSort, DATA_SOURCE);
+
+        // Without the data source the type of the field is not known
+        final Optional<SortPushDown> unknownPushDown = SortPushDown.forTables(numericSort, Optional.empty());
+
+        // Then
+        assertFalse(textPushDown.isPresent());
+        assertFalse(datePushDown.isPresent());
+        assertFalse(unknownPushDown.isPresent());
+    }
+
+    @Test
+    public void testFormattedSortIsNotPushedDown() {
+        // Given
+        final Field dateFormatted = new Field.Builder()
+                .name("bytes")
+                .expression("${bytes}")
+                .sort(new Sort(0, Sort.SortDirection.ASCENDING))
+                .format(new Format(Format.Type.DATE_TIME, null, null))
+                .build();
+
+        // When
+        final Optional<SortPushDown> sortPushDown = SortPushDown.forTables(settingsMap(10, dateFormatted), DATA_SOURCE);
+
+        // Then
+        assertFalse(sortPushDown.isPresent());
+    }
+
+    @Test
+    public void testOtherTablesAreNotPushedDown() {
+        // Given
+
+        // A second sort can reorder the rows within the first
+        final CoprocessorSettingsMap twoSorts = settingsMap(10,
+                sorted("bytes", 0, Sort.SortDirection.ASCENDING),
+                sorted("speaker", 1, Sort.SortDirection.ASCENDING));
+
+        // A filter can drop rows that were counted towards the limit
+        final CoprocessorSettingsMap filtered = settingsMap(10,
+                sorted("bytes", 0, Sort.SortDirection.ASCENDING),
+                new Field.Builder()
+                        .name("speaker")
+                        .expression("${speaker}")
+                        .filter(new Filter("HAMLET", null))
+                        .build());
+
+        final CoprocessorSettingsMap grouped = settingsMap(10, new Field.Builder()
+                .name("bytes")
+                .expression("${bytes}")
+                .sort(new Sort(0, Sort.SortDirection.ASCENDING))
+                .group(0)
+                .build());
+
+        // Calculated values may not be in the order of the field
+        final CoprocessorSettingsMap calculated = settingsMap(10, new Field.Builder()
+                .name("kilobytes")
+                .expression("${bytes} / 1024")
+                .sort(new Sort(0, Sort.SortDirection.ASCENDING))
+                .build());
+
+        // Without a limit every hit must be read anyway
+        final CoprocessorSettingsMap unlimited = settingsMap(null, sorted("bytes", 0, Sort.SortDirection.ASCENDING));
+
+        // When
+        final Optional<SortPushDown> twoSortsPushDown = SortPushDown.forTables(twoSorts, DATA_SOURCE);
+        final Optional<SortPushDown> filteredPushDown = SortPushDown.forTables(filtered, DATA_SOURCE);
+        final Optional<SortPushDown> groupedPushDown = SortPushDown.forTables(grouped, DATA_SOURCE);
+        final Optional<SortPushDown> calculatedPushDown = SortPushDown.forTables(calculated, DATA_SOURCE);
+        final Optional<SortPushDown> unlimitedPushDown = SortPushDown.forTables(unlimited, DATA_SOURCE);
+
+        // Then
+        assertFalse(twoSortsPushDown.isPresent());
+        assertFalse(filteredPushDown.isPresent());
+        assertFalse(groupedPushDown.isPresent());
+        assertFalse(calculatedPushDown.isPresent());
+        assertFalse(unlimitedPushDown.isPresent());
+    }
+
+    @Test
+    public void testHitsWithoutValueAreSearchedSeparately() {
+        // Given
+        final SortPushDown sortPushDown = SortPushDown.forTables(settingsMap(10,
+                sorted("bytes", 0, Sort.SortDirection.ASCENDING)), DATA_SOURCE).get();
+        final QueryBuilder query = QueryBuilders.termQuery("speaker", "HAMLET");
+
+        // When
+        final BoolQueryBuilder withValue = (BoolQueryBuilder) sortPushDown.withValue(query);
+        final BoolQueryBuilder withoutValue = (BoolQueryBuilder) sortPushDown.withoutValue(query);
+
+        // Then
+        assertEquals(Collections.singletonList(query), withValue.must());
+        assertEquals(1, withValue.filter().size());
+        assertEquals("bytes", ((ExistsQueryBuilder) withValue.filter().get(0)).fieldName());
+        assertTrue(withValue.mustNot().isEmpty());
+
+        assertEquals(Collections.singletonList(query), withoutValue.must());
+        assertEquals(1, withoutValue.mustNot().size());
+        assertEquals("bytes", ((ExistsQueryBuilder) withoutValue.mustNot().get(0)).fieldName());
+        assertTrue(withoutValue.filter().isEmpty());
+    }
+
+    private static CoprocessorSettingsMap settingsMap(final Integer maxResults,
+                                                      final Field... fields) {
+        final TableSettings.Builder tableSettings = new TableSettings.Builder()
+                .queryId("queryId")
+                .extractValues(false)
+                .showDetail(false);
+        Arrays.stream(fields).forEach(tableSettings::addFields);
+        if (null != maxResults) {
+            tableSettings.addMaxResults(maxResults);
+        }
+
+        return CoprocessorSettingsMap.create(new SearchRequest.Builder()
+                .query(new Query.Builder()
+                        .dataSource(new DocRef.Builder()
+                                .type("ElasticIndex")
+                                .uuid(UUID.randomUUID().toString())
+                                .build())
+                        .expression(new ExpressionOperator.Builder().build())
+                        .build())
+                .key(UUID.randomUUID().toString())
+                .dateTimeLocale("en-gb")
+                .addResultRequests(new ResultRequest.Builder()
+                        .fetch(ResultRequest.Fetch.ALL)
+                        .resultStyle(ResultRequest.ResultStyle.TABLE)
+                        .componentId("table")
+                        .addMappings(tableSettings.build())
+                        .build())
+                .build());
+    }
+
+    private static Field sorted(final String fieldName,
+                                final int order,
+                                final Sort.SortDirection direction) {
+        return new Field.Builder()
+                .name(fieldName)
+                .expression(String.format("${%s}", fieldName))
+                .sort(new Sort(order, direction))
+                .build();
+    }
+
+    private static Field plain(final String fieldName) {
+        return new Field.Builder()
+                .name(fieldName)
+                .expression(String.format("${%s}", fieldName))
+                .build();
+    }
+
+    private static DataSourceField dataSourceField(final String name,
+                                                   final DataSourceField.DataSourceFieldType type) {
+        return new DataSourceField.Builder()
+                .type(type)
+                .name(name)
+                .queryable(true)
+                .build();
+    }
+}